@@ -0,0 +1,49 @@
+package liquidrods.benchmarks;
+
+import liquidrods.CachingEscaper;
+import liquidrods.Config;
+import liquidrods.HtmlUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HtmlUtils#htmlEscape(String)} on input with and without characters to escape, directly and through a {@link CachingEscaper}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Benchmark)
+public class EscapeBenchmark {
+    @Param({"clean", "dirty"})
+    public String input;
+
+    @Param({"16", "1024"})
+    public int length;
+
+    private String value;
+    private CachingEscaper cachingEscaper;
+
+    @Setup
+    public void setup() {
+        String unit = "clean".equals(input) ? "Lorem ipsum dolor sit amet " : "<b>\"Tom\" & 'Jerry'</b> ";
+        StringBuilder res = new StringBuilder();
+        while (res.length() < length) {
+            res.append(unit);
+        }
+        value = res.substring(0, length);
+        cachingEscaper = new CachingEscaper(new Config().escaper(), 1024, 1024);
+    }
+
+    @Benchmark
+    public String escape() {
+        return HtmlUtils.htmlEscape(value);
+    }
+
+    @Benchmark
+    public String escapeCached() {
+        return cachingEscaper.escape(value);
+    }
+}
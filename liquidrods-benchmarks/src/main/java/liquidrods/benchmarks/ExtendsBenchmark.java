@@ -0,0 +1,51 @@
+package liquidrods.benchmarks;
+
+import liquidrods.Config;
+import liquidrods.Liquidrods;
+import liquidrods.Template;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and rendering a template at the end of a deep <code>extends</code> chain
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Benchmark)
+public class ExtendsBenchmark {
+    @Param({"2", "8"})
+    public int depth;
+
+    private Config config;
+    private Template template;
+    private Workloads.Page page;
+    private Workloads.NullWriter nullWriter;
+
+    @Setup
+    public void setup() {
+        Map<String, String> templates = Workloads.extendsChain(depth);
+        config = Workloads.config(templates);
+        template = Liquidrods.parse("level" + depth, config);
+        page = Workloads.page();
+        nullWriter = new Workloads.NullWriter();
+    }
+
+    /**
+     * Parses the whole chain: no template cache is configured
+     */
+    @Benchmark
+    public Template parse() {
+        return Liquidrods.parse("level" + depth, config);
+    }
+
+    @Benchmark
+    public Workloads.NullWriter render() {
+        template.render(page, nullWriter);
+        return nullWriter;
+    }
+}
@@ -0,0 +1,40 @@
+package liquidrods.benchmarks;
+
+import liquidrods.Config;
+import liquidrods.Liquidrods;
+import liquidrods.Template;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse throughput, by template size
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    /**
+     * The number of sections of the template. A section is about 200 characters long.
+     */
+    @Param({"10", "100", "1000"})
+    public int sections;
+
+    private String source;
+    private Config config;
+
+    @Setup
+    public void setup() {
+        source = Workloads.mixed(sections);
+        config = new Config();
+    }
+
+    @Benchmark
+    public Template parse() {
+        return Liquidrods.parse(new StringReader(source), config);
+    }
+}
@@ -0,0 +1,81 @@
+package liquidrods.benchmarks;
+
+import liquidrods.Config;
+import liquidrods.Liquidrods;
+import liquidrods.Template;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Render throughput of already parsed templates, for text-heavy, variable-heavy and loop-heavy workloads
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+    @Param({"text", "variables", "loops"})
+    public String workload;
+
+    /**
+     * Whether to render the {@link Template#compact() compact form} of the template
+     */
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private Template template;
+    private Workloads.Page page;
+    private Workloads.NullWriter nullWriter;
+
+    @Setup
+    public void setup() {
+        String source;
+        if ("text".equals(workload)) {
+            source = Workloads.textHeavy();
+        } else if ("variables".equals(workload)) {
+            source = Workloads.variableHeavy();
+        } else if ("loops".equals(workload)) {
+            source = Workloads.loopHeavy();
+        } else {
+            throw new IllegalArgumentException("Unknown workload " + workload);
+        }
+        template = Liquidrods.parse(new StringReader(source), new Config());
+        if (compact) {
+            template = template.compact();
+        }
+        page = Workloads.page();
+        nullWriter = new Workloads.NullWriter();
+    }
+
+    /**
+     * Rendering into a discarding writer: only measures the template evaluation
+     */
+    @Benchmark
+    public Workloads.NullWriter render() {
+        template.render(page, nullWriter);
+        return nullWriter;
+    }
+
+    /**
+     * Rendering into a fresh string through a {@link StringWriter}, which is what most callers do
+     */
+    @Benchmark
+    public String renderToString() {
+        StringWriter out = new StringWriter();
+        template.render(page, out);
+        return out.toString();
+    }
+
+    /**
+     * Rendering into a fresh string with {@link Template#renderToString(Object)}
+     */
+    @Benchmark
+    public String renderToStringBuilder() {
+        return template.renderToString(page);
+    }
+}
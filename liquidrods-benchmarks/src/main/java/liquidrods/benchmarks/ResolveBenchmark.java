@@ -0,0 +1,78 @@
+package liquidrods.benchmarks;
+
+import liquidrods.Context;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Context#resolve(String)} on maps, beans and helper methods, for selectors of various depths
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(3)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Benchmark)
+public class ResolveBenchmark {
+    @Param({"map", "bean", "helper"})
+    public String model;
+
+    /**
+     * The number of segments of the resolved selector
+     */
+    @Param({"1", "3", "5"})
+    public int depth;
+
+    private Context context;
+    private String selector;
+
+    @Setup
+    public void setup() {
+        Object leaf = "value";
+        for (int i = depth - 1; i >= 0; i--) {
+            leaf = "map".equals(model) ? Collections.singletonMap("p" + i, leaf) : new Node(leaf);
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            path.append(i == 0 ? "" : ".").append("map".equals(model) ? "p" + i : "next");
+        }
+        if ("helper".equals(model)) {
+            // the last segment is a helper method of the root model applied to the value
+            path.append(".shout");
+        }
+        Helper root = new Helper(leaf);
+        context = new Context(new Context(null, root), root.child);
+        selector = path.toString();
+    }
+
+    @Benchmark
+    public Object resolve() {
+        return context.resolve(selector);
+    }
+
+    public static class Node {
+        private final Object next;
+
+        public Node(Object next) {
+            this.next = next;
+        }
+
+        public Object getNext() {
+            return next;
+        }
+    }
+
+    public static class Helper {
+        private final Object child;
+
+        public Helper(Object child) {
+            this.child = child;
+        }
+
+        public String shout(String s) {
+            return s;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package liquidrods.benchmarks;
+
+import liquidrods.Config;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * The templates and models shared by the benchmarks. Keep them stable: the checked-in baseline results were measured against them.
+ */
+final class Workloads {
+    private Workloads() {
+    }
+
+    /**
+     * A template mixing text, variables, conditionals and loops, made of the specified number of sections
+     */
+    static String mixed(int sections) {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < sections; i++) {
+            res.append("<div class=\"section\">\n  <h2>Section ").append(i).append(": {{title}}</h2>\n");
+            res.append("  {% if visible %}<p>{{{description}}}</p>{% else %}<p>hidden</p>{% end %}\n");
+            res.append("  <ul>{% for items %}<li>{{#}} - {{name}}</li>{% end %}</ul>\n</div>\n");
+        }
+        return res.toString();
+    }
+
+    /**
+     * Mostly static markup with a couple of variables
+     */
+    static String textHeavy() {
+        StringBuilder res = new StringBuilder("<html><head><title>{{title}}</title></head><body>\n");
+        for (int i = 0; i < 50; i++) {
+            res.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.</p>\n");
+        }
+        return res.append("<footer>{{description}}</footer></body></html>\n").toString();
+    }
+
+    /**
+     * Short text segments interleaved with escaped and raw variables
+     */
+    static String variableHeavy() {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            res.append("<td>{{title}}</td><td>{{{description}}}</td><td>{{author.name}}</td>\n");
+        }
+        return res.toString();
+    }
+
+    /**
+     * Nested loops over the model items and their tags
+     */
+    static String loopHeavy() {
+        return "<table>{% for items %}<tr class=\"{% if #odd %}odd{% else %}even{% end %}\"><td>{{#}}</td><td>{{name}}</td>" +
+                "<td>{% for tags %}<span>{{.}}</span>{% end %}</td></tr>\n{% end %}</table>\n";
+    }
+
+    static Page page() {
+        Page page = new Page();
+        page.title = "Benchmark <page>";
+        page.description = "A <b>model</b> & its items";
+        page.visible = true;
+        page.author = new Author("Jane \"JD\" Doe");
+        page.items = new ArrayList<Item>();
+        for (int i = 0; i < 100; i++) {
+            page.items.add(new Item("item " + i, Arrays.asList("red", "green", "blue")));
+        }
+        return page;
+    }
+
+    /**
+     * A config loading the templates of the specified map
+     */
+    static Config config(final Map<String, String> templates) {
+        return new Config().usePrecompiled(false).templateLoader(new Config.TemplateLoader() {
+            @Override
+            public Reader load(String name) {
+                return new StringReader(templates.get(name));
+            }
+        });
+    }
+
+    /**
+     * A chain of templates, each one extending the previous one and overriding one of its blocks. The most derived one is named <code>level{depth}</code>.
+     */
+    static Map<String, String> extendsChain(int depth) {
+        Map<String, String> res = new HashMap<String, String>();
+        StringBuilder base = new StringBuilder("<html><body>\n");
+        for (int i = 1; i <= depth; i++) {
+            base.append("<section>{% block b").append(i).append(" %}default ").append(i).append("{% end %}</section>\n");
+        }
+        res.put("level0", base.append("</body></html>\n").toString());
+        for (int i = 1; i <= depth; i++) {
+            res.put("level" + i, "{% extends level" + (i - 1) + " %}{% block b" + i + " %}<p>level " + i + ": {{title}}</p>{% end %}");
+        }
+        return res;
+    }
+
+    public static class Author {
+        private final String name;
+
+        public Author(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static class Item {
+        private final String name;
+        private final List<String> tags;
+
+        public Item(String name, List<String> tags) {
+            this.name = name;
+            this.tags = tags;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+    }
+
+    public static class Page {
+        public String title;
+        public String description;
+        public boolean visible;
+        public Author author;
+        public List<Item> items;
+    }
+
+    /**
+     * A writer discarding its output, so that the benchmarks don't measure buffer growth
+     */
+    static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
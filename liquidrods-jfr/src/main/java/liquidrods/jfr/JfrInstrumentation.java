@@ -0,0 +1,73 @@
+package liquidrods.jfr;
+
+import liquidrods.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emits Java Flight Recorder events for template parses and renders, and for the variables and tag parameters that took longer than a threshold to evaluate.
+ * <p/>
+ * Register it with {@link Config#instrumentation(Instrumentation)}. The events are only built when a recording enables them, so this costs little outside of recordings.
+ * The measured durations are carried by the <code>parseTime</code>, <code>renderTime</code> and <code>resolveTime</code> fields of the events.
+ */
+public class JfrInstrumentation implements ResolveInstrumentation {
+    private final long slowResolveThresholdNanos;
+
+    /**
+     * @param slowResolveThresholdMicros how long, in microseconds, evaluating a variable or a tag parameter must take to be reported
+     */
+    public JfrInstrumentation(long slowResolveThresholdMicros) {
+        this.slowResolveThresholdNanos = TimeUnit.MICROSECONDS.toNanos(slowResolveThresholdMicros);
+    }
+
+    @Override
+    public void parsed(Template template, long nanos) {
+        TemplateParseEvent event = new TemplateParseEvent();
+        if (event.isEnabled()) {
+            event.template = template.getName();
+            event.parseTime = nanos;
+            event.nodes = count(template.getRootNodes());
+            event.commit();
+        }
+    }
+
+    private static int count(List<LiquidrodsNode> nodes) {
+        int res = nodes.size();
+        for (LiquidrodsNode node : nodes) {
+            if (node instanceof LiquidrodsNode.Block) {
+                res += count(((LiquidrodsNode.Block) node).getChildren());
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void rendered(Template template, long nanos, long chars) {
+        TemplateRenderEvent event = new TemplateRenderEvent();
+        if (event.isEnabled()) {
+            event.template = template.getName();
+            event.renderTime = nanos;
+            event.outputChars = chars;
+            event.commit();
+        }
+    }
+
+    @Override
+    public long slowResolveThresholdNanos() {
+        return slowResolveThresholdNanos;
+    }
+
+    @Override
+    public void slowResolve(LiquidrodsNode node, String selector, long nanos) {
+        SlowResolveEvent event = new SlowResolveEvent();
+        if (event.isEnabled()) {
+            event.selector = selector;
+            event.template = node.getFilename();
+            event.row = node.getRow();
+            event.col = node.getCol();
+            event.resolveTime = nanos;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package liquidrods.jfr;
+
+import jdk.jfr.*;
+
+@Name("liquidrods.SlowResolve")
+@Label("Slow Resolve")
+@Category({"Liquidrods"})
+@Description("Evaluating a variable or a tag parameter took longer than the configured threshold")
+class SlowResolveEvent extends Event {
+    @Label("Selector")
+    String selector;
+
+    @Label("Template")
+    String template;
+
+    @Label("Row")
+    int row;
+
+    @Label("Column")
+    int col;
+
+    @Label("Resolve Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long resolveTime;
+}
@@ -0,0 +1,21 @@
+package liquidrods.jfr;
+
+import jdk.jfr.*;
+
+@Name("liquidrods.TemplateParse")
+@Label("Template Parse")
+@Category({"Liquidrods"})
+@Description("A template was loaded, parsed and linked with the templates it includes or extends")
+@StackTrace(false)
+class TemplateParseEvent extends Event {
+    @Label("Template")
+    String template;
+
+    @Label("Parse Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long parseTime;
+
+    @Label("Nodes")
+    @Description("The number of nodes of the linked template, a measure of its size")
+    int nodes;
+}
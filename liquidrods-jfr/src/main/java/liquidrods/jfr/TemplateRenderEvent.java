@@ -0,0 +1,21 @@
+package liquidrods.jfr;
+
+import jdk.jfr.*;
+
+@Name("liquidrods.TemplateRender")
+@Label("Template Render")
+@Category({"Liquidrods"})
+@Description("A template was rendered")
+@StackTrace(false)
+class TemplateRenderEvent extends Event {
+    @Label("Template")
+    String template;
+
+    @Label("Render Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long renderTime;
+
+    @Label("Output Size")
+    @Description("The number of characters written")
+    long outputChars;
+}
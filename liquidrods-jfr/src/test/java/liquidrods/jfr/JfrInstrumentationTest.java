@@ -0,0 +1,82 @@
+package liquidrods.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import liquidrods.Config;
+import liquidrods.Liquidrods;
+import liquidrods.Template;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class JfrInstrumentationTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    public static class Model {
+        public String getSlow() throws InterruptedException {
+            Thread.sleep(5);
+            return "slow";
+        }
+
+        public String getFast() {
+            return "fast";
+        }
+    }
+
+    @Test
+    public void testEmitsEvents() throws Exception {
+        final Map<String, String> templates = new HashMap<String, String>();
+        templates.put("page", "{{fast}}\n  {% if slow %}{{fast}}{% end %}");
+        Config config = new Config().instrumentation(new JfrInstrumentation(1000)).templateLoader(new Config.TemplateLoader() {
+            @Override
+            public Reader load(String name) {
+                return new StringReader(templates.get(name));
+            }
+        });
+
+        Path file = tmp.newFile("recording.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable("liquidrods.TemplateParse");
+            recording.enable("liquidrods.TemplateRender");
+            recording.enable("liquidrods.SlowResolve");
+            recording.start();
+            Template template = Liquidrods.parse("page", config);
+            template.render(new Model(), new StringWriter());
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Map<String, RecordedEvent> byType = new HashMap<String, RecordedEvent>();
+        for (RecordedEvent event : events) {
+            byType.put(event.getEventType().getName(), event);
+        }
+        assertEquals(3, byType.size());
+
+        RecordedEvent parse = byType.get("liquidrods.TemplateParse");
+        assertEquals("page", parse.getString("template"));
+        assertEquals(4, parse.getInt("nodes"));
+
+        RecordedEvent render = byType.get("liquidrods.TemplateRender");
+        assertEquals("page", render.getString("template"));
+        assertEquals(11, render.getLong("outputChars"));
+
+        RecordedEvent slow = byType.get("liquidrods.SlowResolve");
+        assertEquals("slow", slow.getString("selector"));
+        assertEquals("page", slow.getString("template"));
+        assertEquals(2, slow.getInt("row"));
+        assertEquals(true, slow.getDuration("resolveTime").toMillis() >= 5);
+    }
+}
@@ -0,0 +1,150 @@
+package liquidrods.maven;
+
+import liquidrods.*;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses every template of the project at build time.
+ * <p/>
+ * The build fails if any template can't be parsed. Otherwise, the parsed templates are serialized with {@link TemplateSerializer} into the build output directory, under {@link Liquidrods#PRECOMPILED_PREFIX},
+ * where {@link Liquidrods#parse(String, Config)} picks them up at runtime instead of loading and parsing their sources, if {@link Config#usePrecompiled(boolean)} is enabled.
+ */
+@Mojo(name = "precompile", defaultPhase = LifecyclePhase.PROCESS_CLASSES, threadSafe = true)
+public class PrecompileMojo extends AbstractMojo {
+    /**
+     * The directory template names are relative to. Should be the root of the classpath the templates are loaded from at runtime.
+     */
+    @Parameter(defaultValue = "${project.basedir}/src/main/resources", required = true)
+    private File templateDirectory;
+
+    /**
+     * Only precompile the templates found under this subdirectory of the template directory
+     */
+    @Parameter(defaultValue = "")
+    private String root;
+
+    /**
+     * The suffixes of the files to be considered as templates
+     */
+    @Parameter
+    private String[] suffixes = new String[]{".html"};
+
+    /**
+     * The tags registered at runtime with a handler that doesn't take a body. Required so that those templates are parsed the same way they would be at runtime.
+     */
+    @Parameter
+    private String[] bodylessTags = new String[0];
+
+    /**
+     * Where to write the precompiled templates
+     */
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File outputDirectory;
+
+    /**
+     * The maximum number of threads to parse templates with
+     */
+    @Parameter(defaultValue = "4")
+    private int parallelism;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        if (!templateDirectory.isDirectory()) {
+            getLog().info("No templates to precompile: " + templateDirectory + " doesn't exist");
+            return;
+        }
+        Config config = new Config().templateLoader(new SuffixFilteringLoader(new DirectoryTemplateLoader(templateDirectory), suffixes)).usePrecompiled(false);
+        for (String tag : bodylessTags) {
+            config.registerHandler(tag, new BodylessHandler());
+        }
+
+        PrecompileReport report = Liquidrods.precompileAll(config, root, parallelism);
+        if (report.hasErrors()) {
+            StringBuilder message = new StringBuilder("Failed to precompile ").append(report.getFailures().size()).append(" template(s):");
+            for (PrecompileReport.Result failure : report.getFailures()) {
+                message.append("\n").append(failure.getName()).append(": ").append(failure.getError().getMessage());
+            }
+            throw new MojoFailureException(message.toString());
+        }
+
+        for (PrecompileReport.Result result : report.getResults()) {
+            write(result.getName(), TemplateSerializer.serialize(config.templateCache().get(result.getName()), result.getName(), config));
+            if (getLog().isDebugEnabled()) {
+                getLog().debug("Precompiled " + result);
+            }
+        }
+        getLog().info("Precompiled " + report.getResults().size() + " template(s) in " + TimeUnit.NANOSECONDS.toMillis(report.getNanos()) + "ms");
+    }
+
+    private void write(String name, byte[] serialized) throws MojoExecutionException {
+        File file = new File(outputDirectory, Liquidrods.PRECOMPILED_PREFIX + name + Liquidrods.PRECOMPILED_SUFFIX);
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new MojoExecutionException("Could not create the directory " + file.getParentFile());
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(serialized);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not write " + file, e);
+        }
+    }
+
+    private static class SuffixFilteringLoader implements Config.ListableTemplateLoader {
+        private final Config.ListableTemplateLoader delegate;
+        private final String[] suffixes;
+
+        private SuffixFilteringLoader(Config.ListableTemplateLoader delegate, String[] suffixes) {
+            this.delegate = delegate;
+            this.suffixes = suffixes;
+        }
+
+        @Override
+        public Reader load(String name) {
+            return delegate.load(name);
+        }
+
+        @Override
+        public List<String> list(String root) {
+            List<String> res = new ArrayList<String>();
+            for (String name : delegate.list(root)) {
+                for (String suffix : suffixes) {
+                    if (name.endsWith(suffix)) {
+                        res.add(name);
+                        break;
+                    }
+                }
+            }
+            return res;
+        }
+    }
+
+    private static class BodylessHandler implements BlockHandler {
+        @Override
+        public boolean wantsCloseTag() {
+            return false;
+        }
+
+        @Override
+        public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
+            // nop. Templates are only parsed at build time, the runtime handler renders the tag
+        }
+    }
+}
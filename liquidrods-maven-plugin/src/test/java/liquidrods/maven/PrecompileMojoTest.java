@@ -0,0 +1,82 @@
+package liquidrods.maven;
+
+import liquidrods.Config;
+import liquidrods.Liquidrods;
+import liquidrods.Template;
+import liquidrods.TemplateSerializer;
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PrecompileMojoTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void write(File dir, String name, String text) throws Exception {
+        File file = new File(dir, name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), text.getBytes("utf-8"));
+    }
+
+    private static PrecompileMojo mojo(File templateDirectory, File outputDirectory) throws Exception {
+        PrecompileMojo res = new PrecompileMojo();
+        set(res, "templateDirectory", templateDirectory);
+        set(res, "root", "");
+        set(res, "outputDirectory", outputDirectory);
+        set(res, "parallelism", 2);
+        return res;
+    }
+
+    private static void set(PrecompileMojo mojo, String name, Object value) throws Exception {
+        Field field = PrecompileMojo.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mojo, value);
+    }
+
+    private static File precompiled(File outputDirectory, String name) {
+        return new File(outputDirectory, Liquidrods.PRECOMPILED_PREFIX + name + Liquidrods.PRECOMPILED_SUFFIX);
+    }
+
+    @Test
+    public void testPrecompile() throws Exception {
+        File templates = tmp.newFolder("templates");
+        File output = tmp.newFolder("classes");
+        write(templates, "page.html", "<p>{{x}}</p>{% include parts/footer.html %}");
+        write(templates, "parts/footer.html", "<footer>{{x}}</footer>");
+        write(templates, "notes.txt", "{% not a template");
+
+        mojo(templates, output).execute();
+
+        assertTrue(precompiled(output, "page.html").isFile());
+        assertTrue(precompiled(output, "parts/footer.html").isFile());
+        assertFalse(precompiled(output, "notes.txt").exists());
+
+        Template template = TemplateSerializer.deserialize(ByteBuffer.wrap(Files.readAllBytes(precompiled(output, "page.html").toPath())), new Config(), false);
+        assertEquals("<p>y</p><footer>y</footer>", template.renderToString(Collections.singletonMap("x", "y")));
+    }
+
+    @Test
+    public void testBrokenTemplateFailsTheBuild() throws Exception {
+        File templates = tmp.newFolder("templates");
+        File output = tmp.newFolder("classes");
+        write(templates, "good.html", "<p>{{x}}</p>");
+        write(templates, "broken.html", "{% if x %}<p>{{x}}</p>");
+
+        try {
+            mojo(templates, output).execute();
+            fail("Should have failed on the broken template");
+        } catch (MojoFailureException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("broken.html"));
+        }
+        assertFalse(precompiled(output, "good.html").exists());
+    }
+}
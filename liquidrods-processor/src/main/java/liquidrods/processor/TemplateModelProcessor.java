@@ -0,0 +1,278 @@
+package liquidrods.processor;
+
+import liquidrods.TemplateAccessors;
+import liquidrods.TemplateModel;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Generates a {@link TemplateAccessors} implementation for every class annotated with {@link TemplateModel}.
+ * <p/>
+ * The generated code mirrors the reflective lookup done by {@link liquidrods.Context}: for a property <code>x</code>, a public field <code>x</code> wins over a public no-arg method <code>x()</code>,
+ * which wins over a <code>getX()</code> or <code>isX()</code> getter. Helpers are the public single-arg methods, matched against the class of the object they're applied on.
+ */
+@SupportedAnnotationTypes("liquidrods.TemplateModel")
+public class TemplateModelProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(TemplateModel.class)) {
+            if (element.getKind() != ElementKind.CLASS && element.getKind() != ElementKind.ENUM) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@TemplateModel can only be applied to classes", element);
+            } else if (!accessible(element)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@TemplateModel classes must not be private", element);
+            } else {
+                try {
+                    generate((TypeElement) element);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not generate the template accessors: " + e, element);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean accessible(Element element) {
+        for (Element e = element; e != null && e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        // named after the binary name, '$' included: replacing it would make e.g. the nested Todo$Item and a top-level Todo_Item collide
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + TemplateAccessors.SUFFIX;
+        String modelType = erasure(type.asType());
+
+        Map<String, String> properties = properties(type, modelType);
+        Map<String, List<ExecutableElement>> helpers = helpers(type);
+
+        StringBuilder src = new StringBuilder();
+        src.append("// Generated by liquidrods-processor from ").append(type.getQualifiedName()).append(". Do not edit.\n");
+        if (!packageName.isEmpty()) {
+            src.append("package ").append(packageName).append(";\n\n");
+        }
+        src.append("@SuppressWarnings(\"all\")\n");
+        src.append("public final class ").append(simpleName).append(" implements liquidrods.TemplateAccessors {\n\n");
+
+        src.append("    @Override\n");
+        src.append("    public boolean hasProperty(String name) {\n");
+        src.append("        switch (name) {\n");
+        for (String property : properties.keySet()) {
+            src.append("            case ").append(literal(property)).append(":\n");
+        }
+        if (!properties.isEmpty()) {
+            src.append("                return true;\n");
+        }
+        src.append("            default:\n");
+        src.append("                return false;\n");
+        src.append("        }\n");
+        src.append("    }\n\n");
+
+        src.append("    @Override\n");
+        src.append("    public Object property(Object model, String name) {\n");
+        src.append("        switch (name) {\n");
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            src.append("            case ").append(literal(property.getKey())).append(":\n");
+            src.append("                return ").append(property.getValue()).append(";\n");
+        }
+        src.append("            default:\n");
+        src.append("                return liquidrods.Context.NOT_FOUND;\n");
+        src.append("        }\n");
+        src.append("    }\n\n");
+
+        src.append("    @Override\n");
+        src.append("    public boolean hasHelper(String name, Class<?> argType) {\n");
+        src.append("        switch (name) {\n");
+        for (Map.Entry<String, List<ExecutableElement>> helper : helpers.entrySet()) {
+            src.append("            case ").append(literal(helper.getKey())).append(":\n");
+            src.append("                return ");
+            for (int i = 0; i < helper.getValue().size(); i++) {
+                if (i > 0) {
+                    src.append(" || ");
+                }
+                src.append(paramType(helper.getValue().get(i))).append(".class.isAssignableFrom(argType)");
+            }
+            src.append(";\n");
+        }
+        src.append("            default:\n");
+        src.append("                return false;\n");
+        src.append("        }\n");
+        src.append("    }\n\n");
+
+        src.append("    @Override\n");
+        src.append("    public Object helper(Object helper, String name, Object arg) {\n");
+        src.append("        switch (name) {\n");
+        for (Map.Entry<String, List<ExecutableElement>> helper : helpers.entrySet()) {
+            src.append("            case ").append(literal(helper.getKey())).append(":\n");
+            for (ExecutableElement method : helper.getValue()) {
+                String paramType = paramType(method);
+                src.append("                if (arg instanceof ").append(paramType).append(") {\n");
+                src.append("                    return ").append(target(method, modelType, "helper")).append(".").append(method.getSimpleName())
+                        .append("((").append(paramType).append(") arg);\n");
+                src.append("                }\n");
+            }
+            src.append("                break;\n");
+        }
+        src.append("        }\n");
+        src.append("        return liquidrods.Context.NOT_FOUND;\n");
+        src.append("    }\n");
+        src.append("}\n");
+
+        Writer out = processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? simpleName : packageName + "." + simpleName, type).openWriter();
+        try {
+            out.write(src.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the expression evaluating each property, keyed by property name
+     */
+    private Map<String, String> properties(TypeElement type, String modelType) {
+        Set<String> names = new TreeSet<String>();
+        for (TypeElement t : hierarchy(type)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(t.getEnclosedElements())) {
+                if (isAccessor(method)) {
+                    String name = method.getSimpleName().toString();
+                    names.add(name);
+                    String property = name.startsWith("get") ? name.substring(3) : name.startsWith("is") ? name.substring(2) : "";
+                    if (!property.isEmpty() && property.substring(0, 1).equals(property.substring(0, 1).toUpperCase(Locale.ENGLISH))) {
+                        names.add(property);
+                        names.add(property.substring(0, 1).toLowerCase(Locale.ENGLISH) + property.substring(1));
+                    }
+                }
+            }
+        }
+        for (VariableElement field : ElementFilter.fieldsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (field.getModifiers().contains(Modifier.PUBLIC)) {
+                names.add(field.getSimpleName().toString());
+            }
+        }
+
+        Map<String, String> res = new LinkedHashMap<String, String>();
+        for (String name : names) {
+            VariableElement field = findField(type, name);
+            if (field != null) {
+                res.put(name, target(field, modelType, "model") + "." + field.getSimpleName());
+                continue;
+            }
+            ExecutableElement method = findAccessor(type, name);
+            if (method == null) {
+                String capitalized = name.substring(0, 1).toUpperCase(Locale.ENGLISH) + name.substring(1);
+                method = findAccessor(type, "get" + capitalized);
+                if (method == null) {
+                    method = findAccessor(type, "is" + capitalized);
+                }
+            }
+            if (method != null) {
+                res.put(name, target(method, modelType, "model") + "." + method.getSimpleName() + "()");
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the single-arg public methods, grouped by name, in lookup order
+     */
+    private Map<String, List<ExecutableElement>> helpers(TypeElement type) {
+        Map<String, List<ExecutableElement>> res = new TreeMap<String, List<ExecutableElement>>();
+        for (TypeElement t : hierarchy(type)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(t.getEnclosedElements())) {
+                if (method.getModifiers().contains(Modifier.PUBLIC) && method.getParameters().size() == 1 && !isVoid(method.getReturnType())
+                        && !method.getParameters().get(0).asType().getKind().isPrimitive()) {
+                    String name = method.getSimpleName().toString();
+                    List<ExecutableElement> overloads = res.get(name);
+                    if (overloads == null) {
+                        overloads = new ArrayList<ExecutableElement>();
+                        res.put(name, overloads);
+                    }
+                    overloads.add(method);
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the class followed by its superclasses, which is the order the reflective lookup searches methods in
+     */
+    private List<TypeElement> hierarchy(TypeElement type) {
+        List<TypeElement> res = new ArrayList<TypeElement>();
+        for (TypeElement t = type; t != null; ) {
+            res.add(t);
+            TypeMirror superclass = t.getSuperclass();
+            t = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return res;
+    }
+
+    private ExecutableElement findAccessor(TypeElement type, String name) {
+        for (TypeElement t : hierarchy(type)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(t.getEnclosedElements())) {
+                if (isAccessor(method) && method.getSimpleName().contentEquals(name)) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    private VariableElement findField(TypeElement type, String name) {
+        for (VariableElement field : ElementFilter.fieldsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (field.getModifiers().contains(Modifier.PUBLIC) && field.getSimpleName().contentEquals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAccessor(ExecutableElement method) {
+        return method.getModifiers().contains(Modifier.PUBLIC) && method.getParameters().isEmpty() && !isVoid(method.getReturnType());
+    }
+
+    private static boolean isVoid(TypeMirror type) {
+        return type.getKind() == TypeKind.VOID || type.toString().equals("java.lang.Void");
+    }
+
+    private String target(Element member, String modelType, String variable) {
+        if (member.getModifiers().contains(Modifier.STATIC)) {
+            return erasure(member.getEnclosingElement().asType());
+        }
+        return "((" + modelType + ") " + variable + ")";
+    }
+
+    private String paramType(ExecutableElement method) {
+        return erasure(method.getParameters().get(0).asType());
+    }
+
+    private String erasure(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private static String literal(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,120 @@
+package liquidrods.processor;
+
+import liquidrods.Context;
+import liquidrods.TemplateAccessors;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.*;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TemplateModelProcessorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String TODO = "package sample;\n" +
+            "@liquidrods.TemplateModel\n" +
+            "public class Todo extends Base {\n" +
+            "    public String title = \"field\";\n" +
+            "    public String title() { return \"method\"; }\n" +
+            "    public String getName() { return \"getter\"; }\n" +
+            "    public String name() { return \"method\"; }\n" +
+            "    public boolean isDone() { return true; }\n" +
+            "    public int getCount() { return 42; }\n" +
+            "    public String shout(String s) { return s.toUpperCase(); }\n" +
+            "    public String shout(Integer i) { return \"#\" + i; }\n" +
+            "    public String getCaller() { return new Throwable().getStackTrace()[1].getClassName(); }\n" +
+            "    public String caller(String s) { return new Throwable().getStackTrace()[1].getClassName(); }\n" +
+            "    @liquidrods.TemplateModel\n" +
+            "    public static class Item {\n" +
+            "        public String label = \"item\";\n" +
+            "    }\n" +
+            "}\n";
+
+    private static final String TODO_ITEM = "package sample;\n" +
+            "@liquidrods.TemplateModel\n" +
+            "public class Todo_Item {\n" +
+            "    public String label = \"top-level item\";\n" +
+            "}\n";
+
+    private static final String BASE = "package sample;\n" +
+            "public class Base {\n" +
+            "    public String getInherited() { return \"inherited\"; }\n" +
+            "}\n";
+
+    private ClassLoader compile() throws Exception {
+        File src = tmp.newFolder("src");
+        File out = tmp.newFolder("out");
+        File pkg = new File(src, "sample");
+        pkg.mkdirs();
+        Files.write(new File(pkg, "Todo.java").toPath(), TODO.getBytes("utf-8"));
+        Files.write(new File(pkg, "Todo_Item.java").toPath(), TODO_ITEM.getBytes("utf-8"));
+        Files.write(new File(pkg, "Base.java").toPath(), BASE.getBytes("utf-8"));
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        String classpath = new File(TemplateAccessors.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                Arrays.asList("-classpath", classpath, "-d", out.getPath(), "-s", out.getPath()), null,
+                fileManager.getJavaFileObjects(new File(pkg, "Todo.java"), new File(pkg, "Todo_Item.java"), new File(pkg, "Base.java")));
+        task.setProcessors(Collections.singletonList(new TemplateModelProcessor()));
+        assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+        fileManager.close();
+
+        return new URLClassLoader(new URL[]{out.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    @Test
+    public void testGeneratedAccessors() throws Exception {
+        ClassLoader loader = compile();
+        Object todo = loader.loadClass("sample.Todo").newInstance();
+        TemplateAccessors accessors = (TemplateAccessors) loader.loadClass("sample.Todo" + TemplateAccessors.SUFFIX).newInstance();
+
+        assertEquals("field", accessors.property(todo, "title"));
+        assertEquals("method", accessors.property(todo, "name"));
+        assertEquals("getter", accessors.property(todo, "getName"));
+        assertEquals(true, accessors.property(todo, "done"));
+        assertEquals(42, accessors.property(todo, "count"));
+        assertEquals("inherited", accessors.property(todo, "inherited"));
+        assertFalse(accessors.hasProperty("missing"));
+        assertSame(Context.NOT_FOUND, accessors.property(todo, "missing"));
+
+        assertTrue(accessors.hasHelper("shout", String.class));
+        assertFalse(accessors.hasHelper("shout", Double.class));
+        assertEquals("ABC", accessors.helper(todo, "shout", "abc"));
+        assertEquals("#4", accessors.helper(todo, "shout", 4));
+
+        assertNotNull(loader.loadClass("sample.Todo$Item" + TemplateAccessors.SUFFIX));
+        assertNotNull(loader.loadClass("sample.Todo_Item" + TemplateAccessors.SUFFIX));
+    }
+
+    @Test
+    public void testContextUsesGeneratedAccessors() throws Exception {
+        ClassLoader loader = compile();
+        Object todo = loader.loadClass("sample.Todo").newInstance();
+        Object item = loader.loadClass("sample.Todo$Item").newInstance();
+
+        Context root = new Context(null, todo);
+        assertEquals("field", root.resolve("title"));
+        assertEquals(42, root.resolve("count"));
+        // called by the generated accessors rather than through reflection
+        assertEquals("sample.Todo" + TemplateAccessors.SUFFIX, root.resolve("caller"));
+
+        Context child = new Context(root, Collections.singletonMap("x", "abc"));
+        assertEquals("ABC", child.resolve("x.shout"));
+        assertEquals("sample.Todo" + TemplateAccessors.SUFFIX, child.resolve("x.caller"));
+
+        assertEquals("item", new Context(root, item).resolve("label"));
+        Object topLevelItem = loader.loadClass("sample.Todo_Item").newInstance();
+        assertEquals("top-level item", new Context(root, topLevelItem).resolve("label"));
+    }
+}
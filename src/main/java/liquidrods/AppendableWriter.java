@@ -0,0 +1,44 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Adapts an {@link Appendable} to the {@link Writer} API the renderers use
+ */
+class AppendableWriter extends Writer {
+    private final Appendable appendable;
+
+    AppendableWriter(Appendable appendable) {
+        this.appendable = appendable;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        appendable.append((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        appendable.append(CharBuffer.wrap(cbuf, off, len));
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        appendable.append(str);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        appendable.append(str, off, off + len);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,121 @@
+package liquidrods;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Persists parsed and linked templates in a local directory using {@link TemplateSerializer}, so that a freshly started JVM can skip parsing them.
+ * Enable it by calling {@link Config#astCache(AstCache)}.
+ * <p/>
+ * A cached template is only used if the parser configuration (i.e. the bodyless tags) and the content of all the sources it was built from are unchanged. Otherwise, it is parsed again and the cache entry is overwritten.
+ */
+public class AstCache {
+    private final File directory;
+
+    /**
+     * @param directory where to store the serialized templates. Created if needed.
+     */
+    public AstCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Load a template from the cache
+     *
+     * @param name   the template logical name
+     * @param config the configuration to use with the returned template
+     * @return the cached template, or null if it isn't cached or if it is stale
+     */
+    public Template load(String name, Config config) {
+        File file = fileFor(name);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                return TemplateSerializer.deserialize(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), config, true);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // a truncated or corrupted entry is just a cache miss
+            return null;
+        }
+    }
+
+    /**
+     * Store a template in the cache, under the hashes of the texts it was parsed from: the sources aren't loaded again, so that a source changing meanwhile doesn't end up
+     * with a stale entry matching its new content. A template that wasn't parsed from its sources by name isn't stored.
+     *
+     * @param name     the template logical name
+     * @param template the parsed template
+     * @param config   the configuration the template was parsed with
+     */
+    public void store(String name, Template template, Config config) {
+        Map<String, byte[]> sources = TemplateSerializer.sources(template, name);
+        if (sources == null) {
+            return;
+        }
+        byte[] serialized = TemplateSerializer.serialize(template, sources, config);
+        File file = fileFor(name);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create the directory " + directory);
+            }
+            File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(serialized);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    tmp.delete();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Remove a template from the cache
+     *
+     * @param name the template logical name
+     */
+    public void invalidate(String name) {
+        fileFor(name).delete();
+    }
+
+    private File fileFor(String name) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(name.getBytes("utf-8"));
+            StringBuilder res = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                res.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, res.append(".ast").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AstCache " + directory;
+    }
+}
@@ -0,0 +1,31 @@
+package liquidrods;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by {@link Template#bind(Class)} when some of the template selectors don't resolve against the model type
+ */
+public class BindException extends RuntimeException {
+    private final List<String> problems;
+
+    public BindException(List<String> problems) {
+        this.problems = Collections.unmodifiableList(problems);
+    }
+
+    /**
+     * @return the unresolved selectors, with where they appear in the template
+     */
+    public List<String> getProblems() {
+        return problems;
+    }
+
+    @Override
+    public String getMessage() {
+        StringBuilder res = new StringBuilder("Could not bind the template:");
+        for (String problem : problems) {
+            res.append("\n").append(problem);
+        }
+        return res.toString();
+    }
+}
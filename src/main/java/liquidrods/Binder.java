@@ -0,0 +1,205 @@
+package liquidrods;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Drives {@link Template#bind(Class)}: walks a template and statically resolves its variables and the parameters of its <code>if</code>, <code>ifnot</code>, <code>cache</code> and <code>for</code> tags
+ * against the model type, following the same rules as {@link Context#resolve(String)}.
+ * <p/>
+ * A selector is left as is, to be resolved dynamically, when it can't be decided statically: when it goes through a {@link Map} or a value of type {@link Object},
+ * when it starts with an iteration property (<code>#</code>, <code>##</code>, etc.) or when it appears in the body of a custom tag, which might change the context.
+ */
+class Binder {
+    static class BoundVariable extends LiquidrodsNode.Variable {
+        final Context.BoundSelector selector;
+
+        BoundVariable(LiquidrodsNode.Variable variable, Context.BoundSelector selector) {
+            super(variable.getName(), variable.isRaw(), variable.getFilename(), variable.getRow(), variable.getCol());
+            this.selector = selector;
+        }
+    }
+
+    static class BoundBlock extends LiquidrodsNode.Block {
+        final Context.BoundSelector selector;
+
+        BoundBlock(LiquidrodsNode.Block block, List<LiquidrodsNode> children, Context.BoundSelector selector) {
+            super(block.getName(), block.getArg(), children, block.getFilename(), block.getRow(), block.getCol());
+            this.selector = selector;
+        }
+    }
+
+    private static class Binding {
+        private final Context.BoundSelector selector;
+        private final Type type;
+
+        private Binding(Context.BoundSelector selector, Type type) {
+            this.selector = selector;
+            this.type = type;
+        }
+    }
+
+    private static final Binding DYNAMIC = new Binding(null, Object.class);
+
+    private final Class<?> helperType;
+    private final List<String> problems = new ArrayList<String>();
+
+    Binder(Class<?> modelType) {
+        this.helperType = modelType;
+    }
+
+    List<String> getProblems() {
+        return problems;
+    }
+
+    List<LiquidrodsNode> bind(List<LiquidrodsNode> nodes) {
+        LinkedList<Type> scopes = new LinkedList<Type>();
+        scopes.add(helperType);
+        return bind(nodes, scopes);
+    }
+
+    /**
+     * @param scopes the static types of the context models, innermost first
+     */
+    private List<LiquidrodsNode> bind(List<LiquidrodsNode> nodes, LinkedList<Type> scopes) {
+        List<LiquidrodsNode> res = new ArrayList<LiquidrodsNode>(nodes.size());
+        for (LiquidrodsNode node : nodes) {
+            if (node instanceof LiquidrodsNode.Variable) {
+                LiquidrodsNode.Variable variable = (LiquidrodsNode.Variable) node;
+                Binding binding = bind(variable.getName(), scopes, node);
+                res.add(binding.selector == null ? variable : new BoundVariable(variable, binding.selector));
+            } else if (node instanceof LiquidrodsNode.Block) {
+                LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                String name = block.getName();
+                if (("if".equals(name) || "ifnot".equals(name) || "cache".equals(name)) && block.getArg() != null) {
+                    Binding binding = bind(block.getArg(), scopes, node);
+                    res.add(bound(block, bind(block.getChildren(), scopes), binding));
+                } else if ("for".equals(name) && block.getArg() != null) {
+                    Binding binding = bind(block.getArg(), scopes, node);
+                    scopes.addFirst(elementType(binding.type));
+                    List<LiquidrodsNode> children = bind(block.getChildren(), scopes);
+                    scopes.removeFirst();
+                    res.add(bound(block, children, binding));
+                } else if ("block".equals(name) || "else".equals(name) || "cache".equals(name)) {
+                    res.add(new LiquidrodsNode.Block(name, block.getArg(), bind(block.getChildren(), scopes), block.getFilename(), block.getRow(), block.getCol()));
+                } else {
+                    res.add(block);
+                }
+            } else {
+                res.add(node);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy of a tag with other children, still bound if it was
+     */
+    static LiquidrodsNode.Block withChildren(LiquidrodsNode.Block block, List<LiquidrodsNode> children) {
+        if (block instanceof BoundBlock) {
+            return new BoundBlock(block, children, ((BoundBlock) block).selector);
+        }
+        return new LiquidrodsNode.Block(block.getName(), block.getArg(), children, block.getFilename(), block.getRow(), block.getCol());
+    }
+
+    private static LiquidrodsNode.Block bound(LiquidrodsNode.Block block, List<LiquidrodsNode> children, Binding binding) {
+        if (binding.selector == null) {
+            return new LiquidrodsNode.Block(block.getName(), block.getArg(), children, block.getFilename(), block.getRow(), block.getCol());
+        }
+        return new BoundBlock(block, children, binding.selector);
+    }
+
+    private Binding bind(String key, List<Type> scopes, LiquidrodsNode node) {
+        List<String> parts;
+        if (".".equals(key) || "this".equals(key)) {
+            parts = Collections.emptyList();
+        } else {
+            try {
+                parts = Context.selectorParts(key);
+            } catch (RuntimeException e) {
+                problems.add(e.getMessage() + " in " + node.getFilename() + " @ " + node.getRow() + ":" + node.getCol());
+                return DYNAMIC;
+            }
+        }
+        if (!parts.isEmpty() && parts.get(0).startsWith("#")) {
+            return DYNAMIC;
+        }
+        for (int depth = 0; depth < scopes.size(); depth++) {
+            Binding binding = bind(parts, depth, scopes.get(depth));
+            if (binding != null) {
+                return binding;
+            }
+        }
+        problems.add("Unknown property " + key + " in " + node.getFilename() + " @ " + node.getRow() + ":" + node.getCol());
+        return DYNAMIC;
+    }
+
+    /**
+     * @return the binding, DYNAMIC if it can't be decided statically or null if the selector doesn't resolve against this scope
+     */
+    private Binding bind(List<String> parts, int depth, Type scope) {
+        List<Context.Accessor> chain = new ArrayList<Context.Accessor>(parts.size());
+        List<String> names = new ArrayList<String>(parts.size());
+        Type type = scope;
+        for (String part : parts) {
+            if (".".equals(part) || "this".equals(part)) {
+                continue;
+            }
+            Class<?> clazz = rawClass(type);
+            if (clazz == Object.class || Map.class.isAssignableFrom(clazz)) {
+                return DYNAMIC;
+            }
+            Context.Accessor accessor = Context.accessorFor(clazz, helperType, part);
+            if (accessor == Context.Accessor.NoAccessor.INSTANCE) {
+                return null;
+            }
+            chain.add(accessor);
+            names.add(part);
+            type = Context.typeOf(clazz, helperType, part);
+            if (type == null) {
+                type = Object.class;
+            }
+        }
+        return new Binding(new Context.BoundSelector(depth, chain.toArray(new Context.Accessor[chain.size()]), names), type);
+    }
+
+    /**
+     * @return the type of the items {@link IterBlock} would iterate on given a value of the specified type
+     */
+    private static Type elementType(Type type) {
+        Class<?> clazz = rawClass(type);
+        if (Iterable.class.isAssignableFrom(clazz)) {
+            if (type instanceof ParameterizedType && ((ParameterizedType) type).getActualTypeArguments().length == 1) {
+                return ((ParameterizedType) type).getActualTypeArguments()[0];
+            }
+            return Object.class;
+        } else if (type instanceof GenericArrayType) {
+            return ((GenericArrayType) type).getGenericComponentType();
+        } else if (clazz.isArray()) {
+            return clazz.getComponentType();
+        } else if (Map.class.isAssignableFrom(clazz)) {
+            return Map.Entry.class;
+        } else {
+            return type;
+        }
+    }
+
+    private static Class<?> rawClass(Type type) {
+        if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            if (clazz.isPrimitive()) {
+                return Array.get(Array.newInstance(clazz, 1), 0).getClass();
+            }
+            return clazz;
+        } else if (type instanceof ParameterizedType) {
+            return rawClass(((ParameterizedType) type).getRawType());
+        } else if (type instanceof WildcardType) {
+            return rawClass(((WildcardType) type).getUpperBounds()[0]);
+        } else if (type instanceof TypeVariable) {
+            return rawClass(((TypeVariable<?>) type).getBounds()[0]);
+        } else if (type instanceof GenericArrayType) {
+            return Array.newInstance(rawClass(((GenericArrayType) type).getGenericComponentType()), 0).getClass();
+        }
+        return Object.class;
+    }
+}
@@ -0,0 +1,48 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * The handler for the cache tag. Renders its body once per value of its optional parameter, e.g. <code>{% cache user.id %}...{% end %}</code>,
+ * then replays that output until it expires from or is invalidated in the {@link Config#fragmentCache() fragment cache}.
+ * <p/>
+ * Without a fragment cache configured, the body is simply rendered every time.
+ */
+public class CacheBlock implements BlockHandler {
+    @Override
+    public boolean wantsCloseTag() {
+        return true;
+    }
+
+    @Override
+    public void render(final LiquidrodsNode.Block block, final Context context, final Config config, Writer out) throws IOException {
+        FragmentCache cache = config.fragmentCache();
+        if (cache == null) {
+            renderChildren(block, context, config, out);
+            return;
+        }
+        Object key = block.getArg() == null ? null : context.resolveArg(block);
+        FragmentCache.Fragment fragment = cache.get(new FragmentCache.Key(block, key), new FragmentCache.Loader() {
+            @Override
+            public String load() throws IOException {
+                StringBuilderWriter res = new StringBuilderWriter(new StringBuilder());
+                renderChildren(block, context, config, res);
+                return res.toString();
+            }
+        });
+        if (out instanceof Utf8Writer) {
+            ((Utf8Writer) out).writeEncoded(fragment.utf8());
+        } else {
+            out.write(fragment.text());
+        }
+    }
+
+    private static void renderChildren(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
+        List<LiquidrodsNode> children = block.getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            config.defaultRenderer().render(children.get(i), context, config, out);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package liquidrods;
+
+/**
+ * Implemented by immutable models to have the output of the templates they're rendered with cached, see {@link Template#cached(RenderCache)}.
+ */
+public interface CacheKeyed {
+    /**
+     * @return a key identifying the content of this model, e.g. an id and a version, with proper {@link Object#equals(Object)} and {@link Object#hashCode()} implementations:
+     * two models with equal keys must render the same output. Null to not cache the render.
+     */
+    Object cacheKey();
+}
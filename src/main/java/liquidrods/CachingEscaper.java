@@ -0,0 +1,173 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * An escaper remembering the escaped form of the short values it escapes, for templates escaping the same values (labels, names, statuses) over and over.
+ * <p/>
+ * Wraps another escaper, e.g. the default HTML one:
+ * <pre>
+ * config.escaper(new CachingEscaper(config.escaper()));
+ * </pre>
+ * The cache is a fixed-size table indexed by the hash of the values: a value evicts whatever was cached in its slot, so looking up and evicting cost the same as a hash map read.
+ * Values longer than the configured maximum length aren't cached. When the values are too diverse for the cache to pay off, i.e. when less than {@link #MIN_HIT_RATE} of the lookups
+ * of a window of {@link #WINDOW} lookups hit, the cache is bypassed for the next {@link #BYPASS} values before being tried again.
+ * <p/>
+ * The hit, miss and bypass counts tell whether the cache is worth it for a given workload.
+ */
+public class CachingEscaper implements Config.StreamingEscaper {
+    static final int WINDOW = 1024;
+    static final double MIN_HIT_RATE = 0.2;
+    static final int BYPASS = 16 * WINDOW;
+
+    private static class Entry {
+        private final String value;
+        private final String escaped;
+
+        private Entry(String value, String escaped) {
+            this.value = value;
+            this.escaped = escaped;
+        }
+    }
+
+    private final Config.Escaper delegate;
+    private final Entry[] entries;
+    private final int maxLength;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter bypassed = new StripedCounter();
+
+    /*
+     * Only steer the bypass: racy updates merely make a window a bit longer or shorter
+     */
+    private int windowLookups;
+    private int windowHits;
+    private int bypassRemaining;
+
+    /**
+     * Cache up to 1024 values of at most 64 characters
+     *
+     * @param delegate the escaper doing the actual escaping
+     */
+    public CachingEscaper(Config.Escaper delegate) {
+        this(delegate, 1024, 64);
+    }
+
+    /**
+     * @param delegate  the escaper doing the actual escaping
+     * @param size      the number of values the cache can hold, rounded up to a power of 2
+     * @param maxLength the length of the longest values to cache
+     */
+    public CachingEscaper(Config.Escaper delegate, int size, int maxLength) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("The cache size must be positive: " + size);
+        }
+        this.delegate = delegate;
+        this.entries = new Entry[Integer.highestOneBit(size * 2 - 1)];
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public String escape(String value) {
+        String res = cached(value);
+        return res == null ? delegate.escape(value) : res;
+    }
+
+    @Override
+    public void escape(String value, Writer out) throws IOException {
+        String res = cached(value);
+        if (res != null) {
+            out.write(res);
+        } else if (delegate instanceof Config.StreamingEscaper) {
+            ((Config.StreamingEscaper) delegate).escape(value, out);
+        } else {
+            out.write(delegate.escape(value));
+        }
+    }
+
+    /**
+     * @return the escaped value, from the cache or escaped and then cached, or null if the value bypasses the cache
+     */
+    private String cached(String value) {
+        if (value.length() > maxLength || bypassing()) {
+            bypassed.increment();
+            return null;
+        }
+        int h = value.hashCode();
+        int index = (h ^ (h >>> 16)) & (entries.length - 1);
+        Entry entry = entries[index];
+        boolean hit = entry != null && entry.value.equals(value);
+        sampled(hit);
+        if (hit) {
+            hits.increment();
+            return entry.escaped;
+        }
+        misses.increment();
+        String res = delegate.escape(value);
+        // the entries are immutable, so publishing them through a plain array is safe
+        entries[index] = new Entry(value, res);
+        return res;
+    }
+
+    private boolean bypassing() {
+        if (bypassRemaining > 0) {
+            bypassRemaining--;
+            return true;
+        }
+        return false;
+    }
+
+    private void sampled(boolean hit) {
+        if (hit) {
+            windowHits++;
+        }
+        if (++windowLookups >= WINDOW) {
+            if (windowHits < WINDOW * MIN_HIT_RATE) {
+                bypassRemaining = BYPASS;
+            }
+            windowLookups = 0;
+            windowHits = 0;
+        }
+    }
+
+    /**
+     * @return the number of values found in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of cached values that weren't found in the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of values that bypassed the cache, for being too long or while the hit rate was too low
+     */
+    public long getBypassed() {
+        return bypassed.sum();
+    }
+
+    /**
+     * @return the fraction of the escaped values that were found in the cache, bypasses included
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses() + getBypassed();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Reset the hit, miss and bypass counts
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        bypassed.reset();
+    }
+}
@@ -2,8 +2,11 @@ package liquidrods;
 
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Centralises various configuration items, like what escaper and template loader to use, the default renderer and registered handlers
@@ -22,6 +25,19 @@ public class Config {
         Reader load(String name);
     }
 
+    /**
+     * A template loader that is also able to enumerate the templates it knows about. Required by {@link Liquidrods#precompileAll(Config, String)}.
+     */
+    public interface ListableTemplateLoader extends TemplateLoader {
+        /**
+         * List the templates under a root
+         *
+         * @param root where to start looking for templates (e.g. a directory). The meaning of this parameter is up to the implementation
+         * @return the logical names of the found templates, which can then be passed to {@link #load(String)}
+         */
+        List<String> list(String root);
+    }
+
     /**
      * Escape a value before writing it to the result. Implement to customize the escaping process (e.g. Json escaping) and call {@link Config#escaper(Config.Escaper)}.
      * Liquirods uses a HTML escaper by default, unless configured otherwise.
@@ -36,6 +52,37 @@ public class Config {
         public String escape(String value);
     }
 
+    /**
+     * An escaper able to write the escaped value directly to the output, without building an intermediate string. The default HTML escaper is one.
+     */
+    public interface StreamingEscaper extends Escaper {
+        /**
+         * escape a value into a writer
+         *
+         * @param value the value to be escaped
+         * @param out   where to write the escaped value
+         * @throws IOException if the writer fails
+         */
+        void escape(String value, Writer out) throws IOException;
+    }
+
+    /**
+     * Write the values of a given type to the result. Implement to format domain types (e.g. money amounts) and call {@link Config#registerValueWriter(Class, Config.ValueWriter)}.
+     * <p/>
+     * Values without a writer registered for their class or one of its supertypes are converted with {@link String#valueOf(Object)} and escaped.
+     */
+    public interface ValueWriter {
+        /**
+         * write a value
+         *
+         * @param value   the value to write, never null
+         * @param escaper the escaper to apply on the written text, or null if the variable is raw or the text doesn't need escaping
+         * @param out     where to write the value
+         * @throws IOException if the writer fails
+         */
+        void write(Object value, Escaper escaper, Writer out) throws IOException;
+    }
+
     public interface Renderer {
         /**
          * This method gets called when the tag is to be rendered
@@ -60,20 +107,52 @@ public class Config {
         }
     };
 
-    private Escaper escaper = new Escaper() {
+    private Escaper escaper = new StreamingEscaper() {
         @Override
         public String escape(String value) {
             return HtmlUtils.htmlEscape(value);
         }
+
+        @Override
+        public void escape(String value, Writer out) throws IOException {
+            HtmlUtils.htmlEscape(value, out);
+        }
     };
 
     private Map<String, BlockHandler> handlers = new HashMap<String, BlockHandler>();
 
+    private Map<Class<?>, ValueWriter> valueWriters = new HashMap<Class<?>, ValueWriter>();
+
+    /**
+     * The writer to use for every class of value rendered so far, found by walking the class hierarchy on first use
+     */
+    private final ConcurrentMap<Class<?>, ValueWriter> resolvedValueWriters = new ConcurrentHashMap<Class<?>, ValueWriter>();
+
+    private TemplateCache templateCache;
+
+    private AstCache astCache;
+
+    private InlineTemplateCache inlineCache;
+
+    private boolean usePrecompiled;
+
+    private Instrumentation instrumentation;
+
+    private FragmentCache fragmentCache;
+
+    private boolean compactTemplates;
+
+    private int fileRegionThreshold;
+
+    private boolean internTemplates;
+
     private void registerDefaultHandlers() {
         registerHandler("if", new IfBlock());
         registerHandler("ifnot", new IfBlock().inverted());
         registerHandler("for", new IterBlock());
         registerHandler("else", new IfBlock.ElseBlock());
+        registerHandler("cache", new CacheBlock());
+        registerHandler("flush", new FlushBlock());
         registerHandler("include", new BlockHandler() {
             @Override
             public boolean wantsCloseTag() {
@@ -97,37 +176,77 @@ public class Config {
             }
         });
 
-        registerHandler("block", new BlockHandler() {
-            @Override
-            public boolean wantsCloseTag() {
-                return true;
-            }
+        registerHandler("block", new ChildrenBlock());
+    }
 
-            @Override
-            public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
-                for (LiquidrodsNode child : block.getChildren()) {
-                    config.defaultRenderer().render(child, context, config, out);
-                }
+    /**
+     * The handler for the block tag, which simply renders its body
+     */
+    static class ChildrenBlock implements BlockHandler {
+        @Override
+        public boolean wantsCloseTag() {
+            return true;
+        }
+
+        @Override
+        public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
+            List<LiquidrodsNode> children = block.getChildren();
+            for (int i = 0; i < children.size(); i++) {
+                config.defaultRenderer().render(children.get(i), context, config, out);
             }
-        });
+        }
+    }
+
+    private void registerDefaultValueWriters() {
+        registerValueWriter(Integer.class, ValueWriters.INTEGER);
+        registerValueWriter(Long.class, ValueWriters.INTEGER);
+        registerValueWriter(Short.class, ValueWriters.INTEGER);
+        registerValueWriter(Byte.class, ValueWriters.INTEGER);
+        registerValueWriter(Boolean.class, ValueWriters.BOOLEAN);
+        registerValueWriter(Double.class, ValueWriters.SAFE);
+        registerValueWriter(Float.class, ValueWriters.SAFE);
+        registerValueWriter(BigDecimal.class, ValueWriters.SAFE);
+        registerValueWriter(BigInteger.class, ValueWriters.SAFE);
+        registerValueWriter(Date.class, ValueWriters.SAFE);
     }
 
-    private Renderer defaultRenderer = new Renderer() {
+    private Renderer defaultRenderer = new DefaultRenderer();
+
+    private class DefaultRenderer implements Renderer {
 
         @Override
         public void render(LiquidrodsNode node, Context context, Config config, Writer out) throws IOException {
-            if (node instanceof LiquidrodsNode.Text) {
+            // renders with limits account for every node in their budget
+            RenderBudget budget = context.budget();
+            if (budget == null) {
+                renderNode(node, context, config, out);
+            } else {
+                LiquidrodsNode previous = budget.enter(node);
+                try {
+                    renderNode(node, context, config, out);
+                } finally {
+                    budget.exit(previous);
+                }
+            }
+            // progressive renders apply their flush policy after every node. Nodes rendered into another writer, e.g. captured by a cache tag, are left alone
+            FlushingWriter flushing = FlushingWriter.of(out);
+            if (flushing != null) {
+                flushing.rendered(node);
+            }
+        }
+
+        private void renderNode(LiquidrodsNode node, Context context, Config config, Writer out) throws IOException {
+            if (node instanceof TextArena.StoredText) {
+                ((TextArena.StoredText) node).write(out);
+            } else if (node instanceof FileRegions.RegionText) {
+                ((FileRegions.RegionText) node).write(out);
+            } else if (node instanceof LiquidrodsNode.Text) {
                 out.write(((LiquidrodsNode.Text) node).getValue());
             } else if (node instanceof LiquidrodsNode.Variable) {
                 final LiquidrodsNode.Variable variable = (LiquidrodsNode.Variable) node;
-                final Object value = context.resolve(variable.getName());
+                final Object value = context.resolve(variable);
                 if (value != null) {
-                    final String str = String.valueOf(value);
-                    if (variable.isRaw()) {
-                        out.write(str);
-                    } else {
-                        out.write(config.escaper.escape(str));
-                    }
+                    config.valueWriter(value.getClass()).write(value, variable.isRaw() ? null : config.escaper, out);
                 }
             } else {
                 LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
@@ -139,11 +258,11 @@ public class Config {
                 }
             }
         }
-    };
+    }
 
 
     /**
-     * Create a configuration by copying another
+     * Create a configuration by copying another. The template cache, if any, isn't copied as the cached templates are bound to the original configuration.
      *
      * @param config the configuration to clone
      */
@@ -151,7 +270,15 @@ public class Config {
         this.templateLoader = config.templateLoader;
         this.escaper = config.escaper;
         this.handlers = new HashMap<String, BlockHandler>(config.handlers);
+        this.valueWriters = new HashMap<Class<?>, ValueWriter>(config.valueWriters);
         this.defaultRenderer = config.defaultRenderer;
+        this.astCache = config.astCache;
+        this.usePrecompiled = config.usePrecompiled;
+        this.instrumentation = config.instrumentation;
+        this.fragmentCache = config.fragmentCache;
+        this.compactTemplates = config.compactTemplates;
+        this.fileRegionThreshold = config.fileRegionThreshold;
+        this.internTemplates = config.internTemplates;
     }
 
     /**
@@ -159,6 +286,7 @@ public class Config {
      */
     public Config() {
         registerDefaultHandlers();
+        registerDefaultValueWriters();
     }
 
     /**
@@ -191,6 +319,69 @@ public class Config {
         return this;
     }
 
+    /**
+     * @return the registered value writers, keyed by the class of values they write
+     */
+    public Map<Class<?>, ValueWriter> valueWriters() {
+        return Collections.unmodifiableMap(valueWriters);
+    }
+
+    /**
+     * Register a writer for the values of a type and its subtypes, or override an existing one.
+     * By default, numbers, booleans and dates have writers that don't allocate a string or skip the escaping.
+     *
+     * @param type   the type of values to write
+     * @param writer the writer to use, or null to remove the writer registered for this type
+     * @return self, to enable chaining
+     */
+    public final Config registerValueWriter(Class<?> type, ValueWriter writer) {
+        if (writer == null) {
+            valueWriters.remove(type);
+        } else {
+            valueWriters.put(type, writer);
+        }
+        resolvedValueWriters.clear();
+        return this;
+    }
+
+    /**
+     * Find the writer to use for a class of values: the one registered for the class itself, or else for its nearest superclass, or else for one of the interfaces it implements.
+     * The result is cached per class.
+     *
+     * @param type the class of the value to write
+     * @return the writer to use, never null
+     */
+    public ValueWriter valueWriter(Class<?> type) {
+        ValueWriter res = resolvedValueWriters.get(type);
+        if (res == null) {
+            res = findValueWriter(type);
+            resolvedValueWriters.put(type, res);
+        }
+        return res;
+    }
+
+    private ValueWriter findValueWriter(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            ValueWriter res = valueWriters.get(c);
+            if (res != null) {
+                return res;
+            }
+        }
+        Deque<Class<?>> interfaces = new ArrayDeque<Class<?>>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            interfaces.addAll(Arrays.asList(c.getInterfaces()));
+        }
+        while (!interfaces.isEmpty()) {
+            Class<?> i = interfaces.removeFirst();
+            ValueWriter res = valueWriters.get(i);
+            if (res != null) {
+                return res;
+            }
+            interfaces.addAll(Arrays.asList(i.getInterfaces()));
+        }
+        return ValueWriters.DEFAULT;
+    }
+
     /**
      * @return the configured template loader
      */
@@ -209,6 +400,185 @@ public class Config {
         return this;
     }
 
+    /**
+     * @return the configured template cache, or null if templates aren't cached
+     */
+    public TemplateCache templateCache() {
+        return templateCache;
+    }
+
+    /**
+     * Configure a template cache, so that templates parsed by name are only loaded and parsed once
+     *
+     * @param templateCache the cache to use, or null to disable caching
+     * @return self, to enable chaining
+     */
+    public Config templateCache(TemplateCache templateCache) {
+        this.templateCache = templateCache;
+        return this;
+    }
+
+    /**
+     * @return the cache of the templates parsed from text, or null if they aren't cached
+     */
+    public InlineTemplateCache inlineCache() {
+        return inlineCache;
+    }
+
+    /**
+     * Configure a cache for the templates parsed from text with {@link Liquidrods#parseInline(CharSequence, Config)}, so that a given text is only parsed once.
+     * Like the template cache, it isn't copied by {@link #Config(Config)}.
+     *
+     * @param inlineCache the cache to use, or null to disable caching
+     * @return self, to enable chaining
+     */
+    public Config inlineCache(InlineTemplateCache inlineCache) {
+        this.inlineCache = inlineCache;
+        return this;
+    }
+
+    /**
+     * @return the configured on-disk cache of parsed templates, or null if none was configured
+     */
+    public AstCache astCache() {
+        return astCache;
+    }
+
+    /**
+     * Configure an on-disk cache of parsed templates, so that templates parsed by name don't have to be parsed again after a restart
+     *
+     * @param astCache the cache to use, or null to disable it
+     * @return self, to enable chaining
+     */
+    public Config astCache(AstCache astCache) {
+        this.astCache = astCache;
+        return this;
+    }
+
+    /**
+     * @return whether templates precompiled at build time are used instead of their sources
+     */
+    public boolean usePrecompiled() {
+        return usePrecompiled;
+    }
+
+    /**
+     * Configure whether the templates precompiled at build time (found in the classpath under {@link Liquidrods#PRECOMPILED_PREFIX}) should be used instead of their sources. Disabled by default.
+     * <p/>
+     * Only enable it when the templates are loaded from the sources they were precompiled from: a precompiled template is used whatever the template loader,
+     * and its sources aren't checked, so template changes aren't picked up until the next build.
+     *
+     * @param usePrecompiled true to use the precompiled templates
+     * @return self, to enable chaining
+     */
+    public Config usePrecompiled(boolean usePrecompiled) {
+        this.usePrecompiled = usePrecompiled;
+        return this;
+    }
+
+    /**
+     * @return whether the templates parsed by name are stored in their {@link Template#compact() compact form}
+     */
+    public boolean compactTemplates() {
+        return compactTemplates;
+    }
+
+    /**
+     * Configure whether the templates parsed by name should be stored in their {@link Template#compact() compact form}, which takes less memory. Disabled by default.
+     *
+     * @param compactTemplates true to compact the templates
+     * @return self, to enable chaining
+     */
+    public Config compactTemplates(boolean compactTemplates) {
+        this.compactTemplates = compactTemplates;
+        return this;
+    }
+
+    /**
+     * @return whether the nodes of the templates are interned
+     */
+    public boolean internTemplates() {
+        return internTemplates;
+    }
+
+    /**
+     * Configure whether the nodes of the templates created with this configuration should be interned in a pool shared by all templates, so that equal texts, selectors
+     * and nodes are stored once, e.g. when templates copied between themes or reloaded hold the same snippets. The pool only references them weakly.
+     * Interned nodes can't be modified anymore. Disabled by default.
+     * <p/>
+     * Templates loaded precompiled or from the {@link #astCache(AstCache) AST cache} are interned too. The texts kept in the {@link TemplateCache#TemplateCache(TextArena) text arena} of a cache
+     * or in {@link #fileRegionThreshold(int) their files} aren't pooled, only the nodes around them.
+     *
+     * @param internTemplates true to intern the templates nodes
+     * @return self, to enable chaining
+     */
+    public Config internTemplates(boolean internTemplates) {
+        this.internTemplates = internTemplates;
+        return this;
+    }
+
+    /**
+     * @return the length, in characters, from which the texts of the templates parsed by name are kept as regions of their files, or 0 if they're all kept in memory
+     */
+    public int fileRegionThreshold() {
+        return fileRegionThreshold;
+    }
+
+    /**
+     * Configure the length from which the static texts of the templates parsed by name are kept as references to the regions of their files instead of in memory.
+     * Rendering into a {@link java.nio.channels.WritableByteChannel} then transfers these regions from the files directly, see {@link Template#render(Object, java.nio.channels.WritableByteChannel)},
+     * while rendering into anything else reads them from the files.
+     * <p/>
+     * Only applies to the templates loaded by a {@link DirectoryTemplateLoader}, whose files are then kept open. A template file rewritten in place after it was parsed is only detected
+     * when its size changed, so reload the templates when their files are edited.
+     * Disabled by default.
+     *
+     * @param fileRegionThreshold the length of the shortest texts to keep in their files, in characters, or 0 to disable it
+     * @return self, to enable chaining
+     */
+    public Config fileRegionThreshold(int fileRegionThreshold) {
+        this.fileRegionThreshold = fileRegionThreshold;
+        return this;
+    }
+
+    /**
+     * @return the instrumentation notified of parses and renders, or null if there is none
+     */
+    public Instrumentation instrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * Configure an instrumentation to be notified of the parses and renders of the templates using this configuration, e.g. a {@link RenderMetrics}.
+     * If it is a {@link ResolveInstrumentation}, it is also notified of the slow variables and tag parameters.
+     * There is none by default, in which case rendering doesn't pay anything for it.
+     *
+     * @param instrumentation the instrumentation to use, or null to disable it
+     * @return self, to enable chaining
+     */
+    public Config instrumentation(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+        return this;
+    }
+
+    /**
+     * @return the cache storing the output of the <code>cache</code> tags, or null if there is none
+     */
+    public FragmentCache fragmentCache() {
+        return fragmentCache;
+    }
+
+    /**
+     * Configure the cache storing the output of the <code>cache</code> tags. There is none by default, in which case the body of these tags is rendered every time.
+     *
+     * @param fragmentCache the cache to use, or null to disable fragment caching
+     * @return self, to enable chaining
+     */
+    public Config fragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+        return this;
+    }
+
     /**
      * @return the configured escaper
      */
@@ -234,6 +604,13 @@ public class Config {
         return defaultRenderer;
     }
 
+    /**
+     * @return whether the default renderer is the built-in one, i.e. wasn't replaced or decorated (e.g. by a {@link RenderProfiler})
+     */
+    boolean hasBuiltinRenderer() {
+        return defaultRenderer instanceof DefaultRenderer;
+    }
+
     /**
      * Configures a custom tag renderer
      *
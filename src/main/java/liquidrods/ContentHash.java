@@ -0,0 +1,107 @@
+package liquidrods;
+
+/**
+ * The 128-bit MurmurHash3 (x64 variant) of a text, hashed as its UTF-16LE encoding without building it. Keys the inline templates by their content,
+ * see {@link InlineTemplateCache}. It isn't collision resistant: colliding texts can be crafted, so a matching hash doesn't mean a matching text.
+ */
+final class ContentHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long h1;
+    private final long h2;
+
+    private ContentHash(long h1, long h2) {
+        this.h1 = h1;
+        this.h2 = h2;
+    }
+
+    static ContentHash of(CharSequence text) {
+        int length = text.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        // 16 bytes, i.e. 8 chars, per block
+        for (; i + 8 <= length; i += 8) {
+            long k1 = chars(text, i, 4);
+            long k2 = chars(text, i + 4, 4);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int tail = length - i;
+        if (tail > 4) {
+            h2 ^= mixK2(chars(text, i + 4, tail - 4));
+        }
+        if (tail > 0) {
+            h1 ^= mixK1(chars(text, i, Math.min(tail, 4)));
+        }
+
+        long bytes = 2L * length;
+        h1 ^= bytes;
+        h2 ^= bytes;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new ContentHash(h1, h2);
+    }
+
+    /**
+     * @return count chars packed little-endian in a long
+     */
+    private static long chars(CharSequence text, int from, int count) {
+        long res = 0;
+        for (int i = 0; i < count; i++) {
+            res |= (long) text.charAt(from + i) << (16 * i);
+        }
+        return res;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb93e53a3fe53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ContentHash && h1 == ((ContentHash) o).h1 && h2 == ((ContentHash) o).h2;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) h1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", h1, h2);
+    }
+}
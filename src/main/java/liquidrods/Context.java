@@ -4,11 +4,12 @@ import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Used to resolve property selectors against a model object using reflection.
+ * Used to resolve property selectors against a model object using reflection, or the accessors generated at compile time for the classes annotated with {@link TemplateModel}.
  * Contexts are hierarchical. A tag may decide to change the context of its childrenby pasing them a part of the original model.
  * For example, the <code>{% for %}</code> tag uses the original model to resolve the collection property but passes a context wrapping the current collection element being iterated on to its children.
  */
@@ -18,20 +19,108 @@ public class Context {
      */
     public static final Object NOT_FOUND = new Object();
     private static final Class[] NO_ARGS = new Class[]{};
+    private static final Object[] NO_VALUES = new Object[]{};
+    private static final ThreadLocal<Key> PROBES = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
     private static Map<Key, Accessor> accessorCache = new ConcurrentHashMap<Key, Accessor>();
     private static Map<String, List<String>> partsCache = new ConcurrentHashMap<String, List<String>>();
+    private static final TemplateAccessors NO_GENERATED_ACCESSORS = new TemplateAccessors() {
+        @Override
+        public boolean hasProperty(String name) {
+            return false;
+        }
+
+        @Override
+        public Object property(Object model, String name) {
+            return NOT_FOUND;
+        }
+
+        @Override
+        public boolean hasHelper(String name, Class<?> argType) {
+            return false;
+        }
+
+        @Override
+        public Object helper(Object helper, String name, Object arg) {
+            return NOT_FOUND;
+        }
+    };
+    private static Map<Class<?>, TemplateAccessors> generatedAccessorsCache = new ConcurrentHashMap<Class<?>, TemplateAccessors>();
     private final Context parent;
-    private final Object data;
+    private Object data;
     private final Object helper;
+    private final ResolveInstrumentation instrumentation;
+    private final RenderBudget budget;
+    private final CacheStats cacheStats;
+
+    /**
+     * Counts the hits and misses of the accessor and parts caches, for the renders of the configuration a {@link RenderMetrics} is installed on
+     */
+    static class CacheStats {
+        final StripedCounter accessorHits = new StripedCounter();
+        final StripedCounter accessorMisses = new StripedCounter();
+        final StripedCounter partsHits = new StripedCounter();
+        final StripedCounter partsMisses = new StripedCounter();
+
+        void reset() {
+            accessorHits.reset();
+            accessorMisses.reset();
+            partsHits.reset();
+            partsMisses.reset();
+        }
+    }
 
     /**
      * @param parent the parent context, if any. Can be null for a root context.
      * @param root   the model object against which this context will resolve properties selectors.
      */
     public Context(Context parent, Object root) {
+        this(parent, root, parent == null ? root : parent.helper, parent == null ? null : parent.instrumentation, parent == null ? null : parent.budget,
+                parent == null ? null : parent.cacheStats);
+    }
+
+    private Context(Context parent, Object root, Object helper, ResolveInstrumentation instrumentation, RenderBudget budget, CacheStats cacheStats) {
         this.parent = parent;
         this.data = root;
-        this.helper = parent == null ? data : parent.helper;
+        this.helper = helper;
+        this.instrumentation = instrumentation;
+        this.budget = budget;
+        this.cacheStats = cacheStats;
+    }
+
+    /**
+     * Creates the root context of a render, shared with all its descendants
+     *
+     * @param constants       the constants a {@link Template#specialize(Object) specialized} template was specialized against, oldest first: the properties the model
+     *                        doesn't define are looked up in them, from the newest. The model is still the root model helpers are looked up in.
+     * @param instrumentation where to report slow variables and tag parameters, if anywhere
+     * @param budget          the limits of the render, if any
+     * @param cacheStats      where to count the caches hits and misses, if anywhere
+     */
+    static Context root(Object root, List<Object> constants, ResolveInstrumentation instrumentation, RenderBudget budget, CacheStats cacheStats) {
+        Context parent = null;
+        for (Object constant : constants) {
+            parent = new Context(parent, constant, constant, instrumentation, budget, cacheStats);
+        }
+        return new Context(parent, root, root, instrumentation, budget, cacheStats);
+    }
+
+    /**
+     * Replaces the model of a child context, so that the {@link IterBlock} can reuse the same context across iterations instead of allocating one per item
+     */
+    void rebind(Object root) {
+        this.data = root;
+    }
+
+    /**
+     * @return the limits of the current render, or null if it is unlimited
+     */
+    RenderBudget budget() {
+        return budget;
     }
 
     private static List<String> parts(String key) {
@@ -76,6 +165,94 @@ public class Context {
         return res;
     }
 
+    /**
+     * Splits a property selector into its segments
+     */
+    static List<String> selectorParts(String key) {
+        return selectorParts(key, null);
+    }
+
+    private static List<String> selectorParts(String key, CacheStats cacheStats) {
+        List<String> parts = partsCache.get(key);
+        if (parts == null) {
+            parts = parts(key);
+            partsCache.put(key, parts);
+            if (cacheStats != null) {
+                cacheStats.partsMisses.increment();
+            }
+        } else if (cacheStats != null) {
+            cacheStats.partsHits.increment();
+        }
+        return parts;
+    }
+
+    /**
+     * Evaluates a variable. Same as {@link #resolve(String)} with the variable name, except for the variables of a template bound with {@link Template#bind(Class)}, which are evaluated using their precomputed accessors.
+     *
+     * @param variable the variable to evaluate
+     * @return the variable value
+     */
+    public Object resolve(LiquidrodsNode.Variable variable) {
+        if (instrumentation == null) {
+            return resolveUninstrumented(variable);
+        }
+        long start = System.nanoTime();
+        Object res = resolveUninstrumented(variable);
+        long nanos = System.nanoTime() - start;
+        if (nanos >= instrumentation.slowResolveThresholdNanos()) {
+            instrumentation.slowResolve(variable, variable.getName(), nanos);
+        }
+        return res;
+    }
+
+    private Object resolveUninstrumented(LiquidrodsNode.Variable variable) {
+        if (variable instanceof Binder.BoundVariable) {
+            return resolve(((Binder.BoundVariable) variable).selector);
+        }
+        return resolve(variable.getName());
+    }
+
+    /**
+     * Evaluates a tag parameter. Same as {@link #resolve(String)} with the tag parameter, except for the tags of a template bound with {@link Template#bind(Class)}, which are evaluated using their precomputed accessors.
+     *
+     * @param block the tag whose parameter is to be evaluated
+     * @return the parameter value
+     */
+    public Object resolveArg(LiquidrodsNode.Block block) {
+        if (instrumentation == null) {
+            return resolveArgUninstrumented(block);
+        }
+        long start = System.nanoTime();
+        Object res = resolveArgUninstrumented(block);
+        long nanos = System.nanoTime() - start;
+        if (nanos >= instrumentation.slowResolveThresholdNanos()) {
+            instrumentation.slowResolve(block, block.getArg(), nanos);
+        }
+        return res;
+    }
+
+    private Object resolveArgUninstrumented(LiquidrodsNode.Block block) {
+        if (block instanceof Binder.BoundBlock) {
+            return resolve(((Binder.BoundBlock) block).selector);
+        }
+        return resolve(block.getArg());
+    }
+
+    private Object resolve(BoundSelector selector) {
+        Context target = this;
+        for (int i = 0; i < selector.depth; i++) {
+            target = target.parent;
+        }
+        Object base = target.data;
+        for (int i = 0; i < selector.chain.length; i++) {
+            if (base == null) {
+                throw new NullPointerException("Trying to access the property " + selector.parts.get(i) + " on a null object");
+            }
+            base = selector.chain[i].get(base, helper, this);
+        }
+        return base;
+    }
+
     /**
      * Evaluates a property selector against the specified model object and returns its value. If the property is not found, this method delegates the parent context if one was provided. If not, returs null.
      *
@@ -86,11 +263,7 @@ public class Context {
         if (".".equals(key) || "this".equals(key)) {
             return data;
         } else {
-            List<String> parts = partsCache.get(key);
-            if (parts == null) {
-                parts = parts(key);
-                partsCache.put(key, parts);
-            }
+            List<String> parts = selectorParts(key, cacheStats);
             Object base = data;
             for (int i = 0; i < parts.size(); i++) {
                 String part = parts.get(i);
@@ -143,51 +316,142 @@ public class Context {
 
 
     private Accessor accessorFor(Object data, String prop) {
-        Key key = new Key(prop, data.getClass(), helper == null ? null : helper.getClass());
-        if (accessorCache.containsKey(key)) {
-            return accessorCache.get(key);
-        } else {
-            Accessor accessor = null;
-            Method getter = searchMethod("get" + capitalize(prop), data.getClass(), NO_ARGS, true);
-            if (getter == null) {
-                getter = searchMethod("is" + capitalize(prop), data.getClass(), NO_ARGS, true);
-            }
-            if (getter != null) {
-                getter.setAccessible(true);
-                accessor = new Accessor.MethodAccessor(getter);
-            }
+        return accessorFor(data.getClass(), helper == null ? null : helper.getClass(), prop, cacheStats);
+    }
 
-            Method method = searchMethod(prop, data.getClass(), NO_ARGS, true);
-            if (method != null) {
-                method.setAccessible(true);
-                accessor = new Accessor.MethodAccessor(method);
-            }
+    /**
+     * @return the accessor for a property of a given class, possibly a helper method of the helper class, or NoAccessor if there is none
+     */
+    static Accessor accessorFor(Class<?> clazz, Class<?> helperClass, String prop) {
+        return accessorFor(clazz, helperClass, prop, null);
+    }
 
-            try {
-                Field field = data.getClass().getField(prop);
-                field.setAccessible(true);
-                accessor = new Accessor.FieldAccessor(field);
-            } catch (NoSuchFieldException e) {
-                //nop
+    private static Accessor accessorFor(Class<?> clazz, Class<?> helperClass, String prop, CacheStats cacheStats) {
+        Key probe = PROBES.get().set(prop, clazz, helperClass);
+        Accessor cached = accessorCache.get(probe);
+        probe.set(null, null, null);
+        if (cached != null) {
+            if (cacheStats != null) {
+                cacheStats.accessorHits.increment();
+            }
+            return cached;
+        } else {
+            if (cacheStats != null) {
+                cacheStats.accessorMisses.increment();
+            }
+            Accessor accessor = null;
+            TemplateAccessors generated = generatedAccessors(clazz);
+            if (generated != NO_GENERATED_ACCESSORS) {
+                if (generated.hasProperty(prop)) {
+                    accessor = new Accessor.GeneratedAccessor(generated, prop);
+                }
+            } else {
+                accessor = reflectiveAccessor(clazz, prop);
             }
 
-            if (accessor == null && helper != null) {
-                Method helperMethod = searchMethod(prop, helper.getClass(), new Class[]{data.getClass()}, true);
-                if (helperMethod != null) {
-                    helperMethod.setAccessible(true);
-                    accessor = new Accessor.HelperAccessor(helperMethod);
+            if (accessor == null && helperClass != null) {
+                TemplateAccessors generatedHelper = generatedAccessors(helperClass);
+                if (generatedHelper != NO_GENERATED_ACCESSORS) {
+                    if (generatedHelper.hasHelper(prop, clazz)) {
+                        accessor = new Accessor.GeneratedHelperAccessor(generatedHelper, prop);
+                    }
+                } else {
+                    accessor = reflectiveHelperAccessor(clazz, helperClass, prop);
                 }
             }
 
             if (accessor == null) {
                 accessor = Accessor.NoAccessor.INSTANCE;
             }
-            accessorCache.put(key, accessor);
+            accessorCache.put(new Key(prop, clazz, helperClass), accessor);
 
             return accessor;
         }
     }
 
+    /**
+     * The static type of a property of a given class, possibly a helper method of the helper class
+     *
+     * @return the property type, or null if there is no such property
+     */
+    static Type typeOf(Class<?> clazz, Class<?> helperClass, String prop) {
+        Accessor accessor = reflectiveAccessor(clazz, prop);
+        if (accessor == null && helperClass != null) {
+            accessor = reflectiveHelperAccessor(clazz, helperClass, prop);
+        }
+        if (accessor instanceof Accessor.MethodAccessor) {
+            return ((Accessor.MethodAccessor) accessor).getter.getGenericReturnType();
+        } else if (accessor instanceof Accessor.FieldAccessor) {
+            return ((Accessor.FieldAccessor) accessor).field.getGenericType();
+        } else if (accessor instanceof Accessor.HelperAccessor) {
+            return ((Accessor.HelperAccessor) accessor).method.getGenericReturnType();
+        }
+        return null;
+    }
+
+    private static Accessor reflectiveHelperAccessor(Class<?> clazz, Class<?> helperClass, String prop) {
+        Method helperMethod = searchMethod(prop, helperClass, new Class[]{clazz}, true);
+        if (helperMethod != null) {
+            helperMethod.setAccessible(true);
+            return new Accessor.HelperAccessor(helperMethod);
+        }
+        return null;
+    }
+
+    private static Accessor reflectiveAccessor(Class<?> clazz, String prop) {
+        Accessor accessor = null;
+        Method getter = searchMethod("get" + capitalize(prop), clazz, NO_ARGS, true);
+        if (getter == null) {
+            getter = searchMethod("is" + capitalize(prop), clazz, NO_ARGS, true);
+        }
+        if (getter != null) {
+            getter.setAccessible(true);
+            accessor = new Accessor.MethodAccessor(getter);
+        }
+
+        Method method = searchMethod(prop, clazz, NO_ARGS, true);
+        if (method != null) {
+            method.setAccessible(true);
+            accessor = new Accessor.MethodAccessor(method);
+        }
+
+        try {
+            Field field = clazz.getField(prop);
+            field.setAccessible(true);
+            accessor = new Accessor.FieldAccessor(field);
+        } catch (NoSuchFieldException e) {
+            //nop
+        }
+        return accessor;
+    }
+
+    /**
+     * Looks up the accessors generated at compile time for a class annotated with {@link TemplateModel}
+     *
+     * @return the generated accessors, or NO_GENERATED_ACCESSORS if there are none
+     */
+    private static TemplateAccessors generatedAccessors(Class<?> clazz) {
+        TemplateAccessors res = generatedAccessorsCache.get(clazz);
+        if (res == null) {
+            res = NO_GENERATED_ACCESSORS;
+            if (clazz.getClassLoader() != null) {
+                String accessorsName = clazz.getName() + TemplateAccessors.SUFFIX;
+                try {
+                    Class<?> accessorsClass = Class.forName(accessorsName, true, clazz.getClassLoader());
+                    if (TemplateAccessors.class.isAssignableFrom(accessorsClass)) {
+                        res = (TemplateAccessors) accessorsClass.newInstance();
+                    }
+                } catch (ClassNotFoundException e) {
+                    //nop: not annotated
+                } catch (Exception e) {
+                    throw new RuntimeException("Could not instantiate " + accessorsName, e);
+                }
+            }
+            generatedAccessorsCache.put(clazz, res);
+        }
+        return res;
+    }
+
     private static String capitalize(String name) {
         return name.substring(0, 1).toUpperCase(Locale.ENGLISH) + name.substring(1);
     }
@@ -221,15 +485,26 @@ public class Context {
         return null;
     }
 
+    /**
+     * The accessors cache key. The cache is looked up with a per-thread mutable probe, so that a lookup doesn't allocate, and only the stored keys are immutable.
+     */
     private static class Key implements Serializable {
-        public final String name;
-        public final Class<?> clazz;
-        public final Class<?> helperClazz;
+        private String name;
+        private Class<?> clazz;
+        private Class<?> helperClazz;
+
+        private Key() {
+        }
 
         private Key(String name, Class<?> clazz, Class<?> helperClazz) {
+            set(name, clazz, helperClazz);
+        }
+
+        private Key set(String name, Class<?> clazz, Class<?> helperClazz) {
             this.name = name;
             this.clazz = clazz;
             this.helperClazz = helperClazz;
+            return this;
         }
 
         @Override
@@ -260,7 +535,22 @@ public class Context {
         }
     }
 
-    private interface Accessor {
+    /**
+     * A property selector whose accessors were computed ahead of time by {@link Binder}: it is evaluated by walking up depth contexts and applying the chain of accessors to that context's model.
+     */
+    static final class BoundSelector {
+        final int depth;
+        final Accessor[] chain;
+        final List<String> parts;
+
+        BoundSelector(int depth, Accessor[] chain, List<String> parts) {
+            this.depth = depth;
+            this.chain = chain;
+            this.parts = parts;
+        }
+    }
+
+    interface Accessor {
         Object get(Object root, Object helper, Context context);
 
         public static class MethodAccessor implements Accessor {
@@ -273,7 +563,7 @@ public class Context {
             @Override
             public Object get(Object root, Object helper, Context context) {
                 try {
-                    return getter.invoke(root);
+                    return getter.invoke(root, NO_VALUES);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }
@@ -297,6 +587,36 @@ public class Context {
             }
         }
 
+        public static class GeneratedAccessor implements Accessor {
+            private final TemplateAccessors accessors;
+            private final String property;
+
+            public GeneratedAccessor(TemplateAccessors accessors, String property) {
+                this.accessors = accessors;
+                this.property = property;
+            }
+
+            @Override
+            public Object get(Object root, Object helper, Context context) {
+                return accessors.property(root, property);
+            }
+        }
+
+        public static class GeneratedHelperAccessor implements Accessor {
+            private final TemplateAccessors accessors;
+            private final String method;
+
+            public GeneratedHelperAccessor(TemplateAccessors accessors, String method) {
+                this.accessors = accessors;
+                this.method = method;
+            }
+
+            @Override
+            public Object get(Object root, Object helper, Context context) {
+                return accessors.helper(helper, method, root);
+            }
+        }
+
         public static class HelperAccessor implements Accessor {
             private final Method method;
 
@@ -0,0 +1,52 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Counts the characters written through it to another writer
+ */
+class CountingWriter extends Writer {
+    private final Writer delegate;
+    private long count;
+
+    CountingWriter(Writer delegate) {
+        this.delegate = delegate;
+    }
+
+    Writer getDelegate() {
+        return delegate;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        delegate.write(c);
+        count++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        delegate.write(cbuf, off, len);
+        count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        delegate.write(str, off, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
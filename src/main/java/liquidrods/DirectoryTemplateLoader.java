@@ -0,0 +1,70 @@
+package liquidrods;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A template loader that reads utf-8 encoded templates from a base directory. Template names are paths relative to that directory, using <code>/</code> as a separator.
+ */
+public class DirectoryTemplateLoader implements Config.ListableTemplateLoader {
+    private final File baseDir;
+
+    /**
+     * @param baseDir the directory the template names are relative to
+     */
+    public DirectoryTemplateLoader(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    @Override
+    public Reader load(String name) {
+        try {
+            return new InputStreamReader(new FileInputStream(file(name)), "utf-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param name a template name
+     * @return the file the template is read from
+     */
+    public File file(String name) {
+        return new File(baseDir, name);
+    }
+
+    @Override
+    public List<String> list(String root) {
+        List<String> res = new ArrayList<String>();
+        File dir = root == null || root.isEmpty() ? baseDir : new File(baseDir, root);
+        if (!dir.isDirectory()) {
+            throw new RuntimeException("Not a directory: " + dir);
+        }
+        collect(dir, root == null || root.isEmpty() ? "" : (root.endsWith("/") ? root : root + "/"), res);
+        Collections.sort(res);
+        return res;
+    }
+
+    private static void collect(File dir, String prefix, List<String> res) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, prefix + file.getName() + "/", res);
+            } else if (!file.isHidden()) {
+                res.add(prefix + file.getName());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryTemplateLoader " + baseDir;
+    }
+}
@@ -0,0 +1,364 @@
+package liquidrods;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces the large static texts of templates loaded by a {@link DirectoryTemplateLoader} by references to the byte ranges of the files they come from,
+ * see {@link Config#fileRegionThreshold(int)}.
+ * <p/>
+ * When rendering into a {@link WritableByteChannel}, e.g. a socket or a file, those ranges are sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ * so that their bytes don't even go through the Java heap. Otherwise, they're read from the file on every render.
+ * <p/>
+ * A region is only used if its bytes, when the template is stored, decode to the parsed text: a file changed since it was parsed, or with malformed UTF-8 shifting the offsets,
+ * keeps its texts in memory. The files are then kept open, one channel per file shared by all the templates stored from it, so that a file replaced by a new one, e.g. by a deployment, still renders the content the template was parsed from.
+ * A file rewritten in place is only detected if its size changed: rendering it then fails until the template is reloaded. One rewritten with the same size renders its new bytes.
+ */
+class FileRegions {
+    /**
+     * A text read from a range of a template file
+     */
+    static class RegionText extends LiquidrodsNode.Text {
+        private final File file;
+        private final FileChannel channel;
+        private final long fileLength;
+        private final long offset;
+        private final long length;
+
+        private RegionText(LiquidrodsNode.Text text, File file, FileChannel channel, long fileLength, long offset, long length) {
+            super(null, text.getFilename(), text.getRow(), text.getCol());
+            this.file = file;
+            this.channel = channel;
+            this.fileLength = fileLength;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * @return the text, read from the file into a new string
+         */
+        @Override
+        public String getValue() {
+            try {
+                ByteBuffer bytes = ByteBuffer.allocate((int) length);
+                read(bytes, offset);
+                return new String(bytes.array(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void setValue(String value) {
+            throw new UnsupportedOperationException("Texts read from a template file can't be modified");
+        }
+
+        void write(Writer out) throws IOException {
+            checkSize();
+            if (out instanceof ChannelWriter) {
+                ((ChannelWriter) out).transfer(channel, offset, length);
+                return;
+            }
+            // positional reads only: the channel is shared by the renders running concurrently
+            ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(length, 8192));
+            CharsetDecoder decoder = out instanceof Utf8Writer ? null : StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = decoder == null ? null : CharBuffer.allocate(bytes.capacity());
+            for (long position = offset; position < offset + length; ) {
+                bytes.limit((int) Math.min(bytes.capacity(), bytes.position() + offset + length - position));
+                int read = channel.read(bytes, position);
+                if (read < 0) {
+                    throw new EOFException(file.toString());
+                }
+                position += read;
+                bytes.flip();
+                if (decoder == null) {
+                    ((Utf8Writer) out).writeEncoded(bytes, 0, bytes.remaining());
+                    bytes.clear();
+                } else {
+                    // a character can be split between two reads: its first bytes are kept for the next one
+                    decoder.decode(bytes, chars, position == offset + length);
+                    out.write(chars.array(), 0, chars.position());
+                    chars.clear();
+                    bytes.compact();
+                }
+            }
+        }
+
+        private void read(ByteBuffer bytes, long position) throws IOException {
+            checkSize();
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, position + bytes.position()) < 0) {
+                    throw new EOFException(file.toString());
+                }
+            }
+        }
+
+        private void checkSize() throws IOException {
+            if (channel.size() != fileLength) {
+                throw new IllegalStateException("The template file " + file + " changed since it was parsed: reload the template");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return getValue();
+        }
+    }
+
+    /**
+     * A writer encoding into a channel, into which file regions are transferred directly
+     */
+    static class ChannelWriter extends Utf8Writer {
+        private final WritableByteChannel channel;
+
+        ChannelWriter(WritableByteChannel channel, byte[] buffer) {
+            super(Channels.newOutputStream(channel), buffer);
+            this.channel = channel;
+        }
+
+        void transfer(FileChannel file, long offset, long length) throws IOException {
+            flushEncoded();
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long sent = file.transferTo(position, end - position, channel);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+            }
+            if (position < end) {
+                // e.g. a non-blocking channel not accepting more for now: copy the rest
+                ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(end - position, 8192));
+                while (position < end) {
+                    bytes.clear();
+                    bytes.limit((int) Math.min(bytes.capacity(), end - position));
+                    if (file.read(bytes, position) < 0) {
+                        throw new EOFException();
+                    }
+                    bytes.flip();
+                    position += bytes.remaining();
+                    while (bytes.hasRemaining()) {
+                        channel.write(bytes);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The channels opened on the template files, shared by all the templates stored from them
+     */
+    private static final Map<File, OpenFile> OPEN_FILES = new HashMap<File, OpenFile>();
+
+    private final DirectoryTemplateLoader loader;
+    private final int threshold;
+    private final Map<String, Source> sources = new HashMap<String, Source>();
+
+    /**
+     * A channel on a template file, kept open for as long as regions reference it
+     */
+    private static class OpenFile {
+        private final FileChannel channel;
+        private final Object key;
+        private final long length;
+        private final long lastModified;
+        // the stores currently reading the file, and whether one of them produced a region
+        private int readers;
+        private boolean used;
+
+        private OpenFile(FileChannel channel, BasicFileAttributes attributes) {
+            this.channel = channel;
+            this.key = attributes.fileKey();
+            this.length = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        /**
+         * @return whether the file is still the one this channel was opened on, as far as its attributes tell
+         */
+        private boolean matches(BasicFileAttributes attributes) {
+            return key != null && key.equals(attributes.fileKey()) && length == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis()
+                    && channel.isOpen();
+        }
+    }
+
+    /**
+     * A template file, as read when storing a template
+     */
+    private static class Source {
+        private final OpenFile file;
+        private final byte[] bytes;
+        private final String content;
+        private boolean used;
+
+        private Source(OpenFile file, byte[] bytes) {
+            this.file = file;
+            this.bytes = bytes;
+            this.content = new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    FileRegions(DirectoryTemplateLoader loader, int threshold) {
+        this.loader = loader;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Copy nodes, replacing their texts, and the texts of their children, by file regions when they're long enough
+     * <p/>
+     * The files none of the texts were found in are closed once done, unless their channel is used by the regions of another template.
+     */
+    List<LiquidrodsNode> apply(List<LiquidrodsNode> nodes) {
+        try {
+            return replace(nodes);
+        } finally {
+            for (Source source : sources.values()) {
+                if (source != null) {
+                    release(source);
+                }
+            }
+            sources.clear();
+        }
+    }
+
+    private List<LiquidrodsNode> replace(List<LiquidrodsNode> nodes) {
+        List<LiquidrodsNode> res = new ArrayList<LiquidrodsNode>(nodes.size());
+        for (LiquidrodsNode node : nodes) {
+            if (node.getClass() == LiquidrodsNode.Text.class && ((LiquidrodsNode.Text) node).getValue().length() >= threshold) {
+                res.add(region((LiquidrodsNode.Text) node));
+            } else if (node instanceof LiquidrodsNode.Block) {
+                LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                res.add(Binder.withChildren(block, replace(block.getChildren())));
+            } else {
+                res.add(node);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the region of the template file holding the text, or the text itself if it can't be found in the file
+     */
+    private LiquidrodsNode.Text region(LiquidrodsNode.Text text) {
+        Source source = source(text.getFilename());
+        int index = source == null ? -1 : source.content.indexOf(text.getValue());
+        if (index < 0) {
+            return text;
+        }
+        // any occurrence of the text encodes to the same bytes
+        long offset = utf8Length(source.content, 0, index);
+        long length = utf8Length(source.content, index, index + text.getValue().length());
+        // malformed bytes before the text decode to fewer or more chars than they take, shifting the offset
+        if (offset + length > source.bytes.length || !text.getValue().equals(new String(source.bytes, (int) offset, (int) length, StandardCharsets.UTF_8))) {
+            return text;
+        }
+        source.used = true;
+        return new RegionText(text, loader.file(text.getFilename()), source.file.channel, source.bytes.length, offset, length);
+    }
+
+    private Source source(String name) {
+        if (name == null) {
+            return null;
+        }
+        if (!sources.containsKey(name)) {
+            Source source = null;
+            File file = loader.file(name);
+            if (file.isFile()) {
+                OpenFile open = open(file);
+                try {
+                    ByteBuffer bytes = ByteBuffer.allocate((int) open.channel.size());
+                    while (bytes.hasRemaining() && open.channel.read(bytes, bytes.position()) >= 0) {
+                        // read it all
+                    }
+                    // a file growing meanwhile is caught by the regions' size check
+                    source = new Source(open, Arrays.copyOf(bytes.array(), bytes.position()));
+                } catch (IOException e) {
+                    release(new Source(open, new byte[0]));
+                    throw new RuntimeException(e);
+                }
+            }
+            sources.put(name, source);
+        }
+        return sources.get(name);
+    }
+
+    /**
+     * @return the channel already open on the file if it wasn't replaced since, a new one otherwise.
+     * Sharing a channel on a file replaced with the same attributes is harmless: the regions are checked against the parsed texts
+     */
+    private static OpenFile open(File file) {
+        file = file.getAbsoluteFile();
+        try {
+            synchronized (OPEN_FILES) {
+                OpenFile res = OPEN_FILES.get(file);
+                if (res == null || !res.matches(Files.readAttributes(file.toPath(), BasicFileAttributes.class))) {
+                    // a replaced file keeps its previous channel open for the regions referencing it, until they're collected
+                    FileChannel channel = new FileInputStream(file).getChannel();
+                    res = new OpenFile(channel, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+                    OPEN_FILES.put(file, res);
+                }
+                res.readers++;
+                return res;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Done reading a file: close it if no region uses it
+     */
+    private static void release(Source source) {
+        OpenFile file = source.file;
+        synchronized (OPEN_FILES) {
+            file.used |= source.used;
+            if (--file.readers > 0 || file.used) {
+                return;
+            }
+            OPEN_FILES.values().remove(file);
+        }
+        try {
+            file.channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long utf8Length(String s, int from, int to) {
+        long res = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                res++;
+            } else if (c < 0x800) {
+                res += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                res += 4;
+                i++;
+            } else {
+                res += 3;
+            }
+        }
+        return res;
+    }
+}
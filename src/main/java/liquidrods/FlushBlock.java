@@ -0,0 +1,20 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The handler for the flush tag, <code>{% flush %}</code>: flushes what was rendered so far, see {@link FlushPolicy}.
+ * When rendering into a buffer, e.g. the body of a <code>cache</code> tag, flushing it has no effect.
+ */
+public class FlushBlock implements BlockHandler {
+    @Override
+    public boolean wantsCloseTag() {
+        return false;
+    }
+
+    @Override
+    public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,87 @@
+package liquidrods;
+
+import java.io.IOException;
+
+/**
+ * Where a progressive render flushes what it rendered so far, so that the client receives the start of a page, and starts fetching its stylesheets and scripts,
+ * while the rest is still rendering. Pass it to {@link Template#renderProgressively(Object, java.io.Writer, FlushPolicy)} or {@link Template#renderProgressively(Object, FlushPolicy, Sink)}.
+ * <p/>
+ * The output is always flushed at the <code>flush</code> tags, e.g. <code>{% flush %}</code>. The policy adds flushes after the end of the <code>head</code> element,
+ * after every <code>block</code> tag, or whenever enough was rendered since the last flush. Nothing is flushed while rendering into a buffer, e.g. the body of a
+ * <code>cache</code> tag whose output is being captured.
+ * <p/>
+ * The policy only flushes at the <code>flush</code> tags by default.
+ */
+public class FlushPolicy {
+    /**
+     * Receives the output of a progressive render, chunk by chunk
+     */
+    public interface Sink {
+        /**
+         * Called at every flush, and once at the end of the render
+         *
+         * @param chunk what was rendered since the previous chunk. Only valid during the call: it's reused for the next chunk.
+         * @param last  whether the render is over
+         * @throws IOException so that you don't have to handle this exception when you write the chunk out
+         */
+        void chunk(CharSequence chunk, boolean last) throws IOException;
+    }
+
+    private boolean afterHead;
+    private boolean blockBoundaries;
+    private int everyChars;
+
+    /**
+     * @return whether the output is flushed once the end of the <code>head</code> element is rendered
+     */
+    public boolean afterHead() {
+        return afterHead;
+    }
+
+    /**
+     * Configure whether the output should be flushed once a text holding the end of the <code>head</code> element (<code>&lt;/head&gt;</code>) is rendered
+     *
+     * @param afterHead true to flush after the head
+     * @return self, to enable chaining
+     */
+    public FlushPolicy afterHead(boolean afterHead) {
+        this.afterHead = afterHead;
+        return this;
+    }
+
+    /**
+     * @return whether the output is flushed after every <code>block</code> tag
+     */
+    public boolean blockBoundaries() {
+        return blockBoundaries;
+    }
+
+    /**
+     * Configure whether the output should be flushed after every <code>block</code> tag, i.e. after every section of the templates extending another
+     *
+     * @param blockBoundaries true to flush after the blocks
+     * @return self, to enable chaining
+     */
+    public FlushPolicy blockBoundaries(boolean blockBoundaries) {
+        this.blockBoundaries = blockBoundaries;
+        return this;
+    }
+
+    /**
+     * @return the number of characters after which the output is flushed, or 0 if it isn't flushed by size
+     */
+    public int everyChars() {
+        return everyChars;
+    }
+
+    /**
+     * Configure the output to be flushed as soon as a node ends with at least that many characters rendered since the last flush
+     *
+     * @param everyChars the number of characters, or 0 not to flush by size
+     * @return self, to enable chaining
+     */
+    public FlushPolicy everyChars(int everyChars) {
+        this.everyChars = everyChars;
+        return this;
+    }
+}
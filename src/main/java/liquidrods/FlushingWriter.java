@@ -0,0 +1,118 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The writer of a progressive render: counts what was written since the last flush, and flushes either the target writer or a buffer into a {@link FlushPolicy.Sink}
+ */
+class FlushingWriter extends Writer {
+    private final Writer delegate;
+    private final FlushPolicy policy;
+    private final StringBuilder buffer;
+    private final FlushPolicy.Sink sink;
+    private final LiquidrodsNode.Text headText;
+    private long pending;
+    private boolean headFlushed;
+
+    /**
+     * Flush into a writer
+     *
+     * @param headText the text closing the head element, if any: the flush after the head is done once it's rendered
+     */
+    FlushingWriter(Writer delegate, FlushPolicy policy, LiquidrodsNode.Text headText) {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.buffer = null;
+        this.sink = null;
+        this.headText = headText;
+    }
+
+    /**
+     * Flush a buffer into a sink
+     *
+     * @param headText the text closing the head element, if any: the flush after the head is done once it's rendered
+     */
+    FlushingWriter(FlushPolicy.Sink sink, FlushPolicy policy, LiquidrodsNode.Text headText) {
+        this.buffer = new StringBuilder(Math.max(policy.everyChars(), 8192));
+        this.delegate = new StringBuilderWriter(buffer);
+        this.policy = policy;
+        this.sink = sink;
+        this.headText = headText;
+    }
+
+    /**
+     * @return the writer of the progressive render writing into the specified writer, or null if it isn't one. Instrumented renders write through a {@link CountingWriter}.
+     */
+    static FlushingWriter of(Writer out) {
+        Writer target = out instanceof CountingWriter ? ((CountingWriter) out).getDelegate() : out;
+        return target instanceof FlushingWriter ? (FlushingWriter) target : null;
+    }
+
+    /**
+     * Flush if the policy says so once a node is rendered
+     */
+    void rendered(LiquidrodsNode node) throws IOException {
+        if (policy.everyChars() > 0 && pending >= policy.everyChars()) {
+            flush();
+        } else if (policy.blockBoundaries() && node instanceof LiquidrodsNode.Block && "block".equals(((LiquidrodsNode.Block) node).getName())) {
+            flush();
+        } else if (!headFlushed && node == headText) {
+            headFlushed = true;
+            flush();
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        delegate.write(c);
+        pending++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        delegate.write(cbuf, off, len);
+        pending += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        delegate.write(str, off, len);
+        pending += len;
+    }
+
+    /**
+     * Send what was written since the last flush, if anything
+     */
+    @Override
+    public void flush() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        pending = 0;
+        if (sink == null) {
+            delegate.flush();
+        } else {
+            sink.chunk(buffer, false);
+            buffer.setLength(0);
+        }
+    }
+
+    /**
+     * Send the end of the output
+     */
+    void finish() throws IOException {
+        if (sink == null) {
+            delegate.flush();
+        } else {
+            sink.chunk(buffer, true);
+            buffer.setLength(0);
+        }
+        pending = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,262 @@
+package liquidrods;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Stores the output of the <code>cache</code> tags, see {@link CacheBlock}. Configured with {@link Config#fragmentCache(FragmentCache)}.
+ * <p/>
+ * Fragments expire after a fixed time to live, and the cache holds at most a given number of characters: when it's full, the least recently used fragment,
+ * or with {@link Eviction#FIFO} the oldest one, is evicted. Fragments can also be invalidated explicitly.
+ * <p/>
+ * When several renders miss the same fragment at once, only one of them renders it while the others wait for its output.
+ */
+public class FragmentCache {
+    /**
+     * Which fragment to evict when the cache is full
+     */
+    public enum Eviction {
+        /**
+         * The least recently used one
+         */
+        LRU,
+        /**
+         * The least recently stored one
+         */
+        FIFO
+    }
+
+    /**
+     * Renders a fragment on a cache miss
+     */
+    public interface Loader {
+        String load() throws Exception;
+    }
+
+    /**
+     * Identifies a fragment: its tag, by identity, and the value of the tag's key. Positions alone aren't enough, as templates parsed from readers
+     * all share the same file name.
+     */
+    static class Key {
+        private final LiquidrodsNode.Block block;
+        private final Object value;
+
+        Key(LiquidrodsNode.Block block, Object value) {
+            this.block = block;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return block == key.block && (value == null ? key.value == null : value.equals(key.value));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(block) + (value == null ? 0 : value.hashCode());
+        }
+    }
+
+    static class Fragment {
+        private final String text;
+        private final long expiresAt;
+        private volatile byte[] utf8;
+
+        private Fragment(String text, long expiresAt) {
+            this.text = text;
+            this.expiresAt = expiresAt;
+        }
+
+        String text() {
+            return text;
+        }
+
+        /**
+         * @return the fragment encoded in UTF-8, encoded on first use
+         */
+        byte[] utf8() {
+            byte[] res = utf8;
+            if (res == null) {
+                res = text.getBytes(StandardCharsets.UTF_8);
+                utf8 = res;
+            }
+            return res;
+        }
+    }
+
+    private final long maxChars;
+    private final long ttlNanos;
+    private final Map<Key, Fragment> fragments;
+    private final ConcurrentMap<Key, FutureTask<Fragment>> loading = new ConcurrentHashMap<Key, FutureTask<Fragment>>();
+    private long chars;
+
+    /**
+     * Create a LRU cache
+     *
+     * @param maxChars the maximum total size of the cached fragments, in characters
+     * @param ttl      how long a fragment is kept, or 0 to keep it until it's evicted or invalidated
+     * @param unit     the unit of the time to live
+     */
+    public FragmentCache(long maxChars, long ttl, TimeUnit unit) {
+        this(maxChars, ttl, unit, Eviction.LRU);
+    }
+
+    /**
+     * @param maxChars the maximum total size of the cached fragments, in characters
+     * @param ttl      how long a fragment is kept, or 0 to keep it until it's evicted or invalidated
+     * @param unit     the unit of the time to live
+     * @param eviction which fragment to evict when the cache is full
+     */
+    public FragmentCache(long maxChars, long ttl, TimeUnit unit, Eviction eviction) {
+        if (maxChars <= 0) {
+            throw new IllegalArgumentException("The maximum size must be positive: " + maxChars);
+        }
+        this.maxChars = maxChars;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.fragments = new LinkedHashMap<Key, Fragment>(16, 0.75f, eviction == Eviction.LRU);
+    }
+
+    /**
+     * Get a fragment, rendering it with the loader if it isn't cached. Concurrent misses of the same fragment wait for the first one to render it.
+     */
+    Fragment get(Key key, Loader loader) {
+        Fragment res = cached(key);
+        if (res != null) {
+            return res;
+        }
+        FutureTask<Fragment> task = new FutureTask<Fragment>(new FragmentLoader(key, loader));
+        FutureTask<Fragment> existing = loading.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                // a render might have stored the fragment between the lookup and now
+                res = cached(key);
+                if (res != null) {
+                    return res;
+                }
+                task.run();
+                return result(task);
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        return result(existing);
+    }
+
+    private static Fragment result(FutureTask<Fragment> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private Fragment cached(Key key) {
+        synchronized (fragments) {
+            Fragment res = fragments.get(key);
+            if (res != null && ttlNanos > 0 && System.nanoTime() - res.expiresAt > 0) {
+                remove(key);
+                return null;
+            }
+            return res;
+        }
+    }
+
+    private void store(Key key, Fragment fragment) {
+        if (fragment.text.length() > maxChars) {
+            return;
+        }
+        synchronized (fragments) {
+            remove(key);
+            fragments.put(key, fragment);
+            chars += fragment.text.length();
+            Iterator<Fragment> it = fragments.values().iterator();
+            while (chars > maxChars) {
+                chars -= it.next().text.length();
+                it.remove();
+            }
+        }
+    }
+
+    private void remove(Key key) {
+        Fragment removed = fragments.remove(key);
+        if (removed != null) {
+            chars -= removed.text.length();
+        }
+    }
+
+    /**
+     * Invalidate the fragments of all the <code>cache</code> tags whose key evaluated to the specified value
+     *
+     * @param key the key value
+     */
+    public void invalidate(Object key) {
+        synchronized (fragments) {
+            Iterator<Map.Entry<Key, Fragment>> it = fragments.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Fragment> entry = it.next();
+                if (key == null ? entry.getKey().value == null : key.equals(entry.getKey().value)) {
+                    chars -= entry.getValue().text.length();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidate all the fragments
+     */
+    public void clear() {
+        synchronized (fragments) {
+            fragments.clear();
+            chars = 0;
+        }
+    }
+
+    /**
+     * @return the number of cached fragments
+     */
+    public int size() {
+        synchronized (fragments) {
+            return fragments.size();
+        }
+    }
+
+    /**
+     * @return the total size of the cached fragments, in characters
+     */
+    public long chars() {
+        synchronized (fragments) {
+            return chars;
+        }
+    }
+
+    private class FragmentLoader implements Callable<Fragment> {
+        private final Key key;
+        private final Loader loader;
+
+        private FragmentLoader(Key key, Loader loader) {
+            this.key = key;
+            this.loader = loader;
+        }
+
+        @Override
+        public Fragment call() throws Exception {
+            Fragment res = new Fragment(loader.load(), System.nanoTime() + ttlNanos);
+            store(key, res);
+            return res;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package liquidrods;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
@@ -67,8 +68,17 @@ public abstract class HtmlUtils {
         if (input == null) {
             return null;
         }
+        int first = 0;
+        while (first < input.length() && characterEntityReferences.convertToReference(input.charAt(first)) == null) {
+            first++;
+        }
+        if (first == input.length()) {
+            // nothing to escape
+            return input;
+        }
         StringBuilder escaped = new StringBuilder(input.length() * 2);
-        for (int i = 0; i < input.length(); i++) {
+        escaped.append(input, 0, first);
+        for (int i = first; i < input.length(); i++) {
             char character = input.charAt(i);
             String reference = characterEntityReferences.convertToReference(character);
             if (reference != null) {
@@ -80,6 +90,30 @@ public abstract class HtmlUtils {
         return escaped.toString();
     }
 
+    /**
+     * Same as {@link #htmlEscape(String)}, but writes the escaped string to a writer instead of returning it, which doesn't allocate any intermediate string
+     *
+     * @param input the (unescaped) input string
+     * @param out   where to write the escaped string
+     * @throws IOException if the writer fails
+     */
+    public static void htmlEscape(String input, Writer out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < input.length(); i++) {
+            String reference = characterEntityReferences.convertToReference(input.charAt(i));
+            if (reference != null) {
+                if (i > start) {
+                    out.write(input, start, i - start);
+                }
+                out.write(reference);
+                start = i + 1;
+            }
+        }
+        if (start < input.length()) {
+            out.write(input, start, input.length() - start);
+        }
+    }
+
     private static class HtmlCharacterEntityReferences {
 
         private static final String PROPERTIES_FILE = "HtmlCharacterEntityReferences.properties";
@@ -2,7 +2,9 @@ package liquidrods;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * The handler for the if tag. Takes a parameter that'll be evaluated using the current context to decide whether to render its body or not.
@@ -32,7 +34,25 @@ public class IfBlock implements BlockHandler {
 
     @Override
     public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
-        Object value = context.resolve(block.getArg());
+        boolean doit = test(context.resolveArg(block));
+        List<LiquidrodsNode> children = block.getChildren();
+        for (int i = 0; i < children.size(); i++) {
+            LiquidrodsNode child = children.get(i);
+            if (child instanceof LiquidrodsNode.Block && ("else".equals(((LiquidrodsNode.Block) child).getName()))) {
+                if (doit) {
+                    return;
+                }
+                doit = !doit;
+            } else if (doit) {
+                config.defaultRenderer().render(child, context, config, out);
+            }
+        }
+    }
+
+    /**
+     * @return whether the body of the tag should be rendered for a given parameter value, as opposed to its else part
+     */
+    boolean test(Object value) {
         boolean doit = true;
         if (value == null) {
             doit = false;
@@ -43,20 +63,25 @@ public class IfBlock implements BlockHandler {
         if (value instanceof Collection) {
             doit = !((Collection) value).isEmpty();
         }
+        return invert ? !doit : doit;
+    }
 
-        if (invert) {
-            doit = !doit;
-        }
-        for (LiquidrodsNode child : block.getChildren()) {
+    /**
+     * @return the children rendered by {@link #render(LiquidrodsNode.Block, Context, Config, Writer)} given the outcome of the test
+     */
+    static List<LiquidrodsNode> branch(List<LiquidrodsNode> children, boolean doit) {
+        List<LiquidrodsNode> res = new ArrayList<LiquidrodsNode>();
+        for (LiquidrodsNode child : children) {
             if (child instanceof LiquidrodsNode.Block && ("else".equals(((LiquidrodsNode.Block) child).getName()))) {
                 if (doit) {
-                    return;
+                    return res;
                 }
-                doit = !doit;
+                doit = true;
             } else if (doit) {
-                config.defaultRenderer().render(child, context, config, out);
+                res.add(child);
             }
         }
+        return res;
     }
 
     /**
@@ -0,0 +1,128 @@
+package liquidrods;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the templates parsed from text, e.g. stored in a database, keyed by a 128-bit hash of their content, so that {@link Liquidrods#parseInline(CharSequence, Config)}
+ * parses a given text only once and returns the same template to all the callers passing it. Enable it by calling {@link Config#inlineCache(InlineTemplateCache)}.
+ * <p/>
+ * The hash isn't collision resistant, so every entry keeps the text it was parsed from, and a template is only returned for that exact text.
+ * <p/>
+ * The cache holds at most a given number of templates: when it's full, the least recently used ones are evicted.
+ */
+public class InlineTemplateCache {
+    private final int maxTemplates;
+    private final Map<ContentHash, Entry> templates = new LinkedHashMap<ContentHash, Entry>(16, 0.75f, true);
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+
+    /**
+     * @param maxTemplates the maximum number of cached templates
+     */
+    public InlineTemplateCache(int maxTemplates) {
+        if (maxTemplates <= 0) {
+            throw new IllegalArgumentException("The maximum number of templates must be positive: " + maxTemplates);
+        }
+        this.maxTemplates = maxTemplates;
+    }
+
+    private static class Entry {
+        private final String source;
+        private final Template template;
+
+        private Entry(String source, Template template) {
+            this.source = source;
+            this.template = template;
+        }
+    }
+
+    /**
+     * @return the template cached for the text, or null if there is none
+     */
+    Template get(ContentHash hash, CharSequence source) {
+        Template res = null;
+        synchronized (templates) {
+            Entry entry = templates.get(hash);
+            if (entry != null && entry.source.contentEquals(source)) {
+                res = entry.template;
+            }
+        }
+        if (res == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return res;
+    }
+
+    /**
+     * Cache a template, unless another one was already cached for the same content (by a concurrent parse for example).
+     * A template whose text collides with the one of an already cached template isn't cached.
+     *
+     * @return the template to use: either the supplied one or the one that was already cached for the same text
+     */
+    Template put(ContentHash hash, String source, Template template) {
+        synchronized (templates) {
+            Entry existing = templates.get(hash);
+            if (existing != null) {
+                return existing.source.equals(source) ? existing.template : template;
+            }
+            templates.put(hash, new Entry(source, template));
+            Iterator<Entry> it = templates.values().iterator();
+            while (templates.size() > maxTemplates) {
+                it.next();
+                it.remove();
+            }
+            return template;
+        }
+    }
+
+    /**
+     * Evict the template parsed from a text
+     *
+     * @param source the template text
+     */
+    public void invalidate(CharSequence source) {
+        ContentHash hash = ContentHash.of(source);
+        synchronized (templates) {
+            Entry entry = templates.get(hash);
+            if (entry != null && entry.source.contentEquals(source)) {
+                templates.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Evict all the templates
+     */
+    public void clear() {
+        synchronized (templates) {
+            templates.clear();
+        }
+    }
+
+    /**
+     * @return the number of cached templates
+     */
+    public int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+
+    /**
+     * @return the number of parses served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of texts that had to be parsed
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,25 @@
+package liquidrods;
+
+/**
+ * Notified of template parses and renders. Register an implementation, like {@link RenderMetrics}, with {@link Config#instrumentation(Instrumentation)}.
+ * <p/>
+ * Implementations are called on the render path, from any thread: they must be thread safe and fast.
+ */
+public interface Instrumentation {
+    /**
+     * Called after a template was successfully parsed (or loaded from its precompiled form) and linked
+     *
+     * @param template the parsed template
+     * @param nanos    how long it took
+     */
+    void parsed(Template template, long nanos);
+
+    /**
+     * Called after a template was successfully rendered
+     *
+     * @param template the rendered template
+     * @param nanos    how long it took
+     * @param chars    how many characters were written
+     */
+    void rendered(Template template, long nanos, long chars);
+}
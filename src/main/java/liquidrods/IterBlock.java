@@ -3,9 +3,10 @@ package liquidrods;
 import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Array;
-import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 
 /**
  * The for tag handler. Takes a parameter representing the collection to iterate on.
@@ -36,40 +37,81 @@ public class IterBlock implements BlockHandler {
 
     @Override
     public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
-        Object value = context.resolve(block.getArg());
-        Iterator<?> coll;
+        Object value = context.resolveArg(block);
         if (value == null) {
             return;
+        }
+        iterate(value, new NodesIterContext(context, block, config, out));
+    }
+
+    /**
+     * Render the loop body once per item of a value, as described above
+     */
+    static void iterate(Object value, IterContext subContext) throws IOException {
+        if (value instanceof List && value instanceof RandomAccess) {
+            // indexed access doesn't allocate an iterator
+            List<?> list = (List<?>) value;
+            int size = list.size();
+            for (int i = 0; i < size; i++) {
+                subContext.iterate(list.get(i), i, i == size - 1);
+            }
         } else if (value instanceof Iterable) {
-            coll = ((Iterable) value).iterator();
+            iterate(((Iterable<?>) value).iterator(), subContext);
         } else if (value.getClass().isArray()) {
-            coll = new ArrayIterator(value);
+            int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                subContext.iterate(Array.get(value, i), i, i == length - 1);
+            }
         } else if (value instanceof Map) {
-            coll = ((Map) value).entrySet().iterator();
+            iterate(((Map<?, ?>) value).entrySet().iterator(), subContext);
         } else {
-            coll = Arrays.asList(value).iterator();
+            subContext.iterate(value, 0, true);
         }
+    }
+
+    private static void iterate(Iterator<?> coll, IterContext subContext) throws IOException {
         int i = 0;
         while (coll.hasNext()) {
             Object o = coll.next();
-            Context subContext = new IterContext(context, o, i, !coll.hasNext());
-            for (LiquidrodsNode child : block.getChildren()) {
-                config.defaultRenderer().render(child, subContext, config, out);
-            }
+            subContext.iterate(o, i, !coll.hasNext());
             i++;
         }
     }
 
-    private static class IterContext extends Context {
-        private final int index;
-        private final boolean last;
+    /**
+     * The context of the iterations of a loop: a single instance is reused for all the items
+     */
+    abstract static class IterContext extends Context {
+        private final LiquidrodsNode.Block block;
+        private final RenderBudget budget;
+        private int index;
+        private boolean last;
+
+        /**
+         * @param parent the context of the loop
+         * @param block  the loop tag, to report an exceeded iteration limit
+         */
+        IterContext(Context parent, LiquidrodsNode.Block block) {
+            super(parent, null);
+            this.block = block;
+            this.budget = parent.budget();
+        }
 
-        public IterContext(Context parent, Object root, int index, boolean last) {
-            super(parent, root);
+        /**
+         * Renders the loop body for an item
+         */
+        private void iterate(Object item, int index, boolean last) throws IOException {
+            if (budget != null) {
+                budget.iteration(block);
+            }
+            rebind(item);
             this.index = index;
             this.last = last;
+            renderBody();
         }
 
+        abstract void renderBody() throws IOException;
+
         @Override
         protected Object extend(String key) {
             if (key.equals("#")) {
@@ -86,29 +128,24 @@ public class IterBlock implements BlockHandler {
         }
     }
 
-    private static class ArrayIterator implements Iterator<Object> {
-        private final Object value;
-        private final int length;
-        private int index = 0;
-
-        public ArrayIterator(Object value) {
-            this.value = value;
-            this.length = Array.getLength(value);
-        }
-
-        @Override
-        public boolean hasNext() {
-            return index < length;
-        }
+    private static class NodesIterContext extends IterContext {
+        private final LiquidrodsNode.Block block;
+        private final Config config;
+        private final Writer out;
 
-        @Override
-        public Object next() {
-            return Array.get(value, index++);
+        private NodesIterContext(Context parent, LiquidrodsNode.Block block, Config config, Writer out) {
+            super(parent, block);
+            this.block = block;
+            this.config = config;
+            this.out = out;
         }
 
         @Override
-        public void remove() {
-
+        void renderBody() throws IOException {
+            List<LiquidrodsNode> children = block.getChildren();
+            for (int i = 0; i < children.size(); i++) {
+                config.defaultRenderer().render(children.get(i), this, config, out);
+            }
         }
     }
-}
\ No newline at end of file
+}
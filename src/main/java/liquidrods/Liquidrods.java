@@ -1,7 +1,9 @@
 package liquidrods;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The API's entry point. Used to parse templates and provides a default configuration
@@ -10,6 +12,14 @@ import java.util.*;
  * @see Template
  */
 public class Liquidrods {
+    /**
+     * Where {@link #parse(String, Config)} looks for templates precompiled at build time, relative to the classpath root, when {@link Config#usePrecompiled(boolean)} is enabled. The precompiled form of the <code>pages/index.html</code> template is expected in <code>META-INF/liquidrods/pages/index.html.ast</code>
+     */
+    public static final String PRECOMPILED_PREFIX = "META-INF/liquidrods/";
+    /**
+     * The extension appended to a template name to get the name of its precompiled form, see {@link #PRECOMPILED_PREFIX}
+     */
+    public static final String PRECOMPILED_SUFFIX = ".ast";
 
     private static Config defaultConfig = new Config();
 
@@ -23,20 +33,144 @@ public class Liquidrods {
      * @return a parsed, ready for use template
      */
     public static Template parse(String name) {
-        List<LiquidrodsNode> rootNodes = new LiquidrodsParser(defaultConfig.templateLoader().load(name), name, defaultConfig.handlers()).parse();
-        return new Template(rootNodes, defaultConfig);
+        return parse(name, defaultConfig);
     }
 
     /**
-     * Parse a template from its logical name (uses the {@link Config.TemplateLoader}) and configures it with the supplied configuration
+     * Parse a template from its logical name (uses the {@link Config.TemplateLoader}) and configures it with the supplied configuration.
+     * If the configuration has a {@link TemplateCache}, the template is only loaded and parsed the first time it is requested.
+     * If it has an {@link AstCache}, the template is reloaded from it instead of being parsed when its sources didn't change.
+     * With {@link Config#usePrecompiled(boolean)}, templates precompiled at build time (see {@link #PRECOMPILED_PREFIX}) are used as is, without even loading their sources.
      *
      * @param name   the template logical name
      * @param config a custom configuration to be used by the returned template
      * @return a parsed, ready for use template
      */
     public static Template parse(String name, Config config) {
-        List<LiquidrodsNode> rootNodes = new LiquidrodsParser(config.templateLoader().load(name), name, defaultConfig.handlers()).parse();
-        return new Template(rootNodes, config);
+        TemplateCache cache = config.templateCache();
+        if (cache == null) {
+            return compile(name, config);
+        }
+        Template template = cache.get(name);
+        if (template == null) {
+            template = cache.put(name, compile(name, config));
+        }
+        return template;
+    }
+
+    private static Template compile(String name, Config config) {
+        long start = System.nanoTime();
+        Template template = loadCompiled(name, config);
+        if (template == null) {
+            // hash the text as it's parsed: what the AST cache checks must be what was parsed, even if the source changes meanwhile
+            TemplateSerializer.HashingReader source = new TemplateSerializer.HashingReader(config.templateLoader().load(name));
+            List<LiquidrodsNode> rootNodes = new LiquidrodsParser(source, name, config.handlers()).parse();
+            template = new Template(rootNodes, config).parsedFrom(name, source.hash());
+            if (config.astCache() != null) {
+                config.astCache().store(name, template, config);
+            }
+        }
+        return parsed(stored(template, config), config, start);
+    }
+
+    /**
+     * Put a template in the form it's kept in by the configuration: texts left in their files, compact
+     */
+    static Template stored(Template template, Config config) {
+        if (config.fileRegionThreshold() > 0 && config.templateLoader() instanceof DirectoryTemplateLoader) {
+            template = template.withFileRegions(new FileRegions((DirectoryTemplateLoader) config.templateLoader(), config.fileRegionThreshold()));
+        }
+        return config.compactTemplates() ? template.compact() : template;
+    }
+
+    private static Template parsed(Template template, Config config, long start) {
+        if (config.instrumentation() != null) {
+            config.instrumentation().parsed(template, System.nanoTime() - start);
+        }
+        return template;
+    }
+
+    /**
+     * Look for an already parsed and linked form of a template: precompiled at build time or in the on-disk cache
+     *
+     * @return the template, or null if it has to be parsed
+     */
+    static Template loadCompiled(String name, Config config) {
+        if (config.usePrecompiled()) {
+            Template precompiled = loadPrecompiled(name, config);
+            if (precompiled != null) {
+                return precompiled.named(name);
+            }
+        }
+        if (config.astCache() != null) {
+            Template cached = config.astCache().load(name, config);
+            if (cached != null) {
+                return cached.named(name);
+            }
+        }
+        return null;
+    }
+
+    private static Template loadPrecompiled(String name, Config config) {
+        // the templates are packaged with the application, which isn't necessarily loaded by the same class loader as this library
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = Liquidrods.class.getClassLoader();
+        }
+        InputStream in = loader.getResourceAsStream(PRECOMPILED_PREFIX + name + PRECOMPILED_SUFFIX);
+        if (in == null) {
+            return null;
+        }
+        try {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    bytes.write(buffer, 0, read);
+                }
+                return TemplateSerializer.deserialize(ByteBuffer.wrap(bytes.toByteArray()), config, false);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Eagerly loads, parses and caches all the templates found under a root, using as many threads as there are available processors.
+     *
+     * @see #precompileAll(Config, String, int)
+     */
+    public static PrecompileReport precompileAll(Config config, String root) {
+        return precompileAll(config, root, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Eagerly loads, parses and caches all the templates found under a root, so that the first render of a template doesn't have to pay for it.
+     * Templates are parsed in parallel, and the templates they include or extend are parsed only once.
+     * <p/>
+     * A broken template doesn't abort the precompilation: the errors are collected in the returned report, alongside the time each template took to compile.
+     *
+     * @param config      the configuration to use. Its template loader must be a {@link Config.ListableTemplateLoader}. If it doesn't have a template cache, a new one is set on it.
+     * @param root        where to look for templates, passed as is to {@link Config.ListableTemplateLoader#list(String)}
+     * @param parallelism the maximum number of threads to parse templates with
+     * @return a per-template report of compile times and errors
+     */
+    public static PrecompileReport precompileAll(Config config, String root, int parallelism) {
+        if (!(config.templateLoader() instanceof Config.ListableTemplateLoader)) {
+            throw new IllegalArgumentException("Precompiling templates requires a " + Config.ListableTemplateLoader.class.getName() + " but got " + config.templateLoader());
+        }
+        if (config.templateCache() == null) {
+            config.templateCache(new TemplateCache());
+        }
+        List<String> names = ((Config.ListableTemplateLoader) config.templateLoader()).list(root);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return new Precompiler(config, pool).run(names);
+        } finally {
+            pool.shutdown();
+        }
     }
 
     /**
@@ -46,8 +180,7 @@ public class Liquidrods {
      * @return a parsed, ready for use template
      */
     public static Template parse(Reader reader) {
-        List<LiquidrodsNode> rootNodes = new LiquidrodsParser(reader, "<reader>", defaultConfig.handlers()).parse();
-        return new Template(rootNodes, defaultConfig);
+        return parse(reader, defaultConfig);
     }
 
     /**
@@ -58,7 +191,31 @@ public class Liquidrods {
      * @return a parsed, ready for use template
      */
     public static Template parse(Reader reader, Config config) {
+        long start = System.nanoTime();
         List<LiquidrodsNode> rootNodes = new LiquidrodsParser(reader, "<reader>", config.handlers()).parse();
-        return new Template(rootNodes, config);
+        return parsed(new Template(rootNodes, config), config, start);
+    }
+
+    /**
+     * Parses a template from its text, e.g. stored in a database, and configures it with the supplied configuration.
+     * If the configuration has an {@link InlineTemplateCache}, the text is looked up by a hash of its content, and only parsed the first time it's seen:
+     * all the callers passing the same text then share the same template.
+     *
+     * @param source the template text
+     * @param config a custom configuration to be used by the returned template
+     * @return a parsed, ready for use template
+     */
+    public static Template parseInline(CharSequence source, Config config) {
+        InlineTemplateCache cache = config.inlineCache();
+        if (cache == null) {
+            return parse(new StringReader(source.toString()), config);
+        }
+        ContentHash hash = ContentHash.of(source);
+        Template template = cache.get(hash, source);
+        if (template == null) {
+            String text = source.toString();
+            template = cache.put(hash, text, parse(new StringReader(text), config));
+        }
+        return template;
     }
 }
@@ -4,11 +4,27 @@ import java.util.List;
 
 /**
  * Represents a node in the template DOM. Not to be confused with the HTML/XML DOM as Liquidrods works with any textual input.
+ * <p/>
+ * The nodes of the templates parsed with {@link Config#internTemplates(boolean)} are shared between templates, and can't be modified anymore.
  */
 public abstract class LiquidrodsNode {
     protected String filename;
     protected int row, col;
 
+    /**
+     * The key this node is interned under, which it keeps alive, or null if it isn't interned
+     */
+    Object internKey;
+
+    /**
+     * @throws IllegalStateException if this node is interned, and hence possibly shared
+     */
+    void checkMutable() {
+        if (internKey != null) {
+            throw new IllegalStateException("Interned nodes are shared between templates and can't be modified: " + this);
+        }
+    }
+
     /**
      * The filename this node appears in
      * @return The filename this node appears in
@@ -60,6 +76,7 @@ public abstract class LiquidrodsNode {
         }
 
         public void setValue(String value) {
+            checkMutable();
             this.value = value;
         }
 
@@ -96,6 +113,7 @@ public abstract class LiquidrodsNode {
         }
 
         public void setName(String name) {
+            checkMutable();
             this.name = name;
         }
 
@@ -104,6 +122,7 @@ public abstract class LiquidrodsNode {
         }
 
         public void setRaw(boolean raw) {
+            checkMutable();
             this.raw = raw;
         }
 
@@ -143,6 +162,7 @@ public abstract class LiquidrodsNode {
         }
 
         public void setName(String name) {
+            checkMutable();
             this.name = name;
         }
 
@@ -151,6 +171,7 @@ public abstract class LiquidrodsNode {
         }
 
         public void setArg(String arg) {
+            checkMutable();
             this.arg = arg;
         }
 
@@ -159,6 +180,7 @@ public abstract class LiquidrodsNode {
         }
 
         public void setChildren(List<LiquidrodsNode> children) {
+            checkMutable();
             this.children = children;
         }
 
@@ -0,0 +1,142 @@
+package liquidrods;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * Hash-conses the nodes of templates into a pool shared by all of them, see {@link Config#internTemplates(boolean)}: equal strings (texts, selectors, tag names, file names)
+ * and equal nodes are stored once, whatever the template they come from.
+ * <p/>
+ * Nodes are interned bottom-up, so that two tags are equal when their children are the same instances. Their position is part of what they're compared on,
+ * since it shows in error messages and identifies <code>cache</code> tags: nodes from different files only share their strings.
+ * Interned nodes are frozen, their setters throwing an {@link IllegalStateException}, and their children lists are unmodifiable.
+ * <p/>
+ * The pool only references its entries weakly: they're released with the last template using them.
+ * Subclasses of the node classes (e.g. bound tags) are kept as is, with their children interned.
+ */
+class NodeInterner {
+    /**
+     * The pool shared by all the configurations interning their templates
+     */
+    static final NodeInterner SHARED = new NodeInterner();
+
+    private final Map<Object, WeakReference<Object>> pool = new WeakHashMap<Object, WeakReference<Object>>();
+
+    /**
+     * Intern nodes and their children
+     *
+     * @param nodes the nodes to intern
+     * @return the interned nodes, in a new list
+     */
+    synchronized List<LiquidrodsNode> intern(List<LiquidrodsNode> nodes) {
+        List<LiquidrodsNode> res = new ArrayList<LiquidrodsNode>(nodes.size());
+        for (LiquidrodsNode node : nodes) {
+            res.add(intern(node));
+        }
+        return res;
+    }
+
+    private LiquidrodsNode intern(LiquidrodsNode node) {
+        if (node.internKey != null) {
+            return node;
+        }
+        Class<?> type = node.getClass();
+        if (type == LiquidrodsNode.Text.class) {
+            LiquidrodsNode.Text text = (LiquidrodsNode.Text) node;
+            NodeKey key = new NodeKey(type, string(text.getValue()), null, false, null, string(text.getFilename()), text.getRow(), text.getCol());
+            LiquidrodsNode res = lookup(key);
+            return res != null ? res : add(key, new LiquidrodsNode.Text(key.value, key.filename, key.row, key.col));
+        } else if (type == LiquidrodsNode.Variable.class) {
+            LiquidrodsNode.Variable variable = (LiquidrodsNode.Variable) node;
+            NodeKey key = new NodeKey(type, string(variable.getName()), null, variable.isRaw(), null, string(variable.getFilename()), variable.getRow(), variable.getCol());
+            LiquidrodsNode res = lookup(key);
+            return res != null ? res : add(key, new LiquidrodsNode.Variable(key.value, key.raw, key.filename, key.row, key.col));
+        } else if (node instanceof LiquidrodsNode.Block) {
+            LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+            List<LiquidrodsNode> children = Collections.unmodifiableList(intern(block.getChildren()));
+            if (type != LiquidrodsNode.Block.class) {
+                return Binder.withChildren(block, children);
+            }
+            NodeKey key = new NodeKey(type, string(block.getName()), string(block.getArg()), false, children, string(block.getFilename()), block.getRow(), block.getCol());
+            LiquidrodsNode res = lookup(key);
+            return res != null ? res : add(key, new LiquidrodsNode.Block(key.value, key.arg, children, key.filename, key.row, key.col));
+        }
+        return node;
+    }
+
+    private LiquidrodsNode lookup(NodeKey key) {
+        WeakReference<Object> ref = pool.get(key);
+        return ref == null ? null : (LiquidrodsNode) ref.get();
+    }
+
+    private LiquidrodsNode add(NodeKey key, LiquidrodsNode node) {
+        // the node keeps its key, hence its pool entry, alive
+        node.internKey = key;
+        pool.put(key, new WeakReference<Object>(node));
+        return node;
+    }
+
+    private String string(String value) {
+        if (value == null) {
+            return null;
+        }
+        WeakReference<Object> ref = pool.get(value);
+        Object res = ref == null ? null : ref.get();
+        if (res == null) {
+            pool.put(value, new WeakReference<Object>(value));
+            return value;
+        }
+        return (String) res;
+    }
+
+    /**
+     * @return the number of strings and nodes in the pool
+     */
+    synchronized int size() {
+        return pool.size();
+    }
+
+    private static class NodeKey {
+        private final Class<?> type;
+        private final String value;
+        private final String arg;
+        private final boolean raw;
+        private final List<LiquidrodsNode> children;
+        private final String filename;
+        private final int row;
+        private final int col;
+        private final int hash;
+
+        private NodeKey(Class<?> type, String value, String arg, boolean raw, List<LiquidrodsNode> children, String filename, int row, int col) {
+            this.type = type;
+            this.value = value;
+            this.arg = arg;
+            this.raw = raw;
+            this.children = children;
+            this.filename = filename;
+            this.row = row;
+            this.col = col;
+            // the children are interned already: comparing them by identity is enough
+            this.hash = Arrays.hashCode(new Object[]{type, value, arg, raw, children, filename, row, col});
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) {
+                return false;
+            }
+            NodeKey other = (NodeKey) o;
+            return hash == other.hash && type == other.type && raw == other.raw && row == other.row && col == other.col && equal(value, other.value)
+                    && equal(arg, other.arg) && equal(filename, other.filename) && equal(children, other.children);
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package liquidrods;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the output size of the recent renders of a template to presize the buffers of the next ones: estimates the 90th percentile of the last {@link #WINDOW} sizes.
+ * <p/>
+ * Updates aren't synchronized: when renders race, a sample may be lost or recorded twice, which is harmless for an estimate.
+ */
+class OutputSizeEstimator {
+    static final int WINDOW = 32;
+    /**
+     * Don't presize buffers bigger than this from a few huge renders
+     */
+    static final int MAX_ESTIMATE = 4 * 1024 * 1024;
+
+    private final int[] samples = new int[WINDOW];
+    private int next;
+    private boolean full;
+    private volatile int estimate = 16;
+
+    int estimate() {
+        return estimate;
+    }
+
+    void record(int size) {
+        int index = next;
+        samples[index] = size;
+        next = (index + 1) & (WINDOW - 1);
+        if (next == 0) {
+            full = true;
+            int[] sorted = samples.clone();
+            Arrays.sort(sorted);
+            estimate = Math.min(sorted[WINDOW * 9 / 10], MAX_ESTIMATE);
+        } else if (!full && size > estimate) {
+            // until the window is full, use the biggest size seen so far
+            estimate = Math.min(size, MAX_ESTIMATE);
+        }
+    }
+}
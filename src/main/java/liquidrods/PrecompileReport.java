@@ -0,0 +1,116 @@
+package liquidrods;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of {@link Liquidrods#precompileAll(Config, String)}: how long each template took to compile, and which ones failed to.
+ */
+public class PrecompileReport {
+    /**
+     * The compilation outcome of a single template
+     */
+    public static class Result {
+        private final String name;
+        private final long nanos;
+        private final Throwable error;
+
+        Result(String name, long nanos, Throwable error) {
+            this.name = name;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        /**
+         * @return the template logical name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the time spent loading, parsing and linking this template, in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the compilation error, or null if the template compiled fine
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return whether the template compiled fine
+         */
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms)" + (error == null ? "" : ": " + error.getMessage());
+        }
+    }
+
+    private final List<Result> results;
+    private final long nanos;
+
+    PrecompileReport(List<Result> results, long nanos) {
+        this.results = Collections.unmodifiableList(results);
+        this.nanos = nanos;
+    }
+
+    /**
+     * @return a result per compiled template: the listed templates first, in listing order, followed by the templates they include or extend that weren't listed, in discovery order
+     */
+    public List<Result> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the results of the templates that failed to compile
+     */
+    public List<Result> getFailures() {
+        List<Result> res = new ArrayList<Result>();
+        for (Result result : results) {
+            if (!result.isSuccess()) {
+                res.add(result);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return whether any template failed to compile
+     */
+    public boolean hasErrors() {
+        for (Result result : results) {
+            if (!result.isSuccess()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the wall clock time the whole precompilation took, in nanoseconds
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("Precompiled ").append(results.size()).append(" templates in ")
+                .append(TimeUnit.NANOSECONDS.toMillis(nanos)).append("ms");
+        for (Result result : results) {
+            res.append("\n\t").append(result);
+        }
+        return res.toString();
+    }
+}
@@ -0,0 +1,193 @@
+package liquidrods;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Drives {@link Liquidrods#precompileAll(Config, String, int)}.
+ * <p/>
+ * Works in two phases: all the templates are first loaded and parsed in parallel (pulling in the templates they include or extend),
+ * and then linked bottom up, one dependency level at a time, so that a shared layout is parsed and linked exactly once and then picked from the cache by the templates extending it.
+ */
+class Precompiler {
+    private static class Unit {
+        private final String name;
+        private List<LiquidrodsNode> nodes;
+        private byte[] hash;
+        private Template template;
+        private Set<String> dependencies = Collections.emptySet();
+        private long nanos;
+        private Throwable error;
+
+        private Unit(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Config config;
+    private final ForkJoinPool pool;
+    private final Map<String, Unit> units = new LinkedHashMap<String, Unit>();
+
+    Precompiler(Config config, ForkJoinPool pool) {
+        this.config = config;
+        this.pool = pool;
+    }
+
+    PrecompileReport run(List<String> names) {
+        long start = System.nanoTime();
+        parseAll(names);
+
+        Map<String, Integer> levels = new HashMap<String, Integer>();
+        int maxLevel = 0;
+        for (Unit unit : units.values()) {
+            maxLevel = Math.max(maxLevel, level(unit, levels, new LinkedHashSet<String>()));
+        }
+        for (int level = 0; level <= maxLevel; level++) {
+            List<Unit> toLink = new ArrayList<Unit>();
+            for (Unit unit : units.values()) {
+                if (unit.error == null && levels.get(unit.name) == level) {
+                    toLink.add(unit);
+                }
+            }
+            linkAll(toLink);
+        }
+
+        List<PrecompileReport.Result> results = new ArrayList<PrecompileReport.Result>(units.size());
+        for (Unit unit : units.values()) {
+            results.add(new PrecompileReport.Result(unit.name, unit.nanos, unit.error));
+        }
+        return new PrecompileReport(results, System.nanoTime() - start);
+    }
+
+    private void parseAll(List<String> names) {
+        Collection<String> pending = new LinkedHashSet<String>(names);
+        while (!pending.isEmpty()) {
+            List<Callable<Unit>> tasks = new ArrayList<Callable<Unit>>(pending.size());
+            for (final String name : pending) {
+                tasks.add(new Callable<Unit>() {
+                    @Override
+                    public Unit call() {
+                        return parse(name);
+                    }
+                });
+            }
+            Set<String> discovered = new LinkedHashSet<String>();
+            for (Unit unit : await(pool.invokeAll(tasks))) {
+                units.put(unit.name, unit);
+                discovered.addAll(unit.dependencies);
+            }
+            discovered.removeAll(units.keySet());
+            pending = discovered;
+        }
+    }
+
+    private Unit parse(String name) {
+        Unit unit = new Unit(name);
+        long start = System.nanoTime();
+        try {
+            unit.template = Liquidrods.loadCompiled(name, config);
+            if (unit.template == null) {
+                TemplateSerializer.HashingReader source = new TemplateSerializer.HashingReader(config.templateLoader().load(name));
+                unit.nodes = new LiquidrodsParser(source, name, config.handlers()).parse();
+                unit.hash = source.hash();
+                unit.dependencies = dependencies(unit.nodes);
+            }
+        } catch (Throwable e) {
+            unit.error = e;
+        }
+        unit.nanos = System.nanoTime() - start;
+        return unit;
+    }
+
+    private static Set<String> dependencies(List<LiquidrodsNode> nodes) {
+        Set<String> res = new LinkedHashSet<String>();
+        for (LiquidrodsNode node : nodes) {
+            if (node instanceof LiquidrodsNode.Block) {
+                LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                if (("include".equals(block.getName()) || "extends".equals(block.getName())) && block.getArg() != null) {
+                    res.add(block.getArg());
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Computes how deep a template sits in the include/extends graph (0 for a template that doesn't depend on any other).
+     * Templates that are part of a cycle or that depend on a broken template are flagged as failed.
+     */
+    private int level(Unit unit, Map<String, Integer> levels, LinkedHashSet<String> path) {
+        Integer known = levels.get(unit.name);
+        if (known != null) {
+            return known;
+        }
+        int level = 0;
+        if (unit.error == null) {
+            path.add(unit.name);
+            for (String dependency : unit.dependencies) {
+                Unit dep = units.get(dependency);
+                if (path.contains(dependency)) {
+                    unit.error = new RuntimeException("Cyclic include/extends chain: " + path + " -> " + dependency);
+                    break;
+                }
+                level = Math.max(level, level(dep, levels, path) + 1);
+                if (dep.error != null) {
+                    unit.error = new RuntimeException("Depends on the broken template " + dependency, dep.error);
+                    break;
+                }
+            }
+            path.remove(unit.name);
+        }
+        levels.put(unit.name, level);
+        return level;
+    }
+
+    private void linkAll(List<Unit> toLink) {
+        List<Callable<Unit>> tasks = new ArrayList<Callable<Unit>>(toLink.size());
+        for (final Unit unit : toLink) {
+            tasks.add(new Callable<Unit>() {
+                @Override
+                public Unit call() {
+                    long start = System.nanoTime();
+                    try {
+                        if (unit.template == null) {
+                            unit.template = new Template(unit.nodes, config).parsedFrom(unit.name, unit.hash);
+                            if (config.astCache() != null) {
+                                config.astCache().store(unit.name, unit.template, config);
+                            }
+                        }
+                        config.templateCache().put(unit.name, Liquidrods.stored(unit.template, config));
+                        if (config.instrumentation() != null) {
+                            config.instrumentation().parsed(unit.template, unit.nanos + System.nanoTime() - start);
+                        }
+                    } catch (Throwable e) {
+                        unit.error = e;
+                    }
+                    unit.nodes = null;
+                    unit.template = null;
+                    unit.nanos += System.nanoTime() - start;
+                    return unit;
+                }
+            });
+        }
+        await(pool.invokeAll(tasks));
+    }
+
+    private static <T> List<T> await(List<Future<T>> futures) {
+        List<T> res = new ArrayList<T>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                res.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return res;
+    }
+}
@@ -0,0 +1,279 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A compact form of the nodes of a template, see {@link Template#compact()}: a single stream of int instructions referencing a pool of constants
+ * (texts, selectors and tag names, each stored once), instead of a graph of node objects.
+ * <p/>
+ * Every instruction starts with its opcode, the index of its file name in the file names table, its row and its column.
+ * Texts and variables then have the index of their value or selector in the constants pool. Tags are followed by the indices of their name and parameter (-1 if none),
+ * the position of the instruction following their body, an index used to cache their node form, and their body.
+ * The nodes that don't fit this scheme (e.g. the ones bound to a model type) are kept as is in the constants pool.
+ * <p/>
+ * The <code>if</code>, <code>ifnot</code>, <code>for</code> and <code>block</code> tags are interpreted directly from the instructions. The other tags are decoded back into
+ * {@link LiquidrodsNode.Block} nodes, once, and handed over to their handler.
+ */
+class Program {
+    static final int TEXT = 0;
+    static final int VARIABLE = 1;
+    static final int RAW_VARIABLE = 2;
+    static final int NODE = 3;
+    static final int BLOCK = 4;
+
+    private static final int FILE = 1;
+    private static final int ROW = 2;
+    private static final int COL = 3;
+    private static final int VALUE = 4;
+    private static final int ARG = 5;
+    private static final int END = 6;
+    private static final int BLOCK_INDEX = 7;
+
+    private static final int NODE_LENGTH = 5;
+    private static final int BLOCK_LENGTH = 8;
+
+    private final int[] code;
+    private final Object[] constants;
+    private final String[] filenames;
+    private final AtomicReferenceArray<LiquidrodsNode.Block> blocks;
+
+    private Program(int[] code, Object[] constants, String[] filenames, int blockCount) {
+        this.code = code;
+        this.constants = constants;
+        this.filenames = filenames;
+        this.blocks = new AtomicReferenceArray<LiquidrodsNode.Block>(blockCount);
+    }
+
+    /**
+     * Encode nodes into a program
+     */
+    static Program compile(List<LiquidrodsNode> nodes) {
+        Compiler compiler = new Compiler();
+        compiler.compile(nodes);
+        return new Program(Arrays.copyOf(compiler.code, compiler.length), compiler.constants.toArray(), compiler.filenames.toArray(new String[compiler.filenames.size()]),
+                compiler.blockCount);
+    }
+
+    private static class Compiler {
+        private int[] code = new int[64];
+        private int length;
+        private final List<Object> constants = new ArrayList<Object>();
+        private final Map<Object, Integer> constantIndices = new HashMap<Object, Integer>();
+        private final List<String> filenames = new ArrayList<String>();
+        private final Map<String, Integer> filenameIndices = new HashMap<String, Integer>();
+        private int blockCount;
+
+        private void compile(List<LiquidrodsNode> nodes) {
+            for (LiquidrodsNode node : nodes) {
+                Class<?> type = node.getClass();
+                if (type == LiquidrodsNode.Text.class) {
+                    instruction(TEXT, node, constant(((LiquidrodsNode.Text) node).getValue()));
+                } else if (type == LiquidrodsNode.Variable.class) {
+                    LiquidrodsNode.Variable variable = (LiquidrodsNode.Variable) node;
+                    instruction(variable.isRaw() ? RAW_VARIABLE : VARIABLE, node, constant(variable.getName()));
+                } else if (type == LiquidrodsNode.Block.class) {
+                    LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                    int start = length;
+                    instruction(BLOCK, node, constant(block.getName()));
+                    append(block.getArg() == null ? -1 : constant(block.getArg()));
+                    append(0);
+                    append(blockCount++);
+                    compile(block.getChildren());
+                    code[start + END] = length;
+                } else {
+                    // subclasses carry more than what the instructions can encode
+                    instruction(NODE, node, node(node));
+                }
+            }
+        }
+
+        private void instruction(int opcode, LiquidrodsNode node, int value) {
+            append(opcode);
+            append(filename(node.getFilename()));
+            append(node.getRow());
+            append(node.getCol());
+            append(value);
+        }
+
+        private void append(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = value;
+        }
+
+        private int constant(String value) {
+            Integer res = constantIndices.get(value);
+            if (res == null) {
+                res = constants.size();
+                constants.add(value);
+                constantIndices.put(value, res);
+            }
+            return res;
+        }
+
+        private int node(LiquidrodsNode node) {
+            constants.add(node);
+            return constants.size() - 1;
+        }
+
+        private int filename(String filename) {
+            Integer res = filenameIndices.get(filename);
+            if (res == null) {
+                res = filenames.size();
+                filenames.add(filename);
+                filenameIndices.put(filename, res);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Decode the whole program back into nodes
+     */
+    List<LiquidrodsNode> nodes() {
+        return nodes(0, code.length);
+    }
+
+    private List<LiquidrodsNode> nodes(int from, int to) {
+        List<LiquidrodsNode> res = new ArrayList<LiquidrodsNode>();
+        for (int pc = from; pc < to; pc = next(pc)) {
+            res.add(node(pc));
+        }
+        return res;
+    }
+
+    private LiquidrodsNode node(int pc) {
+        String filename = filenames[code[pc + FILE]];
+        int row = code[pc + ROW];
+        int col = code[pc + COL];
+        switch (code[pc]) {
+            case TEXT:
+                return new LiquidrodsNode.Text((String) constants[code[pc + VALUE]], filename, row, col);
+            case VARIABLE:
+            case RAW_VARIABLE:
+                return new LiquidrodsNode.Variable((String) constants[code[pc + VALUE]], code[pc] == RAW_VARIABLE, filename, row, col);
+            case NODE:
+                return (LiquidrodsNode) constants[code[pc + VALUE]];
+            default:
+                return block(pc);
+        }
+    }
+
+    /**
+     * @return the node form of the tag at the specified position, decoded on first use
+     */
+    private LiquidrodsNode.Block block(int pc) {
+        LiquidrodsNode.Block res = blocks.get(code[pc + BLOCK_INDEX]);
+        if (res == null) {
+            String arg = code[pc + ARG] < 0 ? null : (String) constants[code[pc + ARG]];
+            res = new LiquidrodsNode.Block((String) constants[code[pc + VALUE]], arg, nodes(pc + BLOCK_LENGTH, code[pc + END]), filenames[code[pc + FILE]],
+                    code[pc + ROW], code[pc + COL]);
+            // keep a single node per tag, as e.g. the fragment cache tells tags apart by identity
+            if (!blocks.compareAndSet(code[pc + BLOCK_INDEX], null, res)) {
+                res = blocks.get(code[pc + BLOCK_INDEX]);
+            }
+        }
+        return res;
+    }
+
+    private int next(int pc) {
+        return code[pc] == BLOCK ? code[pc + END] : pc + NODE_LENGTH;
+    }
+
+    /**
+     * Render the whole program. Only valid with a configuration using the {@link Config#hasBuiltinRenderer() built-in renderer}, which it stands for.
+     */
+    void render(Context context, Config config, Writer out) throws IOException {
+        run(0, code.length, context, config, out);
+    }
+
+    private void run(int from, int to, Context context, Config config, Writer out) throws IOException {
+        int pc = from;
+        while (pc < to) {
+            switch (code[pc]) {
+                case TEXT:
+                    out.write((String) constants[code[pc + VALUE]]);
+                    break;
+                case VARIABLE:
+                case RAW_VARIABLE:
+                    Object value = context.resolve((String) constants[code[pc + VALUE]]);
+                    if (value != null) {
+                        config.valueWriter(value.getClass()).write(value, code[pc] == RAW_VARIABLE ? null : config.escaper(), out);
+                    }
+                    break;
+                case NODE:
+                    config.defaultRenderer().render((LiquidrodsNode) constants[code[pc + VALUE]], context, config, out);
+                    break;
+                default:
+                    runBlock(pc, context, config, out);
+            }
+            pc = next(pc);
+        }
+    }
+
+    private void runBlock(int pc, Context context, Config config, Writer out) throws IOException {
+        String name = (String) constants[code[pc + VALUE]];
+        BlockHandler handler = config.handlers().get(name);
+        if (handler == null) {
+            throw new RuntimeException("No handler for block " + name);
+        }
+        int body = pc + BLOCK_LENGTH;
+        int end = code[pc + END];
+        // only the built-in handlers themselves are interpreted: a subclass may override how they render
+        Class<?> type = handler.getClass();
+        if (type == Config.ChildrenBlock.class) {
+            run(body, end, context, config, out);
+        } else if (type == IfBlock.class && code[pc + ARG] >= 0) {
+            boolean doit = ((IfBlock) handler).test(context.resolve((String) constants[code[pc + ARG]]));
+            for (int child = body; child < end; child = next(child)) {
+                if (code[child] == BLOCK && "else".equals(constants[code[child + VALUE]])) {
+                    if (doit) {
+                        return;
+                    }
+                    doit = true;
+                } else if (doit) {
+                    run(child, next(child), context, config, out);
+                }
+            }
+        } else if (type == IterBlock.class && code[pc + ARG] >= 0) {
+            Object value = context.resolve((String) constants[code[pc + ARG]]);
+            if (value != null) {
+                IterBlock.iterate(value, new ProgramIterContext(context, body, end, config, out));
+            }
+        } else {
+            handler.render(block(pc), context, config, out);
+        }
+    }
+
+    private class ProgramIterContext extends IterBlock.IterContext {
+        private final int from;
+        private final int to;
+        private final Config config;
+        private final Writer out;
+
+        private ProgramIterContext(Context parent, int from, int to, Config config, Writer out) {
+            // rendering from a program implies no render limits, hence no block to report
+            super(parent, null);
+            this.from = from;
+            this.to = to;
+            this.config = config;
+            this.out = out;
+        }
+
+        @Override
+        void renderBody() throws IOException {
+            run(from, to, this, config, out);
+        }
+    }
+
+    /**
+     * @return the number of ints of the instructions
+     */
+    int size() {
+        return code.length;
+    }
+}
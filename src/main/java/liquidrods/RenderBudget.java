@@ -0,0 +1,114 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * What's left of the {@link RenderLimits} of a render. Carried by the render contexts and updated by the built-in renderer and {@link IterBlock}.
+ */
+class RenderBudget {
+    private final RenderLimits limits;
+    private final boolean hasDeadline;
+    private final long deadline;
+    private long iterations;
+    private int depth;
+    private int untilCheck;
+    private LiquidrodsNode node;
+
+    RenderBudget(RenderLimits limits) {
+        this.limits = limits;
+        this.hasDeadline = limits.timeoutNanos() != Long.MAX_VALUE;
+        this.deadline = hasDeadline ? System.nanoTime() + limits.timeoutNanos() : 0;
+        this.untilCheck = limits.checkInterval();
+    }
+
+    /**
+     * @return a writer failing once the output limit is exceeded
+     */
+    Writer limit(Writer out) {
+        return limits.maxOutputChars() == Long.MAX_VALUE ? out : new LimitedWriter(out);
+    }
+
+    /**
+     * Called before a node is rendered
+     *
+     * @return the node being rendered before this one, to be passed back to {@link #exit(LiquidrodsNode)}
+     */
+    LiquidrodsNode enter(LiquidrodsNode node) {
+        LiquidrodsNode previous = this.node;
+        this.node = node;
+        if (++depth > limits.maxDepth()) {
+            throw new RenderLimitException(RenderLimitException.Limit.DEPTH, limits.maxDepth(), node);
+        }
+        tick();
+        return previous;
+    }
+
+    void exit(LiquidrodsNode previous) {
+        depth--;
+        node = previous;
+    }
+
+    /**
+     * Called before every iteration of a <code>for</code> tag
+     */
+    void iteration(LiquidrodsNode.Block block) {
+        if (++iterations > limits.maxIterations()) {
+            throw new RenderLimitException(RenderLimitException.Limit.ITERATIONS, limits.maxIterations(), block);
+        }
+        tick();
+    }
+
+    private void tick() {
+        if (--untilCheck == 0) {
+            untilCheck = limits.checkInterval();
+            if (hasDeadline && System.nanoTime() - deadline > 0) {
+                throw new RenderLimitException(RenderLimitException.Limit.TIMEOUT, limits.timeoutNanos(), node);
+            }
+        }
+    }
+
+    private class LimitedWriter extends Writer {
+        private final Writer delegate;
+        private long count;
+
+        private LimitedWriter(Writer delegate) {
+            this.delegate = delegate;
+        }
+
+        private void count(int len) {
+            count += len;
+            if (count > limits.maxOutputChars()) {
+                throw new RenderLimitException(RenderLimitException.Limit.OUTPUT_CHARS, limits.maxOutputChars(), node);
+            }
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            count(1);
+            delegate.write(c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            count(len);
+            delegate.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            count(len);
+            delegate.write(str, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package liquidrods;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Stores the output of whole renders, for the templates {@link Template#cached(RenderCache) using it}, keyed by the template and a key identifying the model.
+ * <p/>
+ * The output is stored both as text, written as is when rendering into a writer, and encoded in UTF-8, written as is when rendering into an output stream.
+ * The cache holds at most a given number of bytes, counting both forms: when it's full, the least recently used outputs are evicted. A cache can be shared by several templates.
+ * <p/>
+ * When several renders miss the same output at once, only one of them renders it while the others wait for its output.
+ */
+public class RenderCache {
+    /**
+     * Renders an output on a cache miss
+     */
+    interface Loader {
+        String load();
+    }
+
+    static class Output {
+        private final String text;
+        private final byte[] utf8;
+
+        private Output(String text) {
+            this.text = text;
+            this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        String text() {
+            return text;
+        }
+
+        byte[] utf8() {
+            return utf8;
+        }
+
+        private long size() {
+            return utf8.length + 2L * text.length();
+        }
+    }
+
+    private static class Key {
+        private final Template template;
+        private final Object key;
+
+        private Key(Template template, Object key) {
+            this.template = template;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && template == ((Key) o).template && key.equals(((Key) o).key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(template) + key.hashCode();
+        }
+    }
+
+    private final long maxBytes;
+    private final Map<Key, Output> outputs = new LinkedHashMap<Key, Output>(16, 0.75f, true);
+    private final ConcurrentMap<Key, FutureTask<Output>> loading = new ConcurrentHashMap<Key, FutureTask<Output>>();
+    private long bytes;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+
+    /**
+     * @param maxBytes the maximum total size of the cached outputs, in bytes
+     */
+    public RenderCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The maximum size must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get an output, rendering it with the loader if it isn't cached. Concurrent misses of the same output wait for the first one to render it.
+     */
+    Output get(Template template, Object key, final Loader loader) {
+        final Key cacheKey = new Key(template, key);
+        Output res = cached(cacheKey);
+        if (res != null) {
+            hits.increment();
+            return res;
+        }
+        misses.increment();
+        FutureTask<Output> task = new FutureTask<Output>(new Callable<Output>() {
+            @Override
+            public Output call() {
+                Output output = new Output(loader.load());
+                store(cacheKey, output);
+                return output;
+            }
+        });
+        FutureTask<Output> existing = loading.putIfAbsent(cacheKey, task);
+        if (existing == null) {
+            try {
+                // a render might have stored the output between the lookup and now
+                res = cached(cacheKey);
+                if (res != null) {
+                    return res;
+                }
+                task.run();
+                return result(task);
+            } finally {
+                loading.remove(cacheKey, task);
+            }
+        }
+        return result(existing);
+    }
+
+    private static Output result(FutureTask<Output> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private Output cached(Key key) {
+        synchronized (outputs) {
+            return outputs.get(key);
+        }
+    }
+
+    private void store(Key key, Output output) {
+        if (output.size() > maxBytes) {
+            return;
+        }
+        synchronized (outputs) {
+            Output previous = outputs.put(key, output);
+            bytes += output.size() - (previous == null ? 0 : previous.size());
+            Iterator<Output> it = outputs.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= it.next().size();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Evict the outputs of all templates rendered with models of the specified key
+     *
+     * @param key the model key
+     */
+    public void invalidate(Object key) {
+        synchronized (outputs) {
+            Iterator<Map.Entry<Key, Output>> it = outputs.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Output> entry = it.next();
+                if (entry.getKey().key.equals(key)) {
+                    bytes -= entry.getValue().size();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict all the outputs
+     */
+    public void clear() {
+        synchronized (outputs) {
+            outputs.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return the number of cached outputs
+     */
+    public int size() {
+        synchronized (outputs) {
+            return outputs.size();
+        }
+    }
+
+    /**
+     * @return the total size of the cached outputs, in bytes: 2 per character of their text, plus their UTF-8 encoding
+     */
+    public long bytes() {
+        synchronized (outputs) {
+            return bytes;
+        }
+    }
+
+    /**
+     * @return the number of renders served from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of renders that weren't found in the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,50 @@
+package liquidrods;
+
+/**
+ * Thrown when a render exceeds one of its {@link RenderLimits}
+ */
+public class RenderLimitException extends RuntimeException {
+    public enum Limit {
+        OUTPUT_CHARS, ITERATIONS, DEPTH, TIMEOUT
+    }
+
+    private final Limit limit;
+    private final long value;
+    private final LiquidrodsNode node;
+
+    public RenderLimitException(Limit limit, long value, LiquidrodsNode node) {
+        this.limit = limit;
+        this.value = value;
+        this.node = node;
+    }
+
+    /**
+     * @return the exceeded limit
+     */
+    public Limit getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the value of the exceeded limit, in characters, iterations, levels or nanoseconds
+     */
+    public long getValue() {
+        return value;
+    }
+
+    /**
+     * @return the node being rendered when the limit was exceeded, or null if it happened outside of any node
+     */
+    public LiquidrodsNode getNode() {
+        return node;
+    }
+
+    @Override
+    public String getMessage() {
+        StringBuilder res = new StringBuilder("Render limit exceeded: ").append(limit).append(" ").append(value);
+        if (node != null) {
+            res.append(" while rendering ").append(node).append(" in ").append(node.getFilename()).append(" @ ").append(node.getRow()).append(":").append(node.getCol());
+        }
+        return res.toString();
+    }
+}
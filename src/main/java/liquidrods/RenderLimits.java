@@ -0,0 +1,111 @@
+package liquidrods;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the resources a single render can use, so that a pathological model (a huge collection, a recursive helper, etc.) can't hog the machine.
+ * Pass it to {@link Template#render(Object, java.io.Writer, RenderLimits)}: the render is aborted with a {@link RenderLimitException} as soon as one of the limits is exceeded.
+ * <p/>
+ * Nothing is limited by default.
+ */
+public class RenderLimits {
+    private long maxOutputChars = Long.MAX_VALUE;
+    private long maxIterations = Long.MAX_VALUE;
+    private int maxDepth = Integer.MAX_VALUE;
+    private long timeoutNanos = Long.MAX_VALUE;
+    private int checkInterval = 64;
+
+    /**
+     * @return the maximum number of characters a render can write
+     */
+    public long maxOutputChars() {
+        return maxOutputChars;
+    }
+
+    /**
+     * Limit the number of characters a render can write
+     *
+     * @param maxOutputChars the maximum number of characters
+     * @return self, to enable chaining
+     */
+    public RenderLimits maxOutputChars(long maxOutputChars) {
+        this.maxOutputChars = maxOutputChars;
+        return this;
+    }
+
+    /**
+     * @return the maximum number of iterations, all the <code>for</code> tags of a render combined
+     */
+    public long maxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     * Limit the number of iterations of all the <code>for</code> tags of a render combined
+     *
+     * @param maxIterations the maximum number of iterations
+     * @return self, to enable chaining
+     */
+    public RenderLimits maxIterations(long maxIterations) {
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    /**
+     * @return the maximum nesting depth of the rendered nodes
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Limit how deeply nested the rendered nodes can be. The root nodes of a template are at depth 1, the nodes in their bodies at depth 2, etc.
+     *
+     * @param maxDepth the maximum nesting depth
+     * @return self, to enable chaining
+     */
+    public RenderLimits maxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * @return how long a render can take, in nanoseconds
+     */
+    public long timeoutNanos() {
+        return timeoutNanos;
+    }
+
+    /**
+     * Limit how long a render can take
+     *
+     * @param timeout the maximum duration of a render
+     * @param unit    the timeout unit
+     * @return self, to enable chaining
+     */
+    public RenderLimits timeout(long timeout, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * @return every how many nodes and iterations the timeout is checked
+     */
+    public int checkInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Configure every how many rendered nodes and iterations the timeout is checked. Defaults to 64. The other limits are checked every time.
+     *
+     * @param checkInterval the number of nodes and iterations between two checks
+     * @return self, to enable chaining
+     */
+    public RenderLimits checkInterval(int checkInterval) {
+        if (checkInterval < 1) {
+            throw new IllegalArgumentException("The check interval must be positive: " + checkInterval);
+        }
+        this.checkInterval = checkInterval;
+        return this;
+    }
+}
@@ -0,0 +1,227 @@
+package liquidrods;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An {@link Instrumentation} collecting, per template, a render latency histogram, the output size and the parse time.
+ * <p/>
+ * Register it with {@link Config#instrumentation(Instrumentation)}, then either pull the statistics with {@link #snapshot()} or expose them through JMX with {@link #register(String)}.
+ * Renders are recorded in per-thread stripes, so that threads rendering the same template don't contend with each other.
+ * <p/>
+ * It also counts the hits and misses of the property accessor and selector caches during the renders it's notified of. The caches are shared by all the templates,
+ * but the counts only cover the renders of the configurations this instance is registered with, and only while it is.
+ */
+public class RenderMetrics implements Instrumentation, RenderMetricsMXBean {
+    /**
+     * Used for the templates parsed from a reader
+     */
+    public static final String ANONYMOUS = "<reader>";
+
+    private final ConcurrentMap<String, TemplateMetrics> templates = new ConcurrentHashMap<String, TemplateMetrics>();
+    private final Context.CacheStats cacheStats = new Context.CacheStats();
+    private ObjectName objectName;
+
+    @Override
+    public void parsed(Template template, long nanos) {
+        TemplateMetrics metrics = metrics(template);
+        metrics.parses.incrementAndGet();
+        metrics.parseNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public void rendered(Template template, long nanos, long chars) {
+        metrics(template).renders.record(nanos, chars);
+    }
+
+    private TemplateMetrics metrics(Template template) {
+        String name = template.getName() == null ? ANONYMOUS : template.getName();
+        TemplateMetrics metrics = templates.get(name);
+        if (metrics == null) {
+            metrics = new TemplateMetrics();
+            TemplateMetrics existing = templates.putIfAbsent(name, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the statistics of every template parsed or rendered so far, sorted by template name
+     */
+    public Map<String, TemplateStats> snapshot() {
+        Map<String, TemplateStats> res = new TreeMap<String, TemplateStats>();
+        for (Map.Entry<String, TemplateMetrics> e : templates.entrySet()) {
+            res.put(e.getKey(), e.getValue().snapshot(e.getKey()));
+        }
+        return res;
+    }
+
+    /**
+     * @param name the template name
+     * @return the statistics of the template, or null if it wasn't parsed nor rendered
+     */
+    public TemplateStats stats(String name) {
+        TemplateMetrics metrics = templates.get(name);
+        return metrics == null ? null : metrics.snapshot(name);
+    }
+
+    /**
+     * @return where the renders this instance is notified of count the caches hits and misses
+     */
+    Context.CacheStats cacheStats() {
+        return cacheStats;
+    }
+
+    @Override
+    public Map<String, TemplateStats> getTemplates() {
+        return snapshot();
+    }
+
+    @Override
+    public long getAccessorCacheHits() {
+        return cacheStats.accessorHits.sum();
+    }
+
+    @Override
+    public long getAccessorCacheMisses() {
+        return cacheStats.accessorMisses.sum();
+    }
+
+    @Override
+    public long getPartsCacheHits() {
+        return cacheStats.partsHits.sum();
+    }
+
+    @Override
+    public long getPartsCacheMisses() {
+        return cacheStats.partsMisses.sum();
+    }
+
+    @Override
+    public void reset() {
+        templates.clear();
+        cacheStats.reset();
+    }
+
+    /**
+     * Expose these metrics through the platform MBean server, as <code>liquidrods:type=RenderMetrics,name={name}</code>
+     *
+     * @param name distinguishes this instance from the other registered ones
+     * @return self, to enable chaining
+     */
+    public synchronized RenderMetrics register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("liquidrods:type=RenderMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Remove these metrics from the platform MBean server, if they were registered
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                throw new RuntimeException(e);
+            }
+            objectName = null;
+        }
+    }
+
+    private static class TemplateMetrics {
+        private final Histogram renders = new Histogram();
+        private final AtomicLong parses = new AtomicLong();
+        private final AtomicLong parseNanos = new AtomicLong();
+
+        private TemplateStats snapshot(String name) {
+            return renders.snapshot(name, parses.get(), parseNanos.get());
+        }
+    }
+
+    /**
+     * Render latencies, bucketed by their power of 2, along with the render count, total time and total output size, striped by thread
+     */
+    private static class Histogram {
+        private static final int COUNT = 0, NANOS = 1, CHARS = 2, FIRST_BUCKET = 3;
+        private static final int BUCKETS = 40;
+        /**
+         * Longs per stripe: the counters and buckets rounded up to a multiple of a 64 bytes cache line
+         */
+        private static final int ROW = 48;
+
+        private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * ROW);
+
+        private void record(long nanos, long chars) {
+            int row = StripedCounter.stripe() * ROW;
+            cells.incrementAndGet(row + COUNT);
+            cells.addAndGet(row + NANOS, nanos);
+            cells.addAndGet(row + CHARS, chars);
+            cells.incrementAndGet(row + FIRST_BUCKET + bucket(nanos));
+        }
+
+        private static int bucket(long nanos) {
+            return Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), BUCKETS - 1);
+        }
+
+        /**
+         * @return the upper bound of the values in a bucket
+         */
+        private static long bound(int bucket) {
+            return (1L << bucket) - 1;
+        }
+
+        private TemplateStats snapshot(String name, long parses, long parseNanos) {
+            long count = 0, nanos = 0, chars = 0;
+            long[] buckets = new long[BUCKETS];
+            for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+                int row = stripe * ROW;
+                count += cells.get(row + COUNT);
+                nanos += cells.get(row + NANOS);
+                chars += cells.get(row + CHARS);
+                for (int i = 0; i < BUCKETS; i++) {
+                    buckets[i] += cells.get(row + FIRST_BUCKET + i);
+                }
+            }
+            return new TemplateStats(name, count, nanos, percentile(buckets, 0.5), percentile(buckets, 0.9), percentile(buckets, 0.99), percentile(buckets, 1),
+                    chars, parses, parseNanos);
+        }
+
+        private static long percentile(long[] buckets, double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return bound(i);
+                }
+            }
+            return bound(BUCKETS - 1);
+        }
+    }
+}
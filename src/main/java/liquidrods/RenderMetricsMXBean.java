@@ -0,0 +1,26 @@
+package liquidrods;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link RenderMetrics}
+ */
+public interface RenderMetricsMXBean {
+    /**
+     * @return the statistics of every template parsed or rendered so far, keyed by template name
+     */
+    Map<String, TemplateStats> getTemplates();
+
+    long getAccessorCacheHits();
+
+    long getAccessorCacheMisses();
+
+    long getPartsCacheHits();
+
+    long getPartsCacheMisses();
+
+    /**
+     * Forget the collected statistics
+     */
+    void reset();
+}
@@ -0,0 +1,90 @@
+package liquidrods;
+
+/**
+ * The per-thread buffers {@link Template#renderPooled(Object)} and {@link Template#render(Object, java.io.OutputStream)} render into, so that once warmed up, rendering a template on a thread doesn't allocate its output buffer anew.
+ * <p/>
+ * A render started while the buffers of its thread are in use, e.g. by a helper rendering another template, gets fresh buffers instead.
+ * Buffers that grew past {@link #MAX_RETAINED} characters are dropped once the render is done rather than kept alive for the lifetime of the thread.
+ */
+class RenderPool {
+    static final int MAX_RETAINED = 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final ThreadLocal<RenderPool> POOLS = new ThreadLocal<RenderPool>() {
+        @Override
+        protected RenderPool initialValue() {
+            return new RenderPool();
+        }
+    };
+
+    private final StringBuilder builder;
+    private final StringBuilderWriter writer;
+    private char[] chars;
+    private byte[] bytes;
+    private boolean inUse;
+
+    private RenderPool() {
+        this(new StringBuilder(INITIAL_CAPACITY));
+    }
+
+    private RenderPool(StringBuilder builder) {
+        this.builder = builder;
+        this.writer = new StringBuilderWriter(builder);
+    }
+
+    /**
+     * @return the buffers of the current thread, emptied, or fresh ones if they're already in use
+     */
+    static RenderPool acquire() {
+        RenderPool pool = POOLS.get();
+        if (pool.inUse) {
+            return new RenderPool();
+        }
+        pool.inUse = true;
+        pool.builder.setLength(0);
+        return pool;
+    }
+
+    /**
+     * Hand the buffers back to the current thread. The content of {@link #builder()} remains readable until the next {@link #acquire()}.
+     */
+    void release() {
+        if (!inUse) {
+            return;
+        }
+        inUse = false;
+        if (builder.capacity() > MAX_RETAINED) {
+            POOLS.remove();
+        } else if (chars != null && chars.length > MAX_RETAINED) {
+            chars = null;
+        }
+    }
+
+    StringBuilder builder() {
+        return builder;
+    }
+
+    StringBuilderWriter writer() {
+        return writer;
+    }
+
+    /**
+     * @return a scratch array holding at least the specified number of characters
+     */
+    char[] chars(int length) {
+        if (chars == null || chars.length < length) {
+            chars = new char[Math.max(length, INITIAL_CAPACITY)];
+        }
+        return chars;
+    }
+
+    /**
+     * @return the buffer to encode the output of {@link Template#render(Object, java.io.OutputStream)} into
+     */
+    byte[] bytes() {
+        if (bytes == null) {
+            bytes = new byte[8192];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,230 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sampling profiler attributing render time and output size to the individual variables, tags and texts of the templates, i.e. to their source positions.
+ * <p/>
+ * {@link #install(Config) Installed} on a configuration, it times a random fraction of the renders of the templates using it. Every node rendered during a sampled render is timed,
+ * and its self time (its time minus the time of the nodes it rendered) and output size are accumulated under the stack of tags it was rendered from.
+ * Since included and extended templates are merged into the templates using them, the stack frames carry the file each node comes from.
+ * <p/>
+ * The results are reported in the collapsed stacks format, one line per stack, that flame graph tools (e.g. <code>flamegraph.pl</code>) take as input.
+ */
+public class RenderProfiler {
+    private final double sampleRate;
+    private final Frame root = new Frame(null);
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * @param sampleRate the fraction of the renders to time, between 0 and 1
+     */
+    public RenderProfiler(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("The sample rate must be between 0 and 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Profile the renders of the templates using a configuration, including the already parsed ones, by decorating its {@link Config#defaultRenderer() default renderer}
+     *
+     * @param config the configuration to profile
+     * @return self, to enable chaining
+     */
+    public RenderProfiler install(Config config) {
+        config.defaultRenderer(new ProfilingRenderer(config.defaultRenderer()));
+        return this;
+    }
+
+    /**
+     * Stop profiling the renders of the templates using a configuration, if this profiler was the last renderer installed on it
+     *
+     * @param config the profiled configuration
+     */
+    public void uninstall(Config config) {
+        if (config.defaultRenderer() instanceof ProfilingRenderer && ((ProfilingRenderer) config.defaultRenderer()).profiler() == this) {
+            config.defaultRenderer(((ProfilingRenderer) config.defaultRenderer()).delegate);
+        }
+    }
+
+    /**
+     * @return the sampled self times, in nanoseconds, as collapsed stacks
+     */
+    public String collapsedTimes() {
+        return collapsed(true);
+    }
+
+    /**
+     * @return the sampled output sizes, in characters, as collapsed stacks
+     */
+    public String collapsedOutput() {
+        return collapsed(false);
+    }
+
+    private String collapsed(boolean times) {
+        StringWriter res = new StringWriter();
+        try {
+            writeCollapsed(root, "", times, res);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return res.toString();
+    }
+
+    private static void writeCollapsed(Frame frame, String stack, boolean times, Writer out) throws IOException {
+        for (Frame child : frame.children.values()) {
+            String childStack = stack.isEmpty() ? child.label() : stack + ";" + child.label();
+            long value = times ? child.nanos.get() : child.chars.get();
+            if (value > 0) {
+                out.write(childStack + " " + value + "\n");
+            }
+            writeCollapsed(child, childStack, times, out);
+        }
+    }
+
+    /**
+     * Forget the collected samples
+     */
+    public void reset() {
+        root.children.clear();
+    }
+
+    private static class Frame {
+        private final LiquidrodsNode node;
+        private final ConcurrentMap<LiquidrodsNode, Frame> children = new ConcurrentHashMap<LiquidrodsNode, Frame>();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong chars = new AtomicLong();
+
+        private Frame(LiquidrodsNode node) {
+            this.node = node;
+        }
+
+        private Frame child(LiquidrodsNode node) {
+            Frame child = children.get(node);
+            if (child == null) {
+                child = new Frame(node);
+                Frame existing = children.putIfAbsent(node, child);
+                if (existing != null) {
+                    child = existing;
+                }
+            }
+            return child;
+        }
+
+        private String label() {
+            String res;
+            if (node instanceof LiquidrodsNode.Variable) {
+                LiquidrodsNode.Variable variable = (LiquidrodsNode.Variable) node;
+                res = variable.isRaw() ? "{{{" + variable.getName() + "}}}" : "{{" + variable.getName() + "}}";
+            } else if (node instanceof LiquidrodsNode.Block) {
+                LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                res = "{% " + block.getName() + (block.getArg() == null ? "" : " " + block.getArg()) + " %}";
+            } else {
+                res = "text";
+            }
+            // ';' separates the frames of a collapsed stack
+            return res.replace(';', ',') + " " + node.getFilename() + ":" + node.getRow() + ":" + node.getCol();
+        }
+    }
+
+    /**
+     * The per-thread profiling state: how deep the renderer is in the current render, whether it's sampled and if so, the frames being timed
+     */
+    private static class State {
+        private int depth;
+        /**
+         * The root context of the last render, to tell its root nodes from the next render's. Only weakly referenced, since the renderer isn't told when a render is over:
+         * the thread mustn't keep the model of its last render alive.
+         */
+        private WeakReference<Context> renderContext;
+        private boolean sampled;
+        private CountingWriter out;
+        private final List<Frame> frames = new ArrayList<Frame>();
+        private long[] childNanos = new long[16];
+        private long[] childChars = new long[16];
+    }
+
+    private class ProfilingRenderer implements Config.Renderer {
+        private final Config.Renderer delegate;
+
+        private ProfilingRenderer(Config.Renderer delegate) {
+            this.delegate = delegate;
+        }
+
+        private RenderProfiler profiler() {
+            return RenderProfiler.this;
+        }
+
+        @Override
+        public void render(LiquidrodsNode node, Context context, Config config, Writer out) throws IOException {
+            State state = states.get();
+            if (state.depth == 0 && (state.renderContext == null || context != state.renderContext.get())) {
+                // the root nodes of a template are all rendered with the same root context
+                state.renderContext = new WeakReference<Context>(context);
+                state.sampled = sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+            }
+            if (!state.sampled) {
+                state.depth++;
+                try {
+                    delegate.render(node, context, config, out);
+                } finally {
+                    state.depth--;
+                }
+                return;
+            }
+
+            int depth = state.depth;
+            if (depth == 0) {
+                state.out = new CountingWriter(out);
+                out = state.out;
+            }
+            Frame frame = (depth == 0 ? root : state.frames.get(depth - 1)).child(node);
+            if (state.frames.size() == depth) {
+                state.frames.add(frame);
+            } else {
+                state.frames.set(depth, frame);
+            }
+            if (state.childNanos.length == depth) {
+                state.childNanos = Arrays.copyOf(state.childNanos, depth * 2);
+                state.childChars = Arrays.copyOf(state.childChars, depth * 2);
+            }
+            state.childNanos[depth] = 0;
+            state.childChars[depth] = 0;
+            long start = System.nanoTime();
+            long startChars = state.out.getCount();
+            state.depth++;
+            try {
+                delegate.render(node, context, config, out);
+            } finally {
+                state.depth--;
+                long nanos = System.nanoTime() - start;
+                long chars = state.out.getCount() - startChars;
+                frame.nanos.addAndGet(nanos - state.childNanos[depth]);
+                frame.chars.addAndGet(chars - state.childChars[depth]);
+                if (depth > 0) {
+                    state.childNanos[depth - 1] += nanos;
+                    state.childChars[depth - 1] += chars;
+                } else {
+                    // counted per root node: don't keep the render's writer either
+                    state.out = null;
+                }
+            }
+        }
+    }
+}
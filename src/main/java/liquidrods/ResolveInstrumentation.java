@@ -0,0 +1,20 @@
+package liquidrods;
+
+/**
+ * An {@link Instrumentation} also notified of the variables and tag parameters that took long to evaluate
+ */
+public interface ResolveInstrumentation extends Instrumentation {
+    /**
+     * @return how long, in nanoseconds, evaluating a selector must take for {@link #slowResolve(LiquidrodsNode, String, long)} to be called
+     */
+    long slowResolveThresholdNanos();
+
+    /**
+     * Called after a variable or a tag parameter took at least {@link #slowResolveThresholdNanos()} to evaluate
+     *
+     * @param node     the variable or the tag whose parameter was evaluated. Gives the template name and position of the selector.
+     * @param selector the evaluated selector
+     * @param nanos    how long it took
+     */
+    void slowResolve(LiquidrodsNode node, String selector, long nanos);
+}
@@ -0,0 +1,145 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Drives {@link Template#specialize(Object)}: walks a template and folds what only depends on the constants into text.
+ * <p/>
+ * A selector depends only on the constants when its first segment is a property of the constants object and it's evaluated against the template model,
+ * i.e. outside of the body of <code>for</code> and custom tags, whose context might provide a property by the same name. Then:
+ * <ul>
+ * <li>variables are rendered into text</li>
+ * <li><code>if</code> and <code>ifnot</code> tags are replaced by the branch they would render</li>
+ * <li><code>for</code> tags over an empty collection are dropped, and those whose body is only text are rendered into text</li>
+ * </ul>
+ * Adjacent texts are then merged.
+ */
+class Specializer {
+    private final Object constants;
+    private final Context context;
+    private final Config config;
+
+    Specializer(Object constants, Config config) {
+        this.constants = constants;
+        this.context = new Context(null, constants);
+        this.config = config;
+    }
+
+    List<LiquidrodsNode> specialize(List<LiquidrodsNode> nodes) {
+        List<LiquidrodsNode> res = new ArrayList<LiquidrodsNode>(nodes.size());
+        for (LiquidrodsNode node : nodes) {
+            if (node instanceof LiquidrodsNode.Variable) {
+                if (isConstant(((LiquidrodsNode.Variable) node).getName())) {
+                    addText(res, render(node), node);
+                } else {
+                    res.add(node);
+                }
+            } else if (node instanceof LiquidrodsNode.Block) {
+                specialize((LiquidrodsNode.Block) node, res);
+            } else {
+                addText(res, ((LiquidrodsNode.Text) node).getValue(), node);
+            }
+        }
+        return res;
+    }
+
+    private void specialize(LiquidrodsNode.Block block, List<LiquidrodsNode> res) {
+        String name = block.getName();
+        BlockHandler handler = config.handlers().get(name);
+        boolean constant = block.getArg() != null && isConstant(block.getArg());
+        if (handler instanceof IfBlock) {
+            if (constant) {
+                boolean doit = ((IfBlock) handler).test(context.resolveArg(block));
+                for (LiquidrodsNode node : specialize(IfBlock.branch(block.getChildren(), doit))) {
+                    add(res, node);
+                }
+            } else {
+                res.add(Binder.withChildren(block, specialize(block.getChildren())));
+            }
+        } else if (handler instanceof IterBlock) {
+            if (constant && isEmpty(context.resolveArg(block))) {
+                return;
+            }
+            if (constant && onlyText(block.getChildren())) {
+                addText(res, render(block), block);
+            } else {
+                res.add(block);
+            }
+        } else if ("block".equals(name) || handler instanceof CacheBlock) {
+            res.add(Binder.withChildren(block, specialize(block.getChildren())));
+        } else {
+            res.add(block);
+        }
+    }
+
+    private boolean isConstant(String selector) {
+        if (".".equals(selector) || "this".equals(selector) || constants == null) {
+            return false;
+        }
+        String first;
+        try {
+            first = Context.selectorParts(selector).get(0);
+        } catch (RuntimeException e) {
+            // let the render report it
+            return false;
+        }
+        if (first.startsWith("#") || ".".equals(first) || "this".equals(first)) {
+            return false;
+        }
+        if (constants instanceof Map) {
+            return ((Map<?, ?>) constants).containsKey(first);
+        }
+        return Context.accessorFor(constants.getClass(), constants.getClass(), first) != Context.Accessor.NoAccessor.INSTANCE;
+    }
+
+    private static boolean isEmpty(Object value) {
+        return value == null || value instanceof Collection && ((Collection<?>) value).isEmpty() || value instanceof Map && ((Map<?, ?>) value).isEmpty()
+                || value.getClass().isArray() && java.lang.reflect.Array.getLength(value) == 0;
+    }
+
+    private static boolean onlyText(List<LiquidrodsNode> nodes) {
+        for (LiquidrodsNode node : nodes) {
+            if (!(node instanceof LiquidrodsNode.Text)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String render(LiquidrodsNode node) {
+        StringBuilderWriter res = new StringBuilderWriter(new StringBuilder());
+        try {
+            config.defaultRenderer().render(node, context, config, res);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return res.toString();
+    }
+
+    private static void add(List<LiquidrodsNode> res, LiquidrodsNode node) {
+        if (node instanceof LiquidrodsNode.Text) {
+            addText(res, ((LiquidrodsNode.Text) node).getValue(), node);
+        } else {
+            res.add(node);
+        }
+    }
+
+    /**
+     * Append a text, merging it with the previous node if it's a text too
+     */
+    private static void addText(List<LiquidrodsNode> res, String text, LiquidrodsNode source) {
+        if (text.isEmpty()) {
+            return;
+        }
+        if (!res.isEmpty() && res.get(res.size() - 1) instanceof LiquidrodsNode.Text) {
+            LiquidrodsNode.Text previous = (LiquidrodsNode.Text) res.get(res.size() - 1);
+            res.set(res.size() - 1, new LiquidrodsNode.Text(previous.getValue() + text, previous.getFilename(), previous.getRow(), previous.getCol()));
+        } else {
+            res.add(new LiquidrodsNode.Text(text, source.getFilename(), source.getRow(), source.getCol()));
+        }
+    }
+}
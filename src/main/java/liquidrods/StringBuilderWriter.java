@@ -0,0 +1,69 @@
+package liquidrods;
+
+import java.io.Writer;
+
+/**
+ * A writer appending to a {@link StringBuilder}. Unlike {@link java.io.StringWriter}, which is backed by a {@link StringBuffer}, it doesn't synchronize on every write.
+ */
+class StringBuilderWriter extends Writer {
+    private final StringBuilder builder;
+
+    StringBuilderWriter(StringBuilder builder) {
+        this.builder = builder;
+    }
+
+    StringBuilder getBuilder() {
+        return builder;
+    }
+
+    @Override
+    public void write(int c) {
+        builder.append((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        builder.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str) {
+        builder.append(str);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        builder.append(str, off, off + len);
+    }
+
+    @Override
+    public Writer append(CharSequence csq) {
+        builder.append(csq);
+        return this;
+    }
+
+    @Override
+    public Writer append(CharSequence csq, int start, int end) {
+        builder.append(csq, start, end);
+        return this;
+    }
+
+    @Override
+    public Writer append(char c) {
+        builder.append(c);
+        return this;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+}
@@ -0,0 +1,50 @@
+package liquidrods;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cache lines, indexed by thread, so that threads incrementing it concurrently don't contend on the same one
+ */
+class StripedCounter {
+    /**
+     * Longs per stripe: 64 bytes, the usual cache line size
+     */
+    private static final int PADDING = 8;
+
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * @return the number of stripes to use: the number of processors rounded up to a power of 2, capped at 16
+     */
+    private static int stripes() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+        return Integer.highestOneBit(processors * 2 - 1);
+    }
+
+    /**
+     * @return the stripe the current thread should update
+     */
+    static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    void increment() {
+        cells.getAndIncrement(stripe() * PADDING);
+    }
+
+    long sum() {
+        long res = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            res += cells.get(i * PADDING);
+        }
+        return res;
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package liquidrods;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
 
 /**
  * A parsed template that can be rendered using {@link Template#render(Object, java.io.Writer)}
@@ -13,6 +15,28 @@ import java.util.Map;
 public class Template {
     private List<LiquidrodsNode> rootNodes;
     private Config config;
+    private Set<String> dependencies = new LinkedHashSet<String>();
+    private Map<String, byte[]> sources = new LinkedHashMap<String, byte[]>();
+    private List<Object> constants = Collections.emptyList();
+    private String name;
+    private final OutputSizeEstimator outputSize = new OutputSizeEstimator();
+    private RenderCache renderCache;
+    private Program program;
+    private volatile SoftReference<List<LiquidrodsNode>> decodedNodes;
+    private volatile HeadText headText;
+
+    /**
+     * The text closing the <code>head</code> element, found in a list of root nodes
+     */
+    private static class HeadText {
+        private final WeakReference<List<LiquidrodsNode>> nodes;
+        private final LiquidrodsNode.Text text;
+
+        private HeadText(List<LiquidrodsNode> nodes, LiquidrodsNode.Text text) {
+            this.nodes = new WeakReference<List<LiquidrodsNode>>(nodes);
+            this.text = text;
+        }
+    }
 
     /**
      * Creates a template. You shouldn't be using this most of the time, but rather {@link Liquidrods#parse(java.io.Reader)} or {@link Liquidrods#parse(String)} to create a template.
@@ -25,6 +49,27 @@ public class Template {
         this.config = config;
         processIncludes();
         processExtends();
+        this.rootNodes = interned(this.rootNodes, config);
+    }
+
+    private Template(List<LiquidrodsNode> rootNodes, Config config, Set<String> dependencies) {
+        this.rootNodes = rootNodes;
+        this.config = config;
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Creates a template from nodes whose includes and extends were already processed, interned if the configuration asks for it
+     */
+    static Template linked(List<LiquidrodsNode> rootNodes, Config config, Set<String> dependencies) {
+        return new Template(interned(rootNodes, config), config, dependencies);
+    }
+
+    /**
+     * @return the nodes, interned if the configuration asks for it. The texts kept in a {@link TextArena} or in their files are left as is, the nodes holding them interned
+     */
+    private static List<LiquidrodsNode> interned(List<LiquidrodsNode> rootNodes, Config config) {
+        return config != null && config.internTemplates() ? NodeInterner.SHARED.intern(rootNodes) : rootNodes;
     }
 
     private void processIncludes() {
@@ -35,6 +80,9 @@ public class Template {
                 if ("include".equals(block.getName())) {
                     final Template included = Liquidrods.parse(block.getArg(), config);
                     mergedNodes.addAll(included.getRootNodes());
+                    dependencies.add(block.getArg());
+                    dependencies.addAll(included.dependencies);
+                    sources.putAll(included.sources);
                 } else {
                     mergedNodes.add(block);
                 }
@@ -79,8 +127,11 @@ public class Template {
 
         if (parentTemplate != null) {
             Template parent = Liquidrods.parse(parentTemplate, config);
-            List<LiquidrodsNode> mergedNodes = new ArrayList<LiquidrodsNode>(parent.rootNodes.size());
-            for (LiquidrodsNode node : parent.rootNodes) {
+            dependencies.add(parentTemplate);
+            dependencies.addAll(parent.dependencies);
+            sources.putAll(parent.sources);
+            List<LiquidrodsNode> mergedNodes = new ArrayList<LiquidrodsNode>(parent.getRootNodes().size());
+            for (LiquidrodsNode node : parent.getRootNodes()) {
                 if (node instanceof LiquidrodsNode.Block) {
                     final LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
                     if ("block".equals(block.getName())) {
@@ -101,8 +152,161 @@ public class Template {
         }
     }
 
+    /**
+     * @return the logical name this template was loaded from, or null if it was parsed from a reader
+     */
+    public String getName() {
+        return name;
+    }
+
+    Config getConfig() {
+        return config;
+    }
+
+    Template named(String name) {
+        this.name = name;
+        return this;
+    }
+
+    /**
+     * Name this template after the source it was parsed from
+     *
+     * @param hash the hash of the exact text that was parsed, see {@link TemplateSerializer#hash(java.io.Reader)}
+     */
+    Template parsedFrom(String name, byte[] hash) {
+        Map<String, byte[]> res = new LinkedHashMap<String, byte[]>();
+        res.put(name, hash);
+        res.putAll(sources);
+        sources = res;
+        return named(name);
+    }
+
     public List<LiquidrodsNode> getRootNodes() {
-        return rootNodes;
+        if (rootNodes != null) {
+            return rootNodes;
+        }
+        // compact template: decode the nodes, and keep them while memory allows
+        SoftReference<List<LiquidrodsNode>> ref = decodedNodes;
+        List<LiquidrodsNode> res = ref == null ? null : ref.get();
+        if (res == null) {
+            res = program.nodes();
+            decodedNodes = new SoftReference<List<LiquidrodsNode>>(res);
+        }
+        return res;
+    }
+
+    /**
+     * @return the names of the templates this one includes or extends, directly or not
+     */
+    Set<String> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * @return the hashes of the texts this template and its dependencies were parsed from, keyed by source name. Missing for the sources it wasn't parsed from by name.
+     */
+    Map<String, byte[]> getSources() {
+        return sources;
+    }
+
+    /**
+     * @return a copy of this template with other nodes, built from the same sources
+     */
+    private Template derived(List<LiquidrodsNode> rootNodes) {
+        Template res = new Template(rootNodes, config, dependencies).named(name);
+        res.sources = sources;
+        res.constants = constants;
+        return res;
+    }
+
+    /**
+     * Checks this template against a model type and precomputes how its selectors are evaluated, so that they don't need to be looked up again on every render.
+     * <p/>
+     * The selectors that go through maps or untyped values, or that appear in the body of custom tags, are still resolved dynamically.
+     *
+     * @param modelType the type of the model objects the returned template will be rendered with
+     * @return a template rendering the same output as this one for models of the specified type
+     * @throws BindException if some selectors don't resolve against the model type
+     */
+    public Template bind(Class<?> modelType) {
+        Binder binder = new Binder(modelType);
+        List<LiquidrodsNode> boundNodes = binder.bind(getRootNodes());
+        if (!binder.getProblems().isEmpty()) {
+            throw new BindException(binder.getProblems());
+        }
+        return derived(boundNodes);
+    }
+
+    /**
+     * Partially evaluates this template against values that don't change between renders, e.g. the site name or feature flags.
+     * <p/>
+     * The selectors whose first segment is a property of the constants object are evaluated once against it, and the variables, <code>if</code> and <code>for</code> tags depending
+     * only on them are folded into text, so that the returned template does less work on every render. Selectors in the body of <code>for</code> and custom tags are left alone,
+     * since the context of those bodies could define the same properties.
+     * <p/>
+     * The constants stay reachable when the returned template renders: the selectors that weren't folded fall back to them when the model doesn't define their first property.
+     * The returned template thus renders the same output as this one rendered with a model also holding the constants, as long as the models it's rendered with don't define
+     * the properties of the constants object themselves.
+     *
+     * @param constants the object providing the constant properties, e.g. a map
+     * @return the specialized template
+     */
+    public Template specialize(Object constants) {
+        Template res = derived(new Specializer(constants, config).specialize(getRootNodes()));
+        res.constants = new ArrayList<Object>(this.constants);
+        res.constants.add(constants);
+        return res;
+    }
+
+    /**
+     * Create a copy of this template caching the output of its renders, for immutable models repeating heavily. Only the renders of models implementing {@link CacheKeyed}
+     * and those given an explicit key, with {@link #renderCached(Object, Object, Writer)} or {@link #renderCached(Object, Object, OutputStream)}, are cached.
+     * <p/>
+     * Renders served from the cache don't evaluate anything, so they're not reported to the {@link Config#instrumentation() instrumentation}.
+     * Since {@link #bind(Class)} and {@link #specialize(Object)} return templates without a cache, call them first.
+     *
+     * @param renderCache where to store the outputs
+     * @return a template rendering the same output as this one
+     */
+    public Template cached(RenderCache renderCache) {
+        Template res = derived(rootNodes);
+        res.program = program;
+        res.renderCache = renderCache;
+        return res;
+    }
+
+    /**
+     * @return a copy of this template with its texts moved into an arena, compact if this one is
+     */
+    Template stored(TextArena arena) {
+        Template res = derived(interned(arena.store(getRootNodes()), config));
+        res.renderCache = renderCache;
+        return program == null ? res : res.compact();
+    }
+
+    /**
+     * @return a copy of this template with its long texts replaced by the regions of their files, compact if this one is
+     */
+    Template withFileRegions(FileRegions regions) {
+        Template res = derived(interned(regions.apply(getRootNodes()), config));
+        res.renderCache = renderCache;
+        return program == null ? res : res.compact();
+    }
+
+    /**
+     * Create a copy of this template holding its nodes in a compact form: a single array of int instructions and a pool of constants (texts, selectors),
+     * instead of a graph of node objects. Takes less memory, which matters when many templates are loaded, and is rendered by walking the instructions linearly.
+     * <p/>
+     * Custom tags still get their {@link LiquidrodsNode.Block} node, decoded on first use. When the default renderer is replaced or decorated (e.g. when profiling), the render
+     * has limits or flushes progressively, or slow resolves are instrumented, the template is rendered from its nodes, decoded as needed.
+     *
+     * @return a template rendering the same output as this one
+     */
+    public Template compact() {
+        Template res = derived(null);
+        res.program = program == null ? Program.compile(rootNodes) : program;
+        res.renderCache = renderCache;
+        return res;
     }
 
     /**
@@ -112,10 +316,310 @@ public class Template {
      * @param out   where to write the result
      */
     public void render(Object model, Writer out) {
-        Context context = new Context(null, model);
+        Object key = cacheKey(model);
+        if (key == null) {
+            render(model, out, null, config);
+        } else {
+            renderCached(model, key, out);
+        }
+    }
+
+    /**
+     * Render this template using the specified model into the specified writer, from the {@link #cached(RenderCache) render cache} if the model key was rendered before
+     *
+     * @param model the model object to resolve properties against
+     * @param key   identifies the content of the model: models with equal keys must render the same output
+     * @param out   where to write the result
+     */
+    public void renderCached(Object model, Object key, Writer out) {
+        if (renderCache == null || key == null) {
+            render(model, out, null, config);
+            return;
+        }
+        try {
+            out.write(cachedOutput(model, key).text());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Render this template using the specified model into the specified output stream, encoded in UTF-8, from the {@link #cached(RenderCache) render cache} if the model key
+     * was rendered before, in which case the cached bytes are written as is
+     *
+     * @param model the model object to resolve properties against
+     * @param key   identifies the content of the model: models with equal keys must render the same output
+     * @param out   where to write the result
+     */
+    public void renderCached(Object model, Object key, OutputStream out) {
+        if (renderCache == null || key == null) {
+            renderUtf8(model, out);
+            return;
+        }
+        try {
+            out.write(cachedOutput(model, key).utf8());
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Object cacheKey(Object model) {
+        return renderCache != null && model instanceof CacheKeyed ? ((CacheKeyed) model).cacheKey() : null;
+    }
+
+    private RenderCache.Output cachedOutput(final Object model, Object key) {
+        return renderCache.get(this, key, new RenderCache.Loader() {
+            @Override
+            public String load() {
+                StringBuilder output = new StringBuilder(outputSize.estimate());
+                render(model, new StringBuilderWriter(output), null, config);
+                return output.toString();
+            }
+        });
+    }
+
+    /**
+     * Render this template using the specified model into a string. Faster than rendering into a {@link java.io.StringWriter}: the render doesn't synchronize on every write,
+     * and the buffer is presized from the size of the previous renders of this template.
+     *
+     * @param model the model object to resolve properties against
+     * @return the result
+     */
+    public String renderToString(Object model) {
+        StringBuilder res = new StringBuilder(outputSize.estimate());
+        render(model, new StringBuilderWriter(res));
+        outputSize.record(res.length());
+        return res.toString();
+    }
+
+    /**
+     * Render this template using the specified model into the specified appendable, e.g. a {@link StringBuilder}, which is then presized from the size of the previous renders of this template.
+     *
+     * @param model the model object to resolve properties against
+     * @param out   where to write the result
+     */
+    public void render(Object model, Appendable out) {
+        if (out instanceof Writer) {
+            render(model, (Writer) out);
+        } else if (out instanceof StringBuilder) {
+            StringBuilder builder = (StringBuilder) out;
+            int start = builder.length();
+            builder.ensureCapacity(start + outputSize.estimate());
+            render(model, new StringBuilderWriter(builder));
+            outputSize.record(builder.length() - start);
+        } else {
+            render(model, new AppendableWriter(out));
+        }
+    }
+
+    /**
+     * Render this template using the specified model into the specified output stream, encoded in UTF-8. The output is encoded into a buffer owned by the current thread,
+     * and the cached fragments of <code>cache</code> tags are written already encoded. The stream is flushed, but not closed, once the template is rendered.
+     *
+     * @param model the model object to resolve properties against
+     * @param out   where to write the result
+     */
+    public void render(Object model, OutputStream out) {
+        renderCached(model, cacheKey(model), out);
+    }
+
+    private void renderUtf8(Object model, OutputStream out) {
+        RenderPool pool = RenderPool.acquire();
+        try {
+            Utf8Writer writer = new Utf8Writer(out, pool.bytes());
+            render(model, writer, null, config);
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.release();
+        }
+    }
+
+    /**
+     * Render this template using the specified model into the specified channel, e.g. a socket or a file, encoded in UTF-8.
+     * The texts kept as {@link Config#fileRegionThreshold(int) regions of the template files} are transferred from the files to the channel directly,
+     * without being copied through the Java heap. The channel isn't closed once the template is rendered.
+     *
+     * @param model the model object to resolve properties against
+     * @param out   where to write the result
+     */
+    public void render(Object model, WritableByteChannel out) {
+        Object key = cacheKey(model);
+        if (key != null) {
+            renderCached(model, key, Channels.newOutputStream(out));
+            return;
+        }
+        RenderPool pool = RenderPool.acquire();
+        try {
+            FileRegions.ChannelWriter writer = new FileRegions.ChannelWriter(out, pool.bytes());
+            render(model, writer, null, config);
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.release();
+        }
+    }
+
+    /**
+     * Render this template using the specified model into a buffer owned by the current thread and reused across renders, so that rendering doesn't allocate an output buffer once the thread is warmed up.
+     * <p/>
+     * The result is only valid until the next pooled render on the same thread: it must be consumed (written out, copied, etc.) before then.
+     * Use {@link #renderToString(Object)} when the result has to be kept.
+     *
+     * @param model the model object to resolve properties against
+     * @return the result
+     */
+    public CharSequence renderPooled(Object model) {
+        RenderPool pool = RenderPool.acquire();
         try {
-            for (LiquidrodsNode node : rootNodes) {
-                config.defaultRenderer().render(node, context, config, out);
+            render(model, pool.writer());
+            return pool.builder();
+        } finally {
+            pool.release();
+        }
+    }
+
+    /**
+     * Render this template using the specified model into a buffer owned by the current thread, then copy the result into the specified appendable in one go.
+     * Useful when the target is slow to write to in small chunks, or when nothing must be written to it if the render fails.
+     *
+     * @param model the model object to resolve properties against
+     * @param out   where to write the result
+     */
+    public void renderPooled(Object model, Appendable out) {
+        RenderPool pool = RenderPool.acquire();
+        try {
+            render(model, pool.writer());
+            StringBuilder res = pool.builder();
+            if (out instanceof Writer) {
+                char[] chars = pool.chars(res.length());
+                res.getChars(0, res.length(), chars, 0);
+                ((Writer) out).write(chars, 0, res.length());
+            } else {
+                out.append(res);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.release();
+        }
+    }
+
+    /**
+     * Render this template using the specified model into the specified writer, aborting as soon as the render exceeds one of the specified limits.
+     * What was written before the render was aborted is left as is in the writer.
+     * <p/>
+     * The depth and time limits are checked by the built-in renderer, for every node it renders: a {@link Config#defaultRenderer(Config.Renderer) custom renderer}
+     * which doesn't delegate to it is only held to the output and iterations limits.
+     *
+     * @param model  the model object to resolve properties against
+     * @param out    where to write the result
+     * @param limits the resources the render is allowed to use, or null for an unlimited render
+     * @throws RenderLimitException if one of the limits is exceeded
+     */
+    public void render(Object model, Writer out, RenderLimits limits) {
+        if (limits == null) {
+            render(model, out);
+            return;
+        }
+        RenderBudget budget = new RenderBudget(limits);
+        render(model, budget.limit(out), budget, config);
+    }
+
+    /**
+     * Render this template using the specified model into the specified writer progressively: the writer is flushed at the <code>flush</code> tags and where the policy says,
+     * e.g. once the <code>head</code> element is rendered, so that the client receives the start of the output early. It's flushed once more at the end of the render.
+     *
+     * @param model  the model object to resolve properties against
+     * @param out    where to write the result
+     * @param policy where to flush, in addition to the <code>flush</code> tags
+     */
+    public void renderProgressively(Object model, Writer out, FlushPolicy policy) {
+        FlushingWriter writer = new FlushingWriter(out, policy, policy.afterHead() ? headText() : null);
+        render(model, writer, null, config);
+        try {
+            writer.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Render this template using the specified model progressively, handing the output to the sink in chunks, one per flush, e.g. to write them out asynchronously.
+     * The chunks are cut at the <code>flush</code> tags and where the policy says, and the sink receives one last chunk, maybe empty, at the end of the render.
+     *
+     * @param model  the model object to resolve properties against
+     * @param policy where to flush, in addition to the <code>flush</code> tags
+     * @param sink   receives the chunks
+     */
+    public void renderProgressively(Object model, FlushPolicy policy, FlushPolicy.Sink sink) {
+        FlushingWriter writer = new FlushingWriter(sink, policy, policy.afterHead() ? headText() : null);
+        render(model, writer, null, config);
+        try {
+            writer.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the first text closing the <code>head</code> element, or null if there's none. Looked up once rather than on every render, since reading the texts
+     * kept in an arena or in their files copies them.
+     */
+    private LiquidrodsNode.Text headText() {
+        List<LiquidrodsNode> nodes = getRootNodes();
+        HeadText res = headText;
+        // the nodes of a compact template are decoded again once collected
+        if (res == null || res.nodes.get() != nodes) {
+            res = new HeadText(nodes, findHeadText(nodes));
+            headText = res;
+        }
+        return res.text;
+    }
+
+    private static LiquidrodsNode.Text findHeadText(List<LiquidrodsNode> nodes) {
+        for (LiquidrodsNode node : nodes) {
+            if (node instanceof LiquidrodsNode.Text) {
+                if (((LiquidrodsNode.Text) node).getValue().contains("</head>")) {
+                    return (LiquidrodsNode.Text) node;
+                }
+            } else if (node instanceof LiquidrodsNode.Block) {
+                LiquidrodsNode.Text res = findHeadText(((LiquidrodsNode.Block) node).getChildren());
+                if (res != null) {
+                    return res;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void render(Object model, Writer out, RenderBudget budget, Config config) {
+        Instrumentation instrumentation = config.instrumentation();
+        if (instrumentation == null) {
+            renderNodes(Context.root(model, constants, null, budget, null), out, config);
+        } else {
+            long start = System.nanoTime();
+            CountingWriter counting = new CountingWriter(out);
+            ResolveInstrumentation resolveInstrumentation = instrumentation instanceof ResolveInstrumentation ? (ResolveInstrumentation) instrumentation : null;
+            Context.CacheStats cacheStats = instrumentation instanceof RenderMetrics ? ((RenderMetrics) instrumentation).cacheStats() : null;
+            renderNodes(Context.root(model, constants, resolveInstrumentation, budget, cacheStats), counting, config);
+            instrumentation.rendered(this, System.nanoTime() - start, counting.getCount());
+        }
+    }
+
+    private void renderNodes(Context context, Writer out, Config config) {
+        try {
+            if (program != null && config.hasBuiltinRenderer() && context.budget() == null && FlushingWriter.of(out) == null
+                    && !(config.instrumentation() instanceof ResolveInstrumentation)) {
+                program.render(context, config, out);
+                return;
+            }
+            List<LiquidrodsNode> nodes = getRootNodes();
+            for (int i = 0; i < nodes.size(); i++) {
+                config.defaultRenderer().render(nodes.get(i), context, config, out);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -124,6 +628,6 @@ public class Template {
 
     @Override
     public String toString() {
-        return "Template " + rootNodes;
+        return "Template " + getRootNodes();
     }
 }
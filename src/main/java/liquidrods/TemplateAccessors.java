@@ -0,0 +1,42 @@
+package liquidrods;
+
+/**
+ * Resolves the properties and helpers of a given model class without reflection. Implementations are generated at compile time for the classes annotated with {@link TemplateModel}:
+ * the implementation for the <code>com.acme.Todo</code> class is named <code>com.acme.Todo_LiquidrodsAccessors</code> (nested classes keep their binary name, e.g. <code>com.acme.Todo$Item_LiquidrodsAccessors</code>).
+ * <p/>
+ * The generated implementations follow the same lookup rules as {@link Context}: a public field wins over a public method named after the property, which wins over a getter.
+ */
+public interface TemplateAccessors {
+    /**
+     * The suffix appended to the model class name to get its accessors class name
+     */
+    String SUFFIX = "_LiquidrodsAccessors";
+
+    /**
+     * @param name the property name
+     * @return whether the model class has a field, a method or a getter for this property
+     */
+    boolean hasProperty(String name);
+
+    /**
+     * @param model an instance of the model class
+     * @param name  the property name
+     * @return the property value, or {@link Context#NOT_FOUND} if the model class doesn't have this property
+     */
+    Object property(Object model, String name);
+
+    /**
+     * @param name    the helper method name
+     * @param argType the class of the object the helper would be applied on
+     * @return whether the model class, when used as a helper, has a method with this name which can be applied on an instance of argType
+     */
+    boolean hasHelper(String name, Class<?> argType);
+
+    /**
+     * @param helper an instance of the model class, used as a helper
+     * @param name   the helper method name
+     * @param arg    the object to apply the helper on
+     * @return the helper result, or {@link Context#NOT_FOUND} if no such helper applies to arg
+     */
+    Object helper(Object helper, String name, Object arg);
+}
@@ -0,0 +1,101 @@
+package liquidrods;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps parsed templates around keyed by their logical name, so that {@link Liquidrods#parse(String, Config)} only loads and parses a given template once.
+ * Enable it by calling {@link Config#templateCache(TemplateCache)}.
+ * <p/>
+ * The cache is unbounded and never expires its entries on its own: call {@link #invalidate(String)} or {@link #clear()} to force a template to be reloaded.
+ */
+public class TemplateCache {
+    private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+    private final TextArena textArena;
+
+    /**
+     * Create a cache keeping the templates on the heap
+     */
+    public TemplateCache() {
+        this(null);
+    }
+
+    /**
+     * Create a cache moving the static texts of the templates it caches into an off-heap arena
+     *
+     * @param textArena the arena to store the texts in, or null to keep them on the heap
+     */
+    public TemplateCache(TextArena textArena) {
+        this.textArena = textArena;
+    }
+
+    /**
+     * @param name the template logical name
+     * @return the cached template, or null if it isn't cached
+     */
+    public Template get(String name) {
+        return templates.get(name);
+    }
+
+    /**
+     * Cache a template, unless another one was already cached under the same name (by a concurrent parse for example)
+     *
+     * @param name     the template logical name
+     * @param template the parsed template
+     * @return the template that ended up in the cache: either the supplied one or the one that was already there
+     */
+    public Template put(String name, Template template) {
+        template = stored(template);
+        Template existing = templates.putIfAbsent(name, template);
+        return existing == null ? template : existing;
+    }
+
+    /**
+     * @return the template in the form this cache keeps it: with its texts in the arena, if any
+     */
+    Template stored(Template template) {
+        return textArena == null ? template : template.stored(textArena);
+    }
+
+    /**
+     * Evict a template from the cache
+     *
+     * @param name the template logical name
+     */
+    public void invalidate(String name) {
+        templates.remove(name);
+    }
+
+    /**
+     * Evict all the cached templates. The arena the texts are stored in, if any, is reset.
+     */
+    public void clear() {
+        templates.clear();
+        if (textArena != null) {
+            textArena.reset();
+        }
+    }
+
+    /**
+     * @return the arena the texts of the cached templates are stored in, or null if they're kept on the heap
+     */
+    public TextArena textArena() {
+        return textArena;
+    }
+
+    /**
+     * @return the names of the cached templates
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(templates.keySet());
+    }
+
+    /**
+     * @return the number of cached templates
+     */
+    public int size() {
+        return templates.size();
+    }
+}
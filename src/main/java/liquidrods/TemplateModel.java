@@ -0,0 +1,17 @@
+package liquidrods;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a model (or helper) class for which the <code>liquidrods-processor</code> annotation processor should generate a {@link TemplateAccessors} implementation at compile time.
+ * <p/>
+ * {@link Context} then uses the generated accessors to resolve the properties and helpers of this class instead of looking them up and invoking them reflectively.
+ * Only the instances of the annotated class itself benefit from it: instances of its subclasses are still resolved using reflection unless they are annotated too.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface TemplateModel {
+}
@@ -0,0 +1,357 @@
+package liquidrods;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Converts a linked template (i.e. with its includes and extends already resolved) to and from a compact binary form, so that it can be reloaded without going through {@link LiquidrodsParser}.
+ * <p/>
+ * The binary form is made of:
+ * <ul>
+ * <li>a header: a magic number and a format version</li>
+ * <li>a string table holding every distinct text chunk, variable name, tag name, tag argument and file name</li>
+ * <li>the parser fingerprint: which tags were bodyless when the template was parsed</li>
+ * <li>the sources the template was built from, with a SHA-1 of their content</li>
+ * <li>the nodes, depth first: an opcode, the position (file, row and col) and the opcode specific operands, as string table indexes</li>
+ * </ul>
+ */
+public final class TemplateSerializer {
+    private static final int MAGIC = 0x4c514452;
+    private static final int VERSION = 1;
+    private static final byte TEXT = 1, VARIABLE = 2, RAW_VARIABLE = 3, BLOCK = 4;
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    private TemplateSerializer() {
+    }
+
+    /**
+     * Serialize a template
+     *
+     * @param template the template to serialize, parsed from its sources by name
+     * @param name     the template logical name
+     * @param config   the configuration the template was parsed with. Used to fingerprint the parser.
+     * @return the binary form
+     * @throws IllegalArgumentException if the template, or one of its dependencies, wasn't parsed from its source by name, so that there's no hash of what it was built from
+     */
+    public static byte[] serialize(Template template, String name, Config config) {
+        Map<String, byte[]> sources = sources(template, name);
+        if (sources == null) {
+            throw new IllegalArgumentException("The template " + name + " wasn't parsed from its sources");
+        }
+        return serialize(template, sources, config);
+    }
+
+    /**
+     * @return the hashes of the texts a template was parsed from, its own first, or null if some are unknown
+     */
+    static Map<String, byte[]> sources(Template template, String name) {
+        Map<String, byte[]> res = new LinkedHashMap<String, byte[]>();
+        res.put(name, template.getSources().get(name));
+        for (String dependency : template.getDependencies()) {
+            res.put(dependency, template.getSources().get(dependency));
+        }
+        return res.containsValue(null) ? null : res;
+    }
+
+    /**
+     * Serialize a template
+     *
+     * @param template the template to serialize
+     * @param sources  the hashes of the sources the template was built from, keyed by source name (see {@link #hash(Reader)})
+     * @param config   the configuration the template was parsed with. Used to fingerprint the parser.
+     * @return the binary form
+     */
+    public static byte[] serialize(Template template, Map<String, byte[]> sources, Config config) {
+        StringTable strings = new StringTable();
+        strings.index(fingerprint(config));
+        for (String source : sources.keySet()) {
+            strings.index(source);
+        }
+        collect(template.getRootNodes(), strings);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.list.size());
+            for (String string : strings.list) {
+                byte[] encoded = string.getBytes(UTF8);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            out.writeInt(strings.index(fingerprint(config)));
+            out.writeInt(sources.size());
+            for (Map.Entry<String, byte[]> source : sources.entrySet()) {
+                out.writeInt(strings.index(source.getKey()));
+                out.writeInt(source.getValue().length);
+                out.write(source.getValue());
+            }
+            writeNodes(template.getRootNodes(), strings, out);
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reload a serialized template
+     *
+     * @param buffer        the binary form, as produced by {@link #serialize(Template, String, Config)}
+     * @param config        the configuration to use with the returned template
+     * @param verifySources whether to check that the template sources (loaded using the config's template loader) didn't change since the template was serialized
+     * @return the template, or null if it was serialized with a different format, a different parser configuration or if its sources changed
+     */
+    public static Template deserialize(ByteBuffer buffer, Config config, boolean verifySources) {
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return null;
+        }
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] encoded = new byte[buffer.getInt()];
+            buffer.get(encoded);
+            strings[i] = new String(encoded, UTF8);
+        }
+        if (!fingerprint(config).equals(strings[buffer.getInt()])) {
+            return null;
+        }
+        int sourceCount = buffer.getInt();
+        Set<String> dependencies = new LinkedHashSet<String>();
+        Map<String, byte[]> sources = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < sourceCount; i++) {
+            String source = strings[buffer.getInt()];
+            byte[] hash = new byte[buffer.getInt()];
+            buffer.get(hash);
+            if (verifySources && !Arrays.equals(hash, hash(config.templateLoader().load(source)))) {
+                return null;
+            }
+            if (i > 0) {
+                dependencies.add(source);
+            }
+            sources.put(source, hash);
+        }
+        Template template = Template.linked(readNodes(buffer, strings), config, dependencies);
+        template.getSources().putAll(sources);
+        return template;
+    }
+
+    /**
+     * Hash a template source
+     *
+     * @param reader the template source. Closed by this method.
+     * @return the SHA-1 of the template content
+     */
+    public static byte[] hash(Reader reader) {
+        HashingReader in = new HashingReader(reader);
+        try {
+            try {
+                char[] buffer = new char[4096];
+                while (in.read(buffer) >= 0) {
+                    // only the digest matters
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return in.hash();
+    }
+
+    /**
+     * Hashes the text read through it as {@link #hash(Reader)} does, so that a source can be hashed while it's parsed rather than loaded a second time
+     */
+    static class HashingReader extends FilterReader {
+        private final MessageDigest digest;
+        private final Writer encoder;
+
+        HashingReader(Reader in) {
+            super(in);
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            encoder = new OutputStreamWriter(new DigestOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    // only the digest matters
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    // only the digest matters
+                }
+            }, digest), UTF8);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int res = super.read();
+            if (res >= 0) {
+                encoder.write(res);
+            }
+            return res;
+        }
+
+        @Override
+        public int read(char[] buffer, int off, int len) throws IOException {
+            int res = super.read(buffer, off, len);
+            if (res > 0) {
+                encoder.write(buffer, off, res);
+            }
+            return res;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // the skipped text must be hashed too
+            long res = 0;
+            while (res < n && read() >= 0) {
+                res++;
+            }
+            return res;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readAheadLimit) throws IOException {
+            throw new IOException("mark() not supported");
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("reset() not supported");
+        }
+
+        /**
+         * @return the SHA-1 of the text read so far, to be called once it's all been read
+         */
+        byte[] hash() {
+            try {
+                encoder.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return digest.digest();
+        }
+    }
+
+    /**
+     * The parser output only depends on the set of tags which don't take a body: all the other tags, registered or not, are parsed the same way.
+     */
+    private static String fingerprint(Config config) {
+        SortedSet<String> bodyless = new TreeSet<String>();
+        for (Map.Entry<String, BlockHandler> handler : config.handlers().entrySet()) {
+            if (!handler.getValue().wantsCloseTag()) {
+                bodyless.add(handler.getKey());
+            }
+        }
+        return bodyless.toString();
+    }
+
+    private static void collect(List<LiquidrodsNode> nodes, StringTable strings) {
+        for (LiquidrodsNode node : nodes) {
+            strings.index(node.getFilename());
+            if (node instanceof LiquidrodsNode.Text) {
+                strings.index(((LiquidrodsNode.Text) node).getValue());
+            } else if (node instanceof LiquidrodsNode.Variable) {
+                strings.index(((LiquidrodsNode.Variable) node).getName());
+            } else {
+                LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                strings.index(block.getName());
+                strings.index(block.getArg());
+                collect(block.getChildren(), strings);
+            }
+        }
+    }
+
+    private static void writeNodes(List<LiquidrodsNode> nodes, StringTable strings, DataOutputStream out) throws IOException {
+        out.writeInt(nodes.size());
+        for (LiquidrodsNode node : nodes) {
+            if (node instanceof LiquidrodsNode.Text) {
+                out.writeByte(TEXT);
+                writePosition(node, strings, out);
+                out.writeInt(strings.index(((LiquidrodsNode.Text) node).getValue()));
+            } else if (node instanceof LiquidrodsNode.Variable) {
+                LiquidrodsNode.Variable variable = (LiquidrodsNode.Variable) node;
+                out.writeByte(variable.isRaw() ? RAW_VARIABLE : VARIABLE);
+                writePosition(node, strings, out);
+                out.writeInt(strings.index(variable.getName()));
+            } else {
+                LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                out.writeByte(BLOCK);
+                writePosition(node, strings, out);
+                out.writeInt(strings.index(block.getName()));
+                out.writeInt(strings.index(block.getArg()));
+                writeNodes(block.getChildren(), strings, out);
+            }
+        }
+    }
+
+    private static void writePosition(LiquidrodsNode node, StringTable strings, DataOutputStream out) throws IOException {
+        out.writeInt(strings.index(node.getFilename()));
+        out.writeInt(node.getRow());
+        out.writeInt(node.getCol());
+    }
+
+    private static List<LiquidrodsNode> readNodes(ByteBuffer buffer, String[] strings) {
+        int count = buffer.getInt();
+        List<LiquidrodsNode> nodes = new ArrayList<LiquidrodsNode>(count);
+        for (int i = 0; i < count; i++) {
+            byte opcode = buffer.get();
+            String filename = string(strings, buffer.getInt());
+            int row = buffer.getInt();
+            int col = buffer.getInt();
+            switch (opcode) {
+                case TEXT:
+                    nodes.add(new LiquidrodsNode.Text(strings[buffer.getInt()], filename, row, col));
+                    break;
+                case VARIABLE:
+                case RAW_VARIABLE:
+                    nodes.add(new LiquidrodsNode.Variable(strings[buffer.getInt()], opcode == RAW_VARIABLE, filename, row, col));
+                    break;
+                case BLOCK:
+                    String name = strings[buffer.getInt()];
+                    String arg = string(strings, buffer.getInt());
+                    nodes.add(new LiquidrodsNode.Block(name, arg, readNodes(buffer, strings), filename, row, col));
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupted serialized template: unknown opcode " + opcode);
+            }
+        }
+        return nodes;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    private static class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<String> list = new ArrayList<String>();
+
+        int index(String string) {
+            if (string == null) {
+                return -1;
+            }
+            Integer index = indexes.get(string);
+            if (index == null) {
+                index = list.size();
+                indexes.put(string, index);
+                list.add(string);
+            }
+            return index;
+        }
+    }
+}
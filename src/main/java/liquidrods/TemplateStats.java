@@ -0,0 +1,93 @@
+package liquidrods;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of the statistics collected by {@link RenderMetrics} for a template.
+ * <p/>
+ * Latency percentiles are estimated from a histogram with power of 2 buckets: they are upper bounds, at most twice the actual value.
+ */
+public class TemplateStats {
+    private final String name;
+    private final long renders;
+    private final long totalRenderNanos;
+    private final long p50RenderNanos;
+    private final long p90RenderNanos;
+    private final long p99RenderNanos;
+    private final long maxRenderNanos;
+    private final long totalOutputChars;
+    private final long parses;
+    private final long totalParseNanos;
+
+    @ConstructorProperties({"name", "renders", "totalRenderNanos", "p50RenderNanos", "p90RenderNanos", "p99RenderNanos", "maxRenderNanos", "totalOutputChars", "parses", "totalParseNanos"})
+    public TemplateStats(String name, long renders, long totalRenderNanos, long p50RenderNanos, long p90RenderNanos, long p99RenderNanos, long maxRenderNanos,
+                         long totalOutputChars, long parses, long totalParseNanos) {
+        this.name = name;
+        this.renders = renders;
+        this.totalRenderNanos = totalRenderNanos;
+        this.p50RenderNanos = p50RenderNanos;
+        this.p90RenderNanos = p90RenderNanos;
+        this.p99RenderNanos = p99RenderNanos;
+        this.maxRenderNanos = maxRenderNanos;
+        this.totalOutputChars = totalOutputChars;
+        this.parses = parses;
+        this.totalParseNanos = totalParseNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRenders() {
+        return renders;
+    }
+
+    public long getTotalRenderNanos() {
+        return totalRenderNanos;
+    }
+
+    public long getMeanRenderNanos() {
+        return renders == 0 ? 0 : totalRenderNanos / renders;
+    }
+
+    public long getP50RenderNanos() {
+        return p50RenderNanos;
+    }
+
+    public long getP90RenderNanos() {
+        return p90RenderNanos;
+    }
+
+    public long getP99RenderNanos() {
+        return p99RenderNanos;
+    }
+
+    public long getMaxRenderNanos() {
+        return maxRenderNanos;
+    }
+
+    /**
+     * @return the number of characters written by all the renders
+     */
+    public long getTotalOutputChars() {
+        return totalOutputChars;
+    }
+
+    public long getMeanOutputChars() {
+        return renders == 0 ? 0 : totalOutputChars / renders;
+    }
+
+    public long getParses() {
+        return parses;
+    }
+
+    public long getTotalParseNanos() {
+        return totalParseNanos;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + renders + " renders (mean " + getMeanRenderNanos() + "ns, p50 " + p50RenderNanos + "ns, p90 " + p90RenderNanos + "ns, p99 " + p99RenderNanos
+                + "ns, max " + maxRenderNanos + "ns, mean output " + getMeanOutputChars() + " chars), " + parses + " parses (" + totalParseNanos + "ns)";
+    }
+}
@@ -0,0 +1,198 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the static texts of templates off the Java heap, encoded in UTF-8 in direct byte buffers, for applications keeping many templates loaded.
+ * Usually set on the {@link TemplateCache#TemplateCache(TextArena) template cache}, which then moves the texts of the templates it caches into the arena.
+ * <p/>
+ * The stored texts are written straight from the arena to the output: as is when rendering into an output stream, and decoded on the fly otherwise.
+ * Texts shorter than a minimum length are left on the heap, where they cost less than the node referencing them in the arena.
+ * <p/>
+ * The arena is filled in fixed-size chunks that are never written again once full: the memory of a chunk is released when no template references its texts anymore.
+ * {@link #reset()} makes the arena start over with new chunks, e.g. after clearing the cache of all its templates.
+ * <p/>
+ * Like {@link String#getBytes(java.nio.charset.Charset)}, the arena stores unpaired surrogates as <code>?</code>.
+ */
+public class TextArena {
+    private static final ThreadLocal<char[]> DECODED = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[1024];
+        }
+    };
+
+    /**
+     * A text stored in an arena
+     */
+    static class StoredText extends LiquidrodsNode.Text {
+        private final ByteBuffer chunk;
+        private final int offset;
+        private final int length;
+
+        private StoredText(LiquidrodsNode.Text text, ByteBuffer chunk, int offset, int length) {
+            super(null, text.getFilename(), text.getRow(), text.getCol());
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return the text, decoded into a new string
+         */
+        @Override
+        public String getValue() {
+            byte[] bytes = new byte[length];
+            ByteBuffer source = chunk.duplicate();
+            source.position(offset);
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void setValue(String value) {
+            throw new UnsupportedOperationException("Texts stored in an arena can't be modified");
+        }
+
+        /**
+         * Write the text without building a string
+         */
+        void write(Writer out) throws IOException {
+            if (out instanceof Utf8Writer) {
+                ((Utf8Writer) out).writeEncoded(chunk, offset, length);
+            } else {
+                decode(out);
+            }
+        }
+
+        private void decode(Writer out) throws IOException {
+            char[] chars = DECODED.get();
+            int n = 0;
+            int i = offset;
+            int end = offset + length;
+            while (i < end) {
+                if (n > chars.length - 2) {
+                    out.write(chars, 0, n);
+                    n = 0;
+                }
+                int b = chunk.get(i++) & 0xFF;
+                if (b < 0x80) {
+                    chars[n++] = (char) b;
+                } else if (b < 0xE0) {
+                    chars[n++] = (char) ((b & 0x1F) << 6 | chunk.get(i++) & 0x3F);
+                } else if (b < 0xF0) {
+                    chars[n++] = (char) ((b & 0x0F) << 12 | (chunk.get(i++) & 0x3F) << 6 | chunk.get(i++) & 0x3F);
+                } else {
+                    int codePoint = (b & 0x07) << 18 | (chunk.get(i++) & 0x3F) << 12 | (chunk.get(i++) & 0x3F) << 6 | chunk.get(i++) & 0x3F;
+                    chars[n++] = Character.highSurrogate(codePoint);
+                    chars[n++] = Character.lowSurrogate(codePoint);
+                }
+            }
+            out.write(chars, 0, n);
+        }
+
+        @Override
+        public String toString() {
+            return getValue();
+        }
+    }
+
+    private final int chunkSize;
+    private final int minLength;
+    private ByteBuffer chunk;
+    private long allocated;
+    private long used;
+
+    /**
+     * Create an arena allocating chunks of 1MB, and storing the texts of at least 64 characters
+     */
+    public TextArena() {
+        this(1024 * 1024, 64);
+    }
+
+    /**
+     * @param chunkSize the size of the chunks, in bytes. Texts longer than that get a chunk of their own
+     * @param minLength the length of the shortest texts to store, in characters
+     */
+    public TextArena(int chunkSize, int minLength) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.minLength = minLength;
+    }
+
+    /**
+     * Copy nodes, moving their texts, and the texts of their children, into this arena
+     *
+     * @param nodes the nodes to copy
+     * @return the copies
+     */
+    List<LiquidrodsNode> store(List<LiquidrodsNode> nodes) {
+        List<LiquidrodsNode> res = new ArrayList<LiquidrodsNode>(nodes.size());
+        for (LiquidrodsNode node : nodes) {
+            if (node.getClass() == LiquidrodsNode.Text.class) {
+                res.add(store((LiquidrodsNode.Text) node));
+            } else if (node instanceof LiquidrodsNode.Block) {
+                LiquidrodsNode.Block block = (LiquidrodsNode.Block) node;
+                res.add(Binder.withChildren(block, store(block.getChildren())));
+            } else {
+                res.add(node);
+            }
+        }
+        return res;
+    }
+
+    private LiquidrodsNode.Text store(LiquidrodsNode.Text text) {
+        String value = text.getValue();
+        if (value.length() < minLength) {
+            return text;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            ByteBuffer target;
+            if (bytes.length > chunkSize) {
+                target = ByteBuffer.allocateDirect(bytes.length);
+                allocated += bytes.length;
+            } else {
+                if (chunk == null || chunk.remaining() < bytes.length) {
+                    chunk = ByteBuffer.allocateDirect(chunkSize);
+                    allocated += chunkSize;
+                }
+                target = chunk;
+            }
+            int offset = target.position();
+            target.put(bytes);
+            used += bytes.length;
+            return new StoredText(text, target, offset, bytes.length);
+        }
+    }
+
+    /**
+     * Start filling new chunks. The current ones are released once the texts they hold aren't referenced anymore.
+     */
+    public synchronized void reset() {
+        chunk = null;
+        allocated = 0;
+        used = 0;
+    }
+
+    /**
+     * @return the off-heap memory allocated since the arena was created or reset, in bytes
+     */
+    public synchronized long allocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * @return the size of the texts stored since the arena was created or reset, in bytes
+     */
+    public synchronized long usedBytes() {
+        return used;
+    }
+}
@@ -0,0 +1,533 @@
+package liquidrods;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A template cache for applications with many templates, most of them rarely rendered, keeping each template in one of three tiers:
+ * <ul>
+ * <li>hot: the linked templates, ready to render</li>
+ * <li>warm: their {@link TemplateSerializer serialized} form, reloaded without parsing</li>
+ * <li>cold: their source, compressed with a {@link Deflater}, parsed again when needed</li>
+ * </ul>
+ * When a tier is full, the templates requested the least often since they entered it move down to the next tier, and the ones overflowing the cold tier are evicted.
+ * Among templates requested as often, the one requested or cached the longest ago goes first. All the counts are halved every {@value #AGING_PERIOD} requests per cached template,
+ * so that old requests weigh less than recent ones.
+ * The templates found in the warm and cold tiers move back up to the hot tier once they've been requested {@link #promotionHits(int) often enough}.
+ * Until then, they're reloaded on every request, trading CPU for memory.
+ * <p/>
+ * Templates are moved down by the thread caching a new template, and reloaded outside of the lock guarding the tiers. The sources moved to the cold tier are loaded and compressed
+ * outside of the lock too, and only kept if they're still the text the template was parsed from: a template whose source changed leaves the cache instead, to be parsed again.
+ */
+public class TieredTemplateCache extends TemplateCache {
+    private enum Tier {
+        HOT, WARM, COLD
+    }
+
+    /**
+     * The number of requests per cached template between two halvings of the request counts
+     */
+    static final int AGING_PERIOD = 8;
+
+    private static class Entry {
+        private final String name;
+        private Config config;
+        private Tier tier;
+        private Template template;
+        private byte[] data;
+        private byte[] hash;
+        private int frequency;
+        private long invalidations;
+
+        private Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    private final int maxHotTemplates;
+    private final long maxWarmBytes;
+    private final long maxColdBytes;
+    private int compressionLevel = Deflater.BEST_SPEED;
+    private int promotionHits = 1;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    // the entries of each tier by request count, each count listing its entries from the least recently requested or cached
+    private final Map<Tier, TreeMap<Integer, LinkedHashSet<Entry>>> frequencies = new EnumMap<Tier, TreeMap<Integer, LinkedHashSet<Entry>>>(Tier.class);
+    private long requestsSinceAging;
+    private int hotTemplates;
+    private long warmBytes;
+    private long coldBytes;
+    private long hotHits;
+    private long warmHits;
+    private long coldHits;
+    private long misses;
+    private long invalidations;
+
+    /**
+     * @param maxHotTemplates the maximum number of linked templates
+     * @param maxWarmBytes    the maximum total size of the serialized templates, in bytes
+     * @param maxColdBytes    the maximum total size of the compressed sources, in bytes
+     */
+    public TieredTemplateCache(int maxHotTemplates, long maxWarmBytes, long maxColdBytes) {
+        this(maxHotTemplates, maxWarmBytes, maxColdBytes, null);
+    }
+
+    /**
+     * @param maxHotTemplates the maximum number of linked templates
+     * @param maxWarmBytes    the maximum total size of the serialized templates, in bytes
+     * @param maxColdBytes    the maximum total size of the compressed sources, in bytes
+     * @param textArena       the arena to store the texts of the hot templates in, or null to keep them on the heap
+     */
+    public TieredTemplateCache(int maxHotTemplates, long maxWarmBytes, long maxColdBytes, TextArena textArena) {
+        super(textArena);
+        if (maxHotTemplates <= 0) {
+            throw new IllegalArgumentException("The hot tier must hold at least one template: " + maxHotTemplates);
+        }
+        this.maxHotTemplates = maxHotTemplates;
+        this.maxWarmBytes = maxWarmBytes;
+        this.maxColdBytes = maxColdBytes;
+    }
+
+    /**
+     * @return the level the sources of the cold tier are compressed with
+     */
+    public int compressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Configure how hard the sources moved to the cold tier are compressed, from {@link Deflater#BEST_SPEED} (the default) to {@link Deflater#BEST_COMPRESSION}
+     *
+     * @param compressionLevel the compression level
+     * @return self, to enable chaining
+     */
+    public TieredTemplateCache compressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * @return the number of requests after which a warm or cold template moves back to the hot tier
+     */
+    public int promotionHits() {
+        return promotionHits;
+    }
+
+    /**
+     * Configure how many times a template of the warm or cold tier must be requested before it moves back to the hot tier. 1 (the default) promotes it on its first request.
+     *
+     * @param promotionHits the number of requests
+     * @return self, to enable chaining
+     */
+    public TieredTemplateCache promotionHits(int promotionHits) {
+        this.promotionHits = promotionHits;
+        return this;
+    }
+
+    @Override
+    public Template get(String name) {
+        Entry entry;
+        Tier tier;
+        byte[] data;
+        Config config;
+        synchronized (this) {
+            entry = entries.get(name);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            requested(entry);
+            if (entry.tier == Tier.HOT) {
+                hotHits++;
+                return entry.template;
+            }
+            if (entry.tier == Tier.WARM) {
+                warmHits++;
+            } else {
+                coldHits++;
+            }
+            tier = entry.tier;
+            data = entry.data;
+            config = entry.config;
+        }
+        Template template = tier == Tier.WARM ? deserialize(name, data, config) : parse(name, data, config);
+        List<Entry> demoted = Collections.emptyList();
+        synchronized (this) {
+            if (entries.get(name) != entry || entry.tier != tier) {
+                // invalidated or moved meanwhile
+                return template;
+            }
+            if (template == null) {
+                remove(entry);
+            } else if (entry.frequency >= promotionHits) {
+                leave(entry);
+                hot(entry, template);
+                demoted = evict(entry);
+            }
+        }
+        cool(demoted);
+        return template;
+    }
+
+    @Override
+    public Template put(String name, Template template) {
+        template = stored(template);
+        List<Entry> demoted;
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry == null) {
+                entry = new Entry(name);
+                entries.put(name, entry);
+            } else if (entry.tier == Tier.HOT) {
+                return entry.template;
+            } else {
+                leave(entry);
+            }
+            hot(entry, template);
+            demoted = evict(entry);
+        }
+        cool(demoted);
+        return template;
+    }
+
+    private Template deserialize(String name, byte[] data, Config config) {
+        Template template = TemplateSerializer.deserialize(ByteBuffer.wrap(data), config, false);
+        return template == null ? null : stored(Liquidrods.stored(template.named(name), config));
+    }
+
+    private Template parse(String name, byte[] data, Config config) {
+        TemplateSerializer.HashingReader source = new TemplateSerializer.HashingReader(
+                new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(data)), StandardCharsets.UTF_8));
+        List<LiquidrodsNode> rootNodes = new LiquidrodsParser(source, name, config.handlers()).parse();
+        return stored(Liquidrods.stored(new Template(rootNodes, config).parsedFrom(name, source.hash()), config));
+    }
+
+    private void hot(Entry entry, Template template) {
+        entry.tier = Tier.HOT;
+        entry.template = template;
+        entry.config = template.getConfig();
+        entry.data = null;
+        // what the cold tier must hold, if the template ends up there
+        entry.hash = template.getSources().get(entry.name);
+        hotTemplates++;
+        track(entry);
+    }
+
+    /**
+     * Move the least requested templates down until every tier fits its bounds
+     *
+     * @param keep a template that just entered the hot tier, and mustn't leave it right away
+     * @return the templates leaving the warm tier, out of the cache until {@link #cool(List)} moves them to the cold tier
+     */
+    private List<Entry> evict(Entry keep) {
+        List<Entry> demoted = new ArrayList<Entry>();
+        while (hotTemplates > maxHotTemplates) {
+            Entry victim = leastRequested(Tier.HOT, keep);
+            leave(victim);
+            warm(victim, demoted);
+        }
+        while (warmBytes > maxWarmBytes) {
+            Entry victim = leastRequested(Tier.WARM, null);
+            leave(victim);
+            demote(victim, demoted);
+        }
+        return demoted;
+    }
+
+    private void warm(Entry entry, List<Entry> demoted) {
+        // the sources aren't verified when reloading, but their hashes are kept for when the template moves down again
+        Map<String, byte[]> sources = TemplateSerializer.sources(entry.template, entry.name);
+        if (sources == null) {
+            sources = new LinkedHashMap<String, byte[]>();
+            sources.put(entry.name, new byte[0]);
+            for (String dependency : entry.template.getDependencies()) {
+                sources.put(dependency, new byte[0]);
+            }
+        }
+        byte[] data = TemplateSerializer.serialize(entry.template, sources, entry.config);
+        entry.template = null;
+        if (data.length > maxWarmBytes) {
+            demote(entry, demoted);
+            return;
+        }
+        entry.tier = Tier.WARM;
+        entry.data = data;
+        entry.frequency = 0;
+        warmBytes += data.length;
+        track(entry);
+    }
+
+    private void demote(Entry entry, List<Entry> demoted) {
+        entries.remove(entry.name);
+        entry.data = null;
+        entry.invalidations = invalidations;
+        demoted.add(entry);
+    }
+
+    /**
+     * Load and compress the sources of templates leaving the warm tier, outside of the lock, and move them to the cold tier
+     */
+    private void cool(List<Entry> demoted) {
+        for (Entry entry : demoted) {
+            byte[] data = compress(entry);
+            synchronized (this) {
+                // cached again or invalidated meanwhile
+                if (data == null || data.length > maxColdBytes || entries.containsKey(entry.name) || entry.invalidations != invalidations) {
+                    continue;
+                }
+                entry.tier = Tier.COLD;
+                entry.data = data;
+                entry.frequency = 0;
+                entries.put(entry.name, entry);
+                coldBytes += data.length;
+                track(entry);
+                while (coldBytes > maxColdBytes) {
+                    remove(leastRequested(Tier.COLD, null));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the compressed source of a template, or null if it's gone or isn't the text the template was parsed from anymore
+     */
+    private byte[] compress(Entry entry) {
+        if (entry.hash == null) {
+            return null;
+        }
+        StringBuilder source = new StringBuilder();
+        try {
+            TemplateSerializer.HashingReader reader = new TemplateSerializer.HashingReader(entry.config.templateLoader().load(entry.name));
+            try {
+                char[] buffer = new char[4096];
+                for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer)) {
+                    source.append(buffer, 0, read);
+                }
+            } finally {
+                reader.close();
+            }
+            if (!Arrays.equals(entry.hash, reader.hash())) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // the source is gone: it will be reported when the template is parsed again
+            return null;
+        }
+        return compress(source);
+    }
+
+    private byte[] compress(CharSequence source) {
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            ByteArrayOutputStream res = new ByteArrayOutputStream();
+            Writer out = new OutputStreamWriter(new DeflaterOutputStream(res, deflater), StandardCharsets.UTF_8);
+            out.append(source);
+            out.close();
+            return res.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the template of a tier requested the least often, and the longest ago among those
+     */
+    private Entry leastRequested(Tier tier, Entry keep) {
+        for (LinkedHashSet<Entry> bucket : frequencies(tier).values()) {
+            for (Entry entry : bucket) {
+                if (entry != keep) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count a request for a template, halving all the counts once the cache served enough requests since they were last halved
+     */
+    private void requested(Entry entry) {
+        untrack(entry);
+        entry.frequency++;
+        track(entry);
+        if (++requestsSinceAging >= (long) AGING_PERIOD * entries.size()) {
+            requestsSinceAging = 0;
+            for (Tier tier : Tier.values()) {
+                TreeMap<Integer, LinkedHashSet<Entry>> aged = new TreeMap<Integer, LinkedHashSet<Entry>>();
+                for (LinkedHashSet<Entry> bucket : frequencies(tier).values()) {
+                    for (Entry e : bucket) {
+                        e.frequency /= 2;
+                        LinkedHashSet<Entry> agedBucket = aged.get(e.frequency);
+                        if (agedBucket == null) {
+                            agedBucket = new LinkedHashSet<Entry>();
+                            aged.put(e.frequency, agedBucket);
+                        }
+                        agedBucket.add(e);
+                    }
+                }
+                frequencies.put(tier, aged);
+            }
+        }
+    }
+
+    private TreeMap<Integer, LinkedHashSet<Entry>> frequencies(Tier tier) {
+        TreeMap<Integer, LinkedHashSet<Entry>> res = frequencies.get(tier);
+        if (res == null) {
+            res = new TreeMap<Integer, LinkedHashSet<Entry>>();
+            frequencies.put(tier, res);
+        }
+        return res;
+    }
+
+    /**
+     * Add a template to the counts of its tier, as the most recent one of its count
+     */
+    private void track(Entry entry) {
+        TreeMap<Integer, LinkedHashSet<Entry>> tier = frequencies(entry.tier);
+        LinkedHashSet<Entry> bucket = tier.get(entry.frequency);
+        if (bucket == null) {
+            bucket = new LinkedHashSet<Entry>();
+            tier.put(entry.frequency, bucket);
+        }
+        bucket.add(entry);
+    }
+
+    private void untrack(Entry entry) {
+        TreeMap<Integer, LinkedHashSet<Entry>> tier = frequencies(entry.tier);
+        LinkedHashSet<Entry> bucket = tier.get(entry.frequency);
+        if (bucket != null && bucket.remove(entry) && bucket.isEmpty()) {
+            tier.remove(entry.frequency);
+        }
+    }
+
+    /**
+     * Remove a template from the accounting of its tier
+     */
+    private void leave(Entry entry) {
+        untrack(entry);
+        if (entry.tier == Tier.HOT) {
+            hotTemplates--;
+        } else if (entry.tier == Tier.WARM) {
+            warmBytes -= entry.data.length;
+        } else {
+            coldBytes -= entry.data.length;
+        }
+    }
+
+    private void remove(Entry entry) {
+        leave(entry);
+        entries.remove(entry.name);
+    }
+
+    @Override
+    public synchronized void invalidate(String name) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            remove(entry);
+        }
+        invalidations++;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        frequencies.clear();
+        hotTemplates = 0;
+        warmBytes = 0;
+        coldBytes = 0;
+        invalidations++;
+        super.clear();
+    }
+
+    @Override
+    public synchronized Set<String> names() {
+        return Collections.unmodifiableSet(new HashSet<String>(entries.keySet()));
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of linked templates
+     */
+    public synchronized int hotSize() {
+        return hotTemplates;
+    }
+
+    /**
+     * @return the number of serialized templates
+     */
+    public synchronized int warmSize() {
+        return count(Tier.WARM);
+    }
+
+    /**
+     * @return the number of compressed sources
+     */
+    public synchronized int coldSize() {
+        return count(Tier.COLD);
+    }
+
+    private int count(Tier tier) {
+        int res = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.tier == tier) {
+                res++;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the total size of the serialized templates, in bytes
+     */
+    public synchronized long warmBytes() {
+        return warmBytes;
+    }
+
+    /**
+     * @return the total size of the compressed sources, in bytes
+     */
+    public synchronized long coldBytes() {
+        return coldBytes;
+    }
+
+    /**
+     * @return the number of requests served by a linked template
+     */
+    public synchronized long getHotHits() {
+        return hotHits;
+    }
+
+    /**
+     * @return the number of requests served by reloading a serialized template
+     */
+    public synchronized long getWarmHits() {
+        return warmHits;
+    }
+
+    /**
+     * @return the number of requests served by parsing a compressed source
+     */
+    public synchronized long getColdHits() {
+        return coldHits;
+    }
+
+    /**
+     * @return the number of requests for templates that weren't cached at all
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,185 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * A writer encoding what's written to it in UTF-8 into a buffer flushed to an output stream. Unlike an {@link java.io.OutputStreamWriter}, it accepts already encoded bytes,
+ * which is how {@link CacheBlock} replays cached fragments and {@link TextArena} writes stored texts without encoding them again.
+ * <p/>
+ * Like {@link String#getBytes(java.nio.charset.Charset)}, unpaired surrogates are encoded as <code>?</code>.
+ */
+class Utf8Writer extends Writer {
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int pos;
+    private char highSurrogate;
+
+    /**
+     * @param out    where to write the encoded bytes
+     * @param buffer the buffer to encode into, of at least 4 bytes
+     */
+    Utf8Writer(OutputStream out, byte[] buffer) {
+        this.out = out;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            encode(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80 && highSurrogate == 0 && pos < buffer.length) {
+                buffer[pos++] = (byte) c;
+            } else {
+                encode(c);
+            }
+        }
+    }
+
+    /**
+     * Write bytes already encoded in UTF-8
+     *
+     * @param bytes the encoded bytes
+     * @throws IOException if the output stream fails
+     */
+    void writeEncoded(byte[] bytes) throws IOException {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            put('?');
+        }
+        if (bytes.length > buffer.length - pos) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    /**
+     * Write bytes already encoded in UTF-8, read from a buffer without changing its position
+     *
+     * @param bytes  the buffer holding the encoded bytes
+     * @param offset the position of the first byte to write
+     * @param length the number of bytes to write
+     * @throws IOException if the output stream fails
+     */
+    void writeEncoded(ByteBuffer bytes, int offset, int length) throws IOException {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            put('?');
+        }
+        ByteBuffer source = bytes.duplicate();
+        source.position(offset);
+        for (int remaining = length; remaining > 0; ) {
+            if (pos == buffer.length) {
+                flushBuffer();
+            }
+            int n = Math.min(remaining, buffer.length - pos);
+            source.get(buffer, pos, n);
+            pos += n;
+            remaining -= n;
+        }
+    }
+
+    private void encode(char c) throws IOException {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                reserve(4);
+                buffer[pos++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[pos++] = (byte) (0x80 | codePoint & 0x3F);
+                return;
+            }
+            put('?');
+        }
+        if (c < 0x80) {
+            put(c);
+        } else if (c < 0x800) {
+            reserve(2);
+            buffer[pos++] = (byte) (0xC0 | c >> 6);
+            buffer[pos++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            put('?');
+        } else {
+            reserve(3);
+            buffer[pos++] = (byte) (0xE0 | c >> 12);
+            buffer[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+            buffer[pos++] = (byte) (0x80 | c & 0x3F);
+        }
+    }
+
+    private void put(char c) throws IOException {
+        reserve(1);
+        buffer[pos++] = (byte) c;
+    }
+
+    private void reserve(int bytes) throws IOException {
+        if (pos + bytes > buffer.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+
+    /**
+     * Write out the buffered bytes, an unpaired surrogate ending the output included, without flushing the output stream,
+     * e.g. before writing to what's behind it directly
+     *
+     * @throws IOException if the output stream fails
+     */
+    void flushEncoded() throws IOException {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            put('?');
+        }
+        flushBuffer();
+    }
+
+    /**
+     * Write out the buffered bytes, an unpaired surrogate ending the output included, and flush the output stream
+     */
+    @Override
+    public void flush() throws IOException {
+        flushEncoded();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+}
@@ -0,0 +1,108 @@
+package liquidrods;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The {@link Config.ValueWriter value writers} registered by default: integers and booleans are written without going through a string,
+ * and values whose string form can't contain characters needing escaping (other numbers, dates) are written without being escaped.
+ */
+class ValueWriters {
+    private static final char[] MIN_LONG = String.valueOf(Long.MIN_VALUE).toCharArray();
+
+    private static final ThreadLocal<char[]> DIGITS = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MIN_LONG.length];
+        }
+    };
+
+    /**
+     * Writes the string form of the value, escaped unless the variable is raw. Used for the types without a registered writer.
+     */
+    static final Config.ValueWriter DEFAULT = new Config.ValueWriter() {
+        @Override
+        public void write(Object value, Config.Escaper escaper, Writer out) throws IOException {
+            ValueWriters.write(String.valueOf(value), escaper, out);
+        }
+    };
+
+    /**
+     * The types whose string form never needs escaping. Exact classes only: a subclass, e.g. of {@link BigDecimal} or {@link Date}, can override {@link Object#toString()}
+     */
+    private static final Set<Class<?>> SAFE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(Double.class, Float.class, BigDecimal.class, BigInteger.class, Date.class));
+
+    /**
+     * Writes the string form of the value as is for the types whose string form never needs escaping, escaped for their subclasses
+     */
+    static final Config.ValueWriter SAFE = new Config.ValueWriter() {
+        @Override
+        public void write(Object value, Config.Escaper escaper, Writer out) throws IOException {
+            if (SAFE_TYPES.contains(value.getClass())) {
+                out.write(value.toString());
+            } else {
+                ValueWriters.write(String.valueOf(value), escaper, out);
+            }
+        }
+    };
+
+    /**
+     * Writes the digits of an {@link Integer}, {@link Long}, {@link Short} or {@link Byte} directly
+     */
+    static final Config.ValueWriter INTEGER = new Config.ValueWriter() {
+        @Override
+        public void write(Object value, Config.Escaper escaper, Writer out) throws IOException {
+            writeLong(((Number) value).longValue(), out);
+        }
+    };
+
+    static final Config.ValueWriter BOOLEAN = new Config.ValueWriter() {
+        @Override
+        public void write(Object value, Config.Escaper escaper, Writer out) throws IOException {
+            out.write((Boolean) value ? "true" : "false");
+        }
+    };
+
+    /**
+     * Write a string, escaping it with the specified escaper if any
+     *
+     * @param value   the string to write
+     * @param escaper the escaper to use, or null to write the string as is
+     * @param out     where to write the string
+     * @throws IOException if the writer fails
+     */
+    static void write(String value, Config.Escaper escaper, Writer out) throws IOException {
+        if (escaper == null) {
+            out.write(value);
+        } else if (escaper instanceof Config.StreamingEscaper) {
+            ((Config.StreamingEscaper) escaper).escape(value, out);
+        } else {
+            out.write(escaper.escape(value));
+        }
+    }
+
+    static void writeLong(long value, Writer out) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            // can't be negated
+            out.write(MIN_LONG, 0, MIN_LONG.length);
+            return;
+        }
+        char[] digits = DIGITS.get();
+        int pos = digits.length;
+        long n = value < 0 ? -value : value;
+        do {
+            digits[--pos] = (char) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        if (value < 0) {
+            digits[--pos] = '-';
+        }
+        out.write(digits, pos, digits.length - pos);
+    }
+}
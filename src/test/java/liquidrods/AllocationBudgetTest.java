@@ -0,0 +1,181 @@
+package liquidrods;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renders representative templates many times and checks the bytes allocated per render against the budgets recorded in <code>allocation-budgets.properties</code>.
+ * <p/>
+ * When a change legitimately allocates more (or less), update the budget of the scenario with the measured value reported by this test.
+ */
+public class AllocationBudgetTest {
+    private static final int WARMUP = 5000;
+    private static final int RENDERS = 2000;
+
+    public static class Item {
+        private final String name;
+        private final List<String> tags;
+
+        public Item(String name, List<String> tags) {
+            this.name = name;
+            this.tags = tags;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getTags() {
+            return tags;
+        }
+    }
+
+    public static class Page {
+        public String title = "A <page> & its \"items\"";
+        public String description = "<b>raw</b>";
+        public boolean visible = true;
+        public int count = 123456;
+        public long total = -9876543210L;
+        public List<Item> items = new ArrayList<Item>();
+        public Map<String, Object> meta = new HashMap<String, Object>();
+
+        public Page() {
+            for (int i = 0; i < 20; i++) {
+                items.add(new Item("item " + i, Arrays.asList("red", "green")));
+            }
+            meta.put("author", "Jane");
+        }
+
+        public String upper(String s) {
+            return s.toUpperCase();
+        }
+    }
+
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Scenario {
+        private final String name;
+        private final Template template;
+        private final boolean pooled;
+
+        private Scenario(String name, Template template) {
+            this(name, template, false);
+        }
+
+        private Scenario(String name, Template template, boolean pooled) {
+            this.name = name;
+            this.template = template;
+            this.pooled = pooled;
+        }
+    }
+
+    private static Template parse(String template) {
+        return Liquidrods.parse(new StringReader(template), new Config());
+    }
+
+    private static List<Scenario> scenarios() {
+        final Map<String, String> templates = new HashMap<String, String>();
+        templates.put("layout", "<html><title>{% block title %}{% end %}</title><body>{% block body %}{% end %}</body></html>");
+        templates.put("page", "{% extends layout %}{% block title %}{{title}}{% end %}{% block body %}{% for items %}<p>{{name}}</p>{% end %}{% end %}");
+        Config config = new Config().templateLoader(new Config.TemplateLoader() {
+            @Override
+            public Reader load(String name) {
+                return new StringReader(templates.get(name));
+            }
+        });
+
+        Template loop = parse("<ul>{% for items %}<li>{{#}}: {{name}}{% if #last %}.{% end %}</li>{% end %}</ul>");
+        return Arrays.asList(
+                new Scenario("text", parse("<html><body><p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p></body></html>")),
+                new Scenario("variables", parse("<h1>{{{description}}}</h1><p>{{visible}}</p><p>{{meta.author}}</p>")),
+                new Scenario("numbers", parse("<td>{{count}}</td><td>{{total}}</td><td>{{visible}}</td>")),
+                new Scenario("escaping", parse("<h1>{{title}}</h1><h2>{{title}}</h2><h3>{{title}}</h3>")),
+                new Scenario("loop", loop),
+                new Scenario("pooled-loop", loop, true),
+                new Scenario("compact-loop", loop.compact()),
+                new Scenario("nested-loop", parse("{% for items %}{% for tags %}{{.}}{% ifnot #last %},{% end %}{% end %};{% end %}")),
+                new Scenario("helper", parse("{% for items %}{{name.upper}}{% end %}")),
+                new Scenario("extends", Liquidrods.parse("page", config))
+        );
+    }
+
+    private static Properties budgets() throws IOException {
+        Properties res = new Properties();
+        InputStream in = AllocationBudgetTest.class.getResourceAsStream("/allocation-budgets.properties");
+        assertNotNull("allocation-budgets.properties not found", in);
+        try {
+            res.load(in);
+        } finally {
+            in.close();
+        }
+        return res;
+    }
+
+    private static long allocatedBytesPerRender(com.sun.management.ThreadMXBean threads, Scenario scenario, Object model) {
+        Writer out = new NullWriter();
+        for (int i = 0; i < WARMUP; i++) {
+            render(scenario, model, out);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < RENDERS; i++) {
+            render(scenario, model, out);
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / RENDERS;
+    }
+
+    private static void render(Scenario scenario, Object model, Writer out) {
+        if (scenario.pooled) {
+            scenario.template.renderPooled(model, out);
+        } else {
+            scenario.template.render(model, out);
+        }
+    }
+
+    @Test
+    public void testAllocationsPerRenderStayWithinBudget() throws IOException {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        if (!threads.isThreadAllocatedMemoryEnabled()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        Properties budgets = budgets();
+        Page model = new Page();
+        StringBuilder report = new StringBuilder("Bytes allocated per render:");
+        List<String> exceeded = new ArrayList<String>();
+        for (Scenario scenario : scenarios()) {
+            String budget = budgets.getProperty(scenario.name);
+            assertNotNull("No allocation budget for the scenario " + scenario.name, budget);
+            long bytes = allocatedBytesPerRender(threads, scenario, model);
+            report.append(String.format("%n  %-12s %8d (budget %s)", scenario.name, bytes, budget));
+            if (bytes > Long.parseLong(budget)) {
+                exceeded.add(scenario.name);
+            }
+        }
+        assertTrue("Allocation budget exceeded by " + exceeded + ". " + report, exceeded.isEmpty());
+    }
+}
@@ -1,7 +1,9 @@
 package liquidrods;
 
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.*;
 
@@ -11,6 +13,9 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class LiquidrodsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     private String render(Config config, String template, Object model) {
         StringWriter writer = new StringWriter();
         Liquidrods.parse(new StringReader(template), config).render(model, writer);
@@ -527,4 +532,1038 @@ public class LiquidrodsTest {
         parser.parse();
     }
 
+
+    private static class MapTemplateLoader implements Config.ListableTemplateLoader {
+        private final Map<String, String> templates = new TreeMap<String, String>();
+        private final Map<String, Integer> loads = new HashMap<String, Integer>();
+
+        public MapTemplateLoader with(String name, String template) {
+            templates.put(name, template);
+            return this;
+        }
+
+        @Override
+        public synchronized Reader load(String name) {
+            Integer count = loads.get(name);
+            loads.put(name, count == null ? 1 : count + 1);
+            String template = templates.get(name);
+            if (template == null) {
+                throw new RuntimeException("Unexpected load template with name " + name);
+            }
+            return new StringReader(template);
+        }
+
+        @Override
+        public List<String> list(String root) {
+            List<String> res = new ArrayList<String>();
+            for (String name : templates.keySet()) {
+                if (name.startsWith(root)) {
+                    res.add(name);
+                }
+            }
+            return res;
+        }
+    }
+
+    @Test
+    public void testTemplateCache() {
+        MapTemplateLoader loader = new MapTemplateLoader().with("a", "{{x}}");
+        Config config = new Config().templateLoader(loader).templateCache(new TemplateCache());
+
+        assertSame(Liquidrods.parse("a", config), Liquidrods.parse("a", config));
+        assertEquals(1, (int) loader.loads.get("a"));
+    }
+
+    @Test
+    public void testPrecompileAll() {
+        MapTemplateLoader loader = new MapTemplateLoader()
+                .with("layout", "<{% block body %}{% end %}>")
+                .with("pages/a", "{% extends layout %}{% block body %}a{% end %}")
+                .with("pages/b", "{% extends layout %}{% block body %}b{% end %}")
+                .with("pages/c", "{% include layout %}c");
+        Config config = new Config().templateLoader(loader);
+
+        PrecompileReport report = Liquidrods.precompileAll(config, "pages/", 2);
+
+        assertFalse(report.toString(), report.hasErrors());
+        assertEquals(4, report.getResults().size());
+        assertEquals(4, config.templateCache().size());
+        assertEquals(1, (int) loader.loads.get("layout"));
+
+        StringWriter out = new StringWriter();
+        Liquidrods.parse("pages/a", config).render(Collections.emptyMap(), out);
+        assertEquals("<a>", out.toString());
+        assertEquals(1, (int) loader.loads.get("pages/a"));
+    }
+
+    @Test
+    public void testPrecompileAllReportsErrors() {
+        MapTemplateLoader loader = new MapTemplateLoader()
+                .with("pages/broken", "{% if x %}")
+                .with("pages/child", "{% extends pages/broken %}")
+                .with("pages/cycle", "{% include pages/cycle %}")
+                .with("pages/fine", "fine");
+        Config config = new Config().templateLoader(loader);
+
+        PrecompileReport report = Liquidrods.precompileAll(config, "pages/", 2);
+
+        assertTrue(report.hasErrors());
+        List<String> failed = new ArrayList<String>();
+        for (PrecompileReport.Result result : report.getFailures()) {
+            failed.add(result.getName());
+        }
+        Collections.sort(failed);
+        assertEquals(Arrays.asList("pages/broken", "pages/child", "pages/cycle"), failed);
+        assertEquals(Collections.singleton("pages/fine"), config.templateCache().names());
+    }
+
+    @Test
+    public void testTemplateSerializerRoundTrip() {
+        MapTemplateLoader loader = new MapTemplateLoader()
+                .with("layout", "<{% block body %}{% end %}>")
+                .with("page", "{% extends layout %}{% block body %}{% for xs %}{{.}}{{{.}}}{% end %}{% end %}");
+        Config config = new Config().templateLoader(loader);
+        Template template = Liquidrods.parse("page", config);
+
+        byte[] serialized = TemplateSerializer.serialize(template, "page", config);
+        Template reloaded = TemplateSerializer.deserialize(java.nio.ByteBuffer.wrap(serialized), config, true);
+
+        Object model = Collections.singletonMap("xs", Arrays.asList("<a>", "b"));
+        StringWriter expected = new StringWriter();
+        template.render(model, expected);
+        StringWriter actual = new StringWriter();
+        reloaded.render(model, actual);
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals(1, actual.toString().indexOf("&lt;a&gt;<a>"));
+
+        assertNull(TemplateSerializer.deserialize(java.nio.ByteBuffer.wrap(serialized), new Config(config).registerHandler("for", new IfBlock.ElseBlock()), true));
+        loader.with("layout", "[{% block body %}{% end %}]");
+        assertNull(TemplateSerializer.deserialize(java.nio.ByteBuffer.wrap(serialized), config, true));
+    }
+
+    @Test
+    public void testAstCache() throws IOException {
+        MapTemplateLoader loader = new MapTemplateLoader()
+                .with("layout", "<{% block body %}{% end %}>")
+                .with("page", "{% extends layout %}{% block body %}{{x}}{% end %}");
+        AstCache astCache = new AstCache(tmp.newFolder("ast"));
+        Config config = new Config().templateLoader(loader).astCache(astCache);
+        Object model = Collections.singletonMap("x", "y");
+
+        StringWriter out = new StringWriter();
+        Liquidrods.parse("page", config).render(model, out);
+        assertEquals("<y>", out.toString());
+        assertNotNull(astCache.load("page", config));
+
+        loader.with("layout", "[{% block body %}{% end %}]");
+        assertNull(astCache.load("page", config));
+        out = new StringWriter();
+        Liquidrods.parse("page", config).render(model, out);
+        assertEquals("[y]", out.toString());
+        assertNotNull(astCache.load("page", config));
+    }
+
+    @Test
+    public void testAstCacheHashesTheParsedText() throws IOException {
+        final MapTemplateLoader loader = new MapTemplateLoader() {
+            @Override
+            public synchronized Reader load(String name) {
+                Reader res = super.load(name);
+                // edited right after being read
+                with("page", "[{{x}}]");
+                return res;
+            }
+        }.with("page", "<{{x}}>");
+        AstCache astCache = new AstCache(tmp.newFolder("ast"));
+        Config config = new Config().templateLoader(loader).astCache(astCache);
+
+        assertEquals("<y>", Liquidrods.parse("page", config).renderToString(Collections.singletonMap("x", "y")));
+        assertEquals(Integer.valueOf(1), loader.loads.get("page"));
+        // the entry holds the old text: it mustn't pass for the new one
+        assertNull(astCache.load("page", config));
+        assertEquals("[y]", Liquidrods.parse("page", config).renderToString(Collections.singletonMap("x", "y")));
+        assertNotNull(astCache.load("page", config));
+    }
+
+    @Test
+    public void testPrecompiledTemplates() throws IOException {
+        MapTemplateLoader loader = new MapTemplateLoader().with("page", "<{{x}}>");
+        Config config = new Config().templateLoader(loader);
+        File classpath = tmp.newFolder("classes");
+        File precompiled = new File(classpath, Liquidrods.PRECOMPILED_PREFIX + "page" + Liquidrods.PRECOMPILED_SUFFIX);
+        assertTrue(precompiled.getParentFile().mkdirs());
+        FileOutputStream file = new FileOutputStream(precompiled);
+        try {
+            file.write(TemplateSerializer.serialize(Liquidrods.parse("page", config), "page", config));
+        } finally {
+            file.close();
+        }
+        // the sources changed since the build
+        loader.with("page", "[{{x}}]");
+        Object model = Collections.singletonMap("x", "y");
+
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new java.net.URLClassLoader(new java.net.URL[]{classpath.toURI().toURL()}, previous));
+        try {
+            // ignored by default
+            assertEquals("[y]", Liquidrods.parse("page", config).renderToString(model));
+
+            config.usePrecompiled(true);
+            Template template = Liquidrods.parse("page", config);
+            assertEquals("<y>", template.renderToString(model));
+            assertEquals("page", template.getName());
+            // no precompiled form: parsed from its sources
+            loader.with("other", "other");
+            assertEquals("other", Liquidrods.parse("other", config).renderToString(model));
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+
+    public static class Todo {
+        public String title;
+        private final boolean done;
+
+        public Todo(String title, boolean done) {
+            this.title = title;
+            this.done = done;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+    }
+
+    public static class TodoList {
+        public String owner = "bob";
+        public List<Todo> todos = Arrays.asList(new Todo("a<b", true), new Todo("c", false));
+        public Map<String, Object> extra = Collections.<String, Object>singletonMap("k", "v");
+
+        public String shout(String s) {
+            return s.toUpperCase();
+        }
+    }
+
+    @Test
+    public void testBind() {
+        String template = "{% for todos %}{{#}}:{{title.shout}}{% if done %}!{% else %}?{% end %}{{owner}} {% end %}{{extra.k}}{{{owner}}}";
+        Template dynamic = Liquidrods.parse(new StringReader(template), new Config());
+        Template bound = dynamic.bind(TodoList.class);
+
+        StringWriter expected = new StringWriter();
+        dynamic.render(new TodoList(), expected);
+        StringWriter actual = new StringWriter();
+        bound.render(new TodoList(), actual);
+        assertEquals("0:A&lt;B!bob 1:C?bob vbob", expected.toString());
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testBindReportsUnknownProperties() {
+        Template template = Liquidrods.parse(new StringReader("{{owner}}\n{% for todos %}{{titel}}{% end %}"), new Config());
+        try {
+            template.bind(TodoList.class);
+            fail("Should have failed");
+        } catch (BindException e) {
+            assertEquals(Arrays.asList("Unknown property titel in <reader> @ 2:16"), e.getProblems());
+        }
+    }
+
+    @Test
+    public void testRenderMetrics() throws Exception {
+        MapTemplateLoader loader = new MapTemplateLoader()
+                .with("layout", "<{% block body %}{% end %}>")
+                .with("page", "{% extends layout %}{% block body %}{{x}}{% end %}");
+        RenderMetrics metrics = new RenderMetrics();
+        Config config = new Config().templateLoader(loader).templateCache(new TemplateCache()).instrumentation(metrics);
+        Template page = Liquidrods.parse("page", config);
+        for (int i = 0; i < 3; i++) {
+            page.render(Collections.singletonMap("x", "abc"), new StringWriter());
+        }
+
+        TemplateStats stats = metrics.stats("page");
+        assertEquals(3, stats.getRenders());
+        assertEquals(15, stats.getTotalOutputChars());
+        assertEquals(1, stats.getParses());
+        assertTrue(stats.getP50RenderNanos() <= stats.getP99RenderNanos());
+        assertTrue(stats.getP99RenderNanos() <= stats.getMaxRenderNanos());
+        assertEquals(0, metrics.stats("layout").getRenders());
+        assertEquals(1, metrics.stats("layout").getParses());
+        assertTrue(metrics.getPartsCacheHits() > 0);
+
+        // the cache statistics are those of the renders instrumented by this instance
+        RenderMetrics other = new RenderMetrics();
+        other.reset();
+        assertTrue(metrics.getPartsCacheHits() > 0);
+        assertEquals(0, other.getPartsCacheHits());
+        config.instrumentation(null);
+        long hits = metrics.getPartsCacheHits();
+        page.render(Collections.singletonMap("x", "abc"), new StringWriter());
+        assertEquals(hits, metrics.getPartsCacheHits());
+
+        metrics.register("test");
+        try {
+            javax.management.ObjectName name = new javax.management.ObjectName("liquidrods:type=RenderMetrics,name=\"test\"");
+            assertTrue(java.lang.management.ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Templates") instanceof javax.management.openmbean.TabularData);
+        } finally {
+            metrics.unregister();
+        }
+    }
+
+    @Test
+    public void testRenderProfiler() {
+        Config config = new Config();
+        RenderProfiler profiler = new RenderProfiler(1).install(config);
+        Template template = Liquidrods.parse(new StringReader("<ul>{% for . %}<li>{{.}}</li>{% end %}</ul>"), config);
+        StringWriter out = new StringWriter();
+        template.render(Arrays.asList("a", "b"), out);
+        assertEquals("<ul><li>a</li><li>b</li></ul>", out.toString());
+
+        Map<String, Long> output = new HashMap<String, Long>();
+        long total = 0;
+        for (String line : profiler.collapsedOutput().split("\n")) {
+            int space = line.lastIndexOf(' ');
+            output.put(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+            total += Long.parseLong(line.substring(space + 1));
+        }
+        assertEquals(out.toString().length(), total);
+        assertEquals(Long.valueOf(2), output.get("{% for . %} <reader>:1:4;{{.}} <reader>:1:19"));
+        assertEquals(Long.valueOf(10), output.get("{% for . %} <reader>:1:4;text <reader>:1:29"));
+        assertTrue(profiler.collapsedTimes().contains("{% for . %} <reader>:1:4;{{.}} <reader>:1:19 "));
+
+        profiler.uninstall(config);
+        profiler.reset();
+        template.render(Arrays.asList("a", "b"), new StringWriter());
+        assertEquals("", profiler.collapsedTimes());
+    }
+
+    private RenderLimitException renderWithLimits(String template, Object model, RenderLimits limits) {
+        try {
+            Liquidrods.parse(new StringReader(template), new Config()).render(model, new StringWriter(), limits);
+        } catch (RenderLimitException e) {
+            return e;
+        }
+        fail("Should have exceeded a render limit");
+        return null;
+    }
+
+    @Test
+    public void testRenderLimits() {
+        List<Integer> items = Arrays.asList(1, 2, 3, 4, 5);
+        StringWriter out = new StringWriter();
+        Liquidrods.parse(new StringReader("{% for . %}{{.}}{% end %}"), new Config()).render(items, out, new RenderLimits().maxOutputChars(5).maxIterations(5).maxDepth(2));
+        assertEquals("12345", out.toString());
+
+        RenderLimitException e = renderWithLimits("{% for . %}<{{.}}>{% end %}", items, new RenderLimits().maxOutputChars(7));
+        assertEquals(RenderLimitException.Limit.OUTPUT_CHARS, e.getLimit());
+        assertEquals(".", ((LiquidrodsNode.Variable) e.getNode()).getName());
+
+        e = renderWithLimits("{% for . %}{% for . %}{% end %}{% end %}", Arrays.asList(items, items), new RenderLimits().maxIterations(6));
+        assertEquals(RenderLimitException.Limit.ITERATIONS, e.getLimit());
+        assertEquals("for", ((LiquidrodsNode.Block) e.getNode()).getName());
+
+        e = renderWithLimits("{% if . %}{% if . %}{{.}}{% end %}{% end %}", true, new RenderLimits().maxDepth(2));
+        assertEquals(RenderLimitException.Limit.DEPTH, e.getLimit());
+        assertTrue(e.getNode() instanceof LiquidrodsNode.Variable);
+
+        Object slow = new Object() {
+            public String getX() throws InterruptedException {
+                Thread.sleep(20);
+                return "x";
+            }
+        };
+        e = renderWithLimits("{{x}}{{x}}{{x}}", slow, new RenderLimits().timeout(10, java.util.concurrent.TimeUnit.MILLISECONDS).checkInterval(1));
+        assertEquals(RenderLimitException.Limit.TIMEOUT, e.getLimit());
+    }
+
+    @Test
+    public void testRenderLimitsFollowConfigChanges() {
+        Config config = new Config();
+        Template template = Liquidrods.parse(new StringReader("{{x}}"), config);
+        StringWriter out = new StringWriter();
+        template.render(Collections.singletonMap("x", "<"), out, new RenderLimits());
+        assertEquals("&lt;", out.toString());
+
+        config.escaper(new Config.Escaper() {
+            @Override
+            public String escape(String value) {
+                return "escaped";
+            }
+        });
+        out = new StringWriter();
+        template.render(Collections.singletonMap("x", "<"), out, new RenderLimits());
+        assertEquals("escaped", out.toString());
+    }
+
+    @Test
+    public void testRenderToStringAndAppendable() {
+        Template template = Liquidrods.parse(new StringReader("<{{x}}>"), new Config());
+        Object model = Collections.singletonMap("x", "a&b");
+        assertEquals("<a&amp;b>", template.renderToString(model));
+
+        StringBuilder builder = new StringBuilder("[");
+        template.render(model, builder);
+        assertEquals("[<a&amp;b>", builder.toString());
+
+        java.nio.CharBuffer buffer = java.nio.CharBuffer.allocate(16);
+        template.render(model, buffer);
+        buffer.flip();
+        assertEquals("<a&amp;b>", buffer.toString());
+    }
+
+    @Test
+    public void testRenderPooled() {
+        final Template inner = Liquidrods.parse(new StringReader("[{{.}}]"), new Config());
+        Template template = Liquidrods.parse(new StringReader("<{{x}}{{x.nested}}>"), new Config());
+        Object model = new Object() {
+            public String x = "a&b";
+
+            public String nested(String s) {
+                return inner.renderPooled(s).toString();
+            }
+        };
+        assertEquals("<a&amp;b[a&amp;amp;b]>", template.renderPooled(model).toString());
+
+        StringWriter out = new StringWriter();
+        template.renderPooled(model, out);
+        assertEquals("<a&amp;b[a&amp;amp;b]>", out.toString());
+        StringBuilder builder = new StringBuilder("-");
+        template.renderPooled(model, builder);
+        assertEquals("-<a&amp;b[a&amp;amp;b]>", builder.toString());
+
+        CharSequence first = inner.renderPooled("1");
+        assertEquals("[1]", first.toString());
+        inner.renderPooled("2");
+        assertEquals("[2]", first.toString());
+    }
+
+    @Test
+    public void testValueWriters() {
+        Template template = Liquidrods.parse(new StringReader("{{i}} {{l}} {{min}} {{b}} {{d}} {{big}} {{c}}"), new Config());
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("i", 0);
+        model.put("l", -1234567890123L);
+        model.put("min", Long.MIN_VALUE);
+        model.put("b", false);
+        model.put("d", 1.5e-10);
+        model.put("big", new java.math.BigDecimal("-12.50"));
+        model.put("c", '<');
+        assertEquals("0 -1234567890123 " + Long.MIN_VALUE + " false 1.5E-10 -12.50 &lt;", template.renderToString(model));
+        // a subclass can write anything
+        model.put("big", new java.math.BigDecimal("1") {
+            @Override
+            public String toString() {
+                return "<script>";
+            }
+        });
+        assertEquals("0 -1234567890123 " + Long.MIN_VALUE + " false 1.5E-10 &lt;script&gt; &lt;", template.renderToString(model));
+
+        Config config = new Config().registerValueWriter(CharSequence.class, new Config.ValueWriter() {
+            @Override
+            public void write(Object value, Config.Escaper escaper, Writer out) throws IOException {
+                out.write("'" + value + "'");
+            }
+        });
+        assertSame(config.valueWriter(CharSequence.class), config.valueWriter(StringBuilder.class));
+        template = Liquidrods.parse(new StringReader("{{x}} {{i}}"), config);
+        model.put("x", new StringBuilder("<b>"));
+        assertEquals("'<b>' 0", template.renderToString(model));
+
+        config.registerValueWriter(Integer.class, null);
+        assertEquals("'<b>' 0", template.renderToString(model));
+        assertFalse(config.valueWriters().containsKey(Integer.class));
+    }
+
+    @Test
+    public void testCachingEscaper() {
+        Config config = new Config();
+        CachingEscaper escaper = new CachingEscaper(config.escaper(), 16, 8);
+        Template template = Liquidrods.parse(new StringReader("{{a}}|{{b}}|{{a}}"), config.escaper(escaper));
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("a", "<a>");
+        model.put("b", "a very <long> value");
+        assertEquals("&lt;a&gt;|a very &lt;long&gt; value|&lt;a&gt;", template.renderToString(model));
+        assertEquals(1, escaper.getHits());
+        assertEquals(1, escaper.getMisses());
+        assertEquals(1, escaper.getBypassed());
+        assertEquals("&lt;a&gt;", escaper.escape("<a>"));
+        assertEquals(2, escaper.getHits());
+
+        escaper = new CachingEscaper(new Config().escaper(), 16, 8);
+        for (int i = 0; i < CachingEscaper.WINDOW; i++) {
+            escaper.escape("v" + i);
+        }
+        assertEquals(0, escaper.getHits());
+        assertEquals(0, escaper.getBypassed());
+        escaper.escape("<a>");
+        assertEquals(1, escaper.getBypassed());
+        escaper.resetStats();
+        assertEquals(0, escaper.getHitRate(), 0);
+    }
+
+    @Test
+    public void testCacheTag() throws Exception {
+        final java.util.concurrent.atomic.AtomicInteger renders = new java.util.concurrent.atomic.AtomicInteger();
+        Config config = new Config().registerHandler("count", new BlockHandler() {
+            @Override
+            public boolean wantsCloseTag() {
+                return false;
+            }
+
+            @Override
+            public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
+                out.write(String.valueOf(renders.incrementAndGet()));
+            }
+        });
+        Template template = Liquidrods.parse(new StringReader("{% cache id %}<{{id}}:{% count %}>{% end %}"), config);
+        assertEquals("<1:1>", template.renderToString(Collections.singletonMap("id", 1)));
+        assertEquals("<1:2>", template.renderToString(Collections.singletonMap("id", 1)));
+
+        FragmentCache cache = new FragmentCache(12, 1, java.util.concurrent.TimeUnit.HOURS);
+        config.fragmentCache(cache);
+        assertEquals("<1:3>", template.renderToString(Collections.singletonMap("id", 1)));
+        assertEquals("<1:3>", template.renderToString(Collections.singletonMap("id", 1)));
+        assertEquals("<2:4>", template.renderToString(Collections.singletonMap("id", 2)));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        template.render(Collections.singletonMap("id", 2), bytes);
+        assertEquals("<2:4>", bytes.toString("utf-8"));
+
+        cache.invalidate(1);
+        assertEquals(1, cache.size());
+        assertEquals("<1:5>", template.renderToString(Collections.singletonMap("id", 1)));
+        // 3 fragments of 5 chars don't fit in 12
+        assertEquals("<3:6>", template.renderToString(Collections.singletonMap("id", 3)));
+        assertEquals(2, cache.size());
+        assertEquals(10, cache.chars());
+        assertEquals("<2:7>", template.renderToString(Collections.singletonMap("id", 2)));
+
+        config.fragmentCache(new FragmentCache(1000, 1, java.util.concurrent.TimeUnit.NANOSECONDS));
+        template.renderToString(Collections.singletonMap("id", 1));
+        Thread.sleep(1);
+        assertEquals("<1:9>", template.renderToString(Collections.singletonMap("id", 1)));
+    }
+
+    @Test
+    public void testCacheTagRendersOnceOnConcurrentMisses() throws Exception {
+        final java.util.concurrent.atomic.AtomicInteger renders = new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        Config config = new Config().fragmentCache(new FragmentCache(1000, 0, java.util.concurrent.TimeUnit.SECONDS)).registerHandler("slow", new BlockHandler() {
+            @Override
+            public boolean wantsCloseTag() {
+                return false;
+            }
+
+            @Override
+            public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
+                renders.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                out.write("slow");
+            }
+        });
+        final Template template = Liquidrods.parse(new StringReader("{% cache %}{% slow %}{% end %}"), config);
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(4);
+        List<java.util.concurrent.Future<String>> results = new ArrayList<java.util.concurrent.Future<String>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new java.util.concurrent.Callable<String>() {
+                @Override
+                public String call() {
+                    return template.renderToString(null);
+                }
+            }));
+            started.await();
+        }
+        for (java.util.concurrent.Future<String> result : results) {
+            assertEquals("slow", result.get());
+        }
+        executor.shutdown();
+        assertEquals(1, renders.get());
+    }
+
+    @Test
+    public void testCacheTagsOfDifferentTemplatesDontShareFragments() {
+        Config config = new Config().fragmentCache(new FragmentCache(1000, 1, java.util.concurrent.TimeUnit.HOURS));
+        Template header = Liquidrods.parseInline("{% cache %}header A{% end %}", config);
+        Template footer = Liquidrods.parseInline("{% cache %}footer B{% end %}", config);
+        assertEquals("header A", header.renderToString(null));
+        assertEquals("footer B", footer.renderToString(null));
+        assertEquals("header A", header.renderToString(null));
+        assertEquals(2, config.fragmentCache().size());
+    }
+
+    @Test
+    public void testRenderToOutputStream() throws IOException {
+        Template template = Liquidrods.parse(new StringReader("{{x}}"), new Config());
+        String value = "a\u00e9\u20ac\ud83d\ude00<\ud800!";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(Collections.singletonMap("x", value), out);
+        assertArrayEquals(HtmlUtils.htmlEscape(value).getBytes("utf-8"), out.toByteArray());
+    }
+
+    @Test
+    public void testSpecialize() {
+        Template template = Liquidrods.parse(new StringReader("<h1>{{site.name}}</h1>{% if flags.beta %}beta {{user}}{% else %}stable{% end %}"
+                + "{% ifnot flags.beta %}!{% end %}{% for site.links %}<a/>{% end %}{% for site.none %}{{x}}{% end %}{% for items %}{{site.name}}{% end %}"), new Config());
+        Map<String, Object> site = new HashMap<String, Object>();
+        site.put("name", "A&B");
+        site.put("links", Arrays.asList(1, 2));
+        site.put("none", Collections.emptyList());
+        Map<String, Object> constants = new HashMap<String, Object>();
+        constants.put("site", site);
+        constants.put("flags", Collections.singletonMap("beta", true));
+
+        Template specialized = template.specialize(constants);
+        List<LiquidrodsNode> nodes = specialized.getRootNodes();
+        assertEquals(4, nodes.size());
+        assertEquals("<h1>A&amp;B</h1>beta ", ((LiquidrodsNode.Text) nodes.get(0)).getValue());
+        assertEquals("user", ((LiquidrodsNode.Variable) nodes.get(1)).getName());
+        assertEquals("<a/><a/>", ((LiquidrodsNode.Text) nodes.get(2)).getValue());
+        assertEquals("for", ((LiquidrodsNode.Block) nodes.get(3)).getName());
+
+        Map<String, Object> model = new HashMap<String, Object>(constants);
+        model.put("user", "joe");
+        model.put("items", Arrays.asList(1));
+        assertEquals(template.renderToString(model), specialized.renderToString(model));
+        assertEquals("<h1>A&amp;B</h1>beta joe<a/><a/>A&amp;B", specialized.renderToString(model));
+
+        // the model doesn't hold the constants: the selectors left in the loop still find them
+        Template loop = Liquidrods.parse(new StringReader("[{{site.name}}]{% for items %}({{site.name}}){% end %}"), new Config())
+                .specialize(Collections.singletonMap("site", Collections.singletonMap("name", "S")));
+        assertEquals("[S](S)(S)", loop.renderToString(Collections.singletonMap("items", Arrays.asList(1, 2))));
+        assertEquals("[S](S)(S)", loop.compact().renderToString(Collections.singletonMap("items", Arrays.asList(1, 2))));
+    }
+
+    public static class Product implements CacheKeyed {
+        public final String name;
+        public final int version;
+
+        public Product(String name, int version) {
+            this.name = name;
+            this.version = version;
+        }
+
+        @Override
+        public Object cacheKey() {
+            return name + "@" + version;
+        }
+    }
+
+    @Test
+    public void testRenderCache() throws IOException {
+        RenderCache cache = new RenderCache(70);
+        Template template = Liquidrods.parse(new StringReader("<p>{{name}} \u00e9</p>"), new Config()).cached(cache);
+        assertEquals("<p>a \u00e9</p>", template.renderToString(new Product("a", 1)));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // 10 chars, and 11 bytes in UTF-8
+        assertEquals(31, cache.bytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(new Product("a", 1), out);
+        assertEquals("<p>a \u00e9</p>", out.toString("utf-8"));
+        assertEquals(1, cache.getHits());
+
+        // not cached: no key
+        assertEquals("<p>b \u00e9</p>", template.renderToString(Collections.singletonMap("name", "b")));
+        assertEquals(1, cache.size());
+
+        StringWriter writer = new StringWriter();
+        template.renderCached(Collections.singletonMap("name", "c"), "c", writer);
+        assertEquals("<p>c \u00e9</p>", writer.toString());
+        template.renderCached(Collections.singletonMap("name", "changed"), "c", writer);
+        assertEquals("<p>c \u00e9</p><p>c \u00e9</p>", writer.toString());
+
+        // a third output doesn't fit: the least recently used one is evicted
+        template.renderToString(new Product("d", 1));
+        assertEquals(2, cache.size());
+        assertEquals("<p>changed \u00e9</p>", template.renderToString(new Product("changed", 1)));
+        cache.invalidate("d@1");
+        assertEquals(1, cache.size());
+
+        // an unpaired surrogate can't be encoded in UTF-8, but writers still get it back from the cache
+        writer = new StringWriter();
+        template.renderCached(Collections.singletonMap("name", "\ud83d"), "surrogate", writer);
+        template.renderCached(Collections.singletonMap("name", "\ud83d"), "surrogate", writer);
+        assertEquals("<p>\ud83d \u00e9</p><p>\ud83d \u00e9</p>", writer.toString());
+    }
+
+    @Test
+    public void testCompactTemplate() {
+        final Map<String, String> templates = new HashMap<String, String>();
+        templates.put("layout", "<title>{% block title %}none{% end %}</title>{% block body %}{% end %}");
+        templates.put("page", "{% extends layout %}{% block title %}{{title}}{% end %}{% block body %}"
+                + "{% for items %}{{##}}.{{name}}{% if #last %}!{% else %},{% end %}{% for tags %}[{{.}}]{% end %}{% end %}"
+                + "{% ifnot items %}empty{% else %}{{{raw}}}{% end %}{% custom title %}<{{title}}>{% end %}{% end %}");
+        Config config = new Config().registerHandler("custom", new BlockHandler() {
+            @Override
+            public boolean wantsCloseTag() {
+                return true;
+            }
+
+            @Override
+            public void render(LiquidrodsNode.Block b, Context context, Config config, Writer out) throws IOException {
+                out.write(String.valueOf(String.valueOf(context.resolve(b.getArg())).length()));
+                for (LiquidrodsNode child : b.getChildren()) {
+                    config.defaultRenderer().render(child, context, config, out);
+                }
+            }
+        }).templateLoader(new Config.TemplateLoader() {
+            @Override
+            public Reader load(String name) {
+                return new StringReader(templates.get(name));
+            }
+        });
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("title", "A&B");
+        model.put("raw", "<b>");
+        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> item = new HashMap<String, Object>();
+            item.put("name", "item" + i);
+            item.put("tags", Arrays.asList("x", "y"));
+            items.add(item);
+        }
+        model.put("items", items);
+
+        Template template = Liquidrods.parse("page", config);
+        Template compact = template.compact();
+        String expected = "<title>A&amp;B</title>1.item0,[x][y]2.item1![x][y]<b>3<A&amp;B>";
+        assertEquals(expected, template.renderToString(model));
+        assertEquals(expected, compact.renderToString(model));
+        assertEquals(template.getRootNodes().toString(), compact.getRootNodes().toString());
+        model.put("items", Collections.emptyList());
+        assertEquals(template.renderToString(model), compact.renderToString(model));
+
+        // rendered from the decoded nodes
+        RenderProfiler profiler = new RenderProfiler(1).install(config);
+        assertEquals(template.renderToString(model), compact.renderToString(model));
+        profiler.uninstall(config);
+
+        config.compactTemplates(true).templateCache(new TemplateCache());
+        assertEquals(template.renderToString(model), Liquidrods.parse("page", config).renderToString(model));
+        assertNotNull(Liquidrods.parse("page", config).bind(Map.class));
+    }
+
+    @Test
+    public void testCompactTemplatesKeepPositionsOfLongLines() {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            padding.append(' ');
+        }
+        Config config = new Config().fragmentCache(new FragmentCache(1000, 1, java.util.concurrent.TimeUnit.HOURS));
+        Template template = Liquidrods.parse(new StringReader(padding + "{% cache %}A{% end %}" + padding + "{% cache %}B{% end %}"), config);
+        Template compact = template.compact();
+        assertEquals(padding + "A" + padding + "B", compact.renderToString(null));
+        int last = template.getRootNodes().size() - 1;
+        assertTrue(template.getRootNodes().get(last).getCol() > 0xFFFF);
+        assertEquals(template.getRootNodes().get(last).getCol(), compact.getRootNodes().get(last).getCol());
+    }
+
+    @Test
+    public void testCompactTemplatesUseOverriddenBuiltinHandlers() {
+        Config config = new Config().registerHandler("if", new IfBlock() {
+            @Override
+            public void render(LiquidrodsNode.Block block, Context context, Config config, Writer out) throws IOException {
+                out.write("overridden");
+            }
+        });
+        Template template = Liquidrods.parse(new StringReader("{% if x %}x{% end %}"), config);
+        assertEquals("overridden", template.renderToString(Collections.singletonMap("x", true)));
+        assertEquals("overridden", template.compact().renderToString(Collections.singletonMap("x", true)));
+    }
+
+    @Test
+    public void testTextArena() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("caf\u00e9 \u20ac\ud83d\ude00 ");
+        }
+        final String source = "<p>" + text + "{{x}}</p>{% if x %}" + text + "{% end %}";
+        TextArena arena = new TextArena(1024, 8);
+        Config config = new Config().templateCache(new TemplateCache(arena)).templateLoader(new Config.TemplateLoader() {
+            @Override
+            public Reader load(String name) {
+                return new StringReader(source);
+            }
+        });
+        Template template = Liquidrods.parse("t", config);
+        assertTrue(template.getRootNodes().get(0) instanceof TextArena.StoredText);
+        assertTrue(arena.usedBytes() > 2 * text.length());
+        assertTrue(arena.allocatedBytes() >= arena.usedBytes());
+
+        Map<String, Object> model = Collections.<String, Object>singletonMap("x", "<y>");
+        String expected = "<p>" + text + "&lt;y&gt;</p>" + text;
+        assertEquals(expected, template.renderToString(model));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.render(model, out);
+        assertEquals(expected, out.toString("utf-8"));
+
+        config.templateCache().clear();
+        assertEquals(0, arena.usedBytes());
+        config.templateCache(new TemplateCache(arena)).compactTemplates(true);
+        assertEquals(expected, Liquidrods.parse("t", config).renderToString(model));
+    }
+
+    @Test
+    public void testFlush() {
+        final List<String> flushed = new ArrayList<String>();
+        final StringWriter out = new StringWriter() {
+            @Override
+            public void flush() {
+                flushed.add(toString());
+            }
+        };
+        Template template = Liquidrods.parse(new StringReader("<head>{{x}}</head><body>{% flush %}{% for items %}<p>{{.}}</p>{% end %}</body>"));
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("x", "t");
+        model.put("items", Arrays.asList("a", "b", "c"));
+        template.render(model, (Writer) out);
+        assertEquals(Arrays.asList("<head>t</head><body>"), flushed);
+
+        flushed.clear();
+        out.getBuffer().setLength(0);
+        template.renderProgressively(model, out, new FlushPolicy().afterHead(true).everyChars(16));
+        assertEquals(Arrays.asList("<head>t</head><body>", "<head>t</head><body><p>a</p><p>b</p>", "<head>t</head><body><p>a</p><p>b</p><p>c</p></body>"), flushed);
+
+        // texts kept off-heap, in a compact template
+        flushed.clear();
+        out.getBuffer().setLength(0);
+        template.stored(new TextArena(4096, 1)).compact().renderProgressively(model, out, new FlushPolicy().afterHead(true));
+        assertEquals(Arrays.asList("<head>t</head><body>", "<head>t</head><body><p>a</p><p>b</p><p>c</p></body>"), flushed);
+
+        final List<String> chunks = new ArrayList<String>();
+        template = Liquidrods.parse(new StringReader("<head></head>{% cache %}a{% flush %}b{% end %}{% flush %}c"),
+                new Config().fragmentCache(new FragmentCache(1000, 1, java.util.concurrent.TimeUnit.MINUTES)));
+        template.renderProgressively(model, new FlushPolicy().afterHead(true), new FlushPolicy.Sink() {
+            @Override
+            public void chunk(CharSequence chunk, boolean last) {
+                chunks.add(chunk + (last ? "|" : ""));
+            }
+        });
+        assertEquals(Arrays.asList("<head></head>", "ab", "c|"), chunks);
+    }
+
+    @Test
+    public void testProgressiveRendersFollowConfigChanges() {
+        Config config = new Config();
+        Template template = Liquidrods.parse(new StringReader("<head></head>{{x}}"), config);
+        StringWriter out = new StringWriter();
+        template.renderProgressively(Collections.singletonMap("x", "<"), out, new FlushPolicy().afterHead(true));
+        assertEquals("<head></head>&lt;", out.toString());
+
+        config.escaper(new Config.Escaper() {
+            @Override
+            public String escape(String value) {
+                return "escaped";
+            }
+        });
+        out = new StringWriter();
+        template.renderProgressively(Collections.singletonMap("x", "<"), out, new FlushPolicy().afterHead(true));
+        assertEquals("<head></head>escaped", out.toString());
+
+        out = new StringWriter();
+        template.render(Collections.singletonMap("x", "<"), out, null);
+        assertEquals("<head></head>escaped", out.toString());
+    }
+
+    @Test
+    public void testParseInline() {
+        InlineTemplateCache cache = new InlineTemplateCache(2);
+        Config config = new Config().inlineCache(cache);
+        Template template = Liquidrods.parseInline("<p>{{x}}</p>", config);
+        assertSame(template, Liquidrods.parseInline(new StringBuilder("<p>").append("{{x}}</p>"), config));
+        assertNotSame(template, Liquidrods.parseInline("<p>{{y}}</p>", config));
+        assertEquals("<p>z</p>", template.renderToString(Collections.singletonMap("x", "z")));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        Liquidrods.parseInline("third", config);
+        assertEquals(2, cache.size());
+        assertNotSame(template, Liquidrods.parseInline("<p>{{x}}</p>", config));
+        assertEquals(ContentHash.of("0123456789abcdefXYZ"), ContentHash.of(new StringBuilder("0123456789abcdefXYZ")));
+        assertEquals("35069e88df89ca0f2bc2a4cf54b6e939", ContentHash.of("0123456789abcdefXYZ").toString());
+
+        // a colliding text doesn't get the cached template
+        cache.clear();
+        ContentHash hash = ContentHash.of("a");
+        assertSame(template, cache.put(hash, "a", template));
+        Template other = Liquidrods.parse(new StringReader("b"), config);
+        assertNull(cache.get(hash, "b"));
+        assertSame(other, cache.put(hash, "b", other));
+        assertSame(template, cache.get(hash, "a"));
+    }
+
+    @Test
+    public void testTieredTemplateCache() {
+        Config.TemplateLoader loader = new Config.TemplateLoader() {
+            @Override
+            public Reader load(String name) {
+                return new StringReader("<" + name + ">{{x}}</" + name + ">");
+            }
+        };
+        Map<String, Object> model = Collections.<String, Object>singletonMap("x", "y");
+        TieredTemplateCache cache = new TieredTemplateCache(1, 1024 * 1024, 1024 * 1024);
+        Config config = new Config().templateLoader(loader).templateCache(cache);
+        assertEquals("<a>y</a>", Liquidrods.parse("a", config).renderToString(model));
+        assertEquals("<b>y</b>", Liquidrods.parse("b", config).renderToString(model));
+        assertEquals(1, cache.hotSize());
+        assertEquals(1, cache.warmSize());
+        assertTrue(cache.warmBytes() > 0);
+        assertEquals("<a>y</a>", Liquidrods.parse("a", config).renderToString(model));
+        assertEquals(1, cache.getWarmHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.size());
+
+        cache = new TieredTemplateCache(1, 0, 1024 * 1024);
+        config.templateCache(cache);
+        Liquidrods.parse("a", config);
+        Liquidrods.parse("b", config);
+        assertEquals(1, cache.coldSize());
+        assertTrue(cache.coldBytes() > 0);
+        assertEquals("<a>y</a>", Liquidrods.parse("a", config).renderToString(model));
+        assertEquals(1, cache.getColdHits());
+        assertEquals("<a>y</a>", Liquidrods.parse("a", config).renderToString(model));
+        assertEquals(1, cache.getHotHits());
+
+        cache = new TieredTemplateCache(1, 0, 0);
+        config.templateCache(cache);
+        Liquidrods.parse("a", config);
+        Liquidrods.parse("b", config);
+        assertEquals(Collections.singleton("b"), cache.names());
+
+        // the least requested template leaves first, the one cached the longest ago among those requested as often
+        cache = new TieredTemplateCache(2, 0, 0);
+        config.templateCache(cache);
+        Liquidrods.parse("z", config);
+        Liquidrods.parse("a", config);
+        Liquidrods.parse("m", config);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "m")), cache.names());
+        Liquidrods.parse("m", config);
+        Liquidrods.parse("b", config);
+        assertEquals(new HashSet<String>(Arrays.asList("b", "m")), cache.names());
+
+        // a template whose source changed since it was parsed doesn't move to the cold tier
+        MapTemplateLoader edited = new MapTemplateLoader().with("a", "<a>{{x}}</a>").with("b", "<b>{{x}}</b>");
+        cache = new TieredTemplateCache(1, 0, 1024 * 1024);
+        config.templateLoader(edited).templateCache(cache);
+        Liquidrods.parse("a", config);
+        edited.with("a", "[a]{{x}}[/a]");
+        Liquidrods.parse("b", config);
+        assertEquals(Collections.singleton("b"), cache.names());
+        assertEquals("[a]y[/a]", Liquidrods.parse("a", config).renderToString(model));
+    }
+
+    @Test
+    public void testInternTemplates() {
+        Config config = new Config().internTemplates(true).templateLoader(new Config.TemplateLoader() {
+            @Override
+            public Reader load(String name) {
+                return new StringReader("<p>{{x}}</p>{% for items %}<li>{{name}}</li>{% end %}");
+            }
+        });
+        Template first = Liquidrods.parse("a", config);
+        Template again = Liquidrods.parse("a", config);
+        Template other = Liquidrods.parse("b", config);
+        for (int i = 0; i < first.getRootNodes().size(); i++) {
+            assertSame(first.getRootNodes().get(i), again.getRootNodes().get(i));
+        }
+        LiquidrodsNode.Text text = (LiquidrodsNode.Text) first.getRootNodes().get(0);
+        LiquidrodsNode.Text otherText = (LiquidrodsNode.Text) other.getRootNodes().get(0);
+        assertNotSame(text, otherText);
+        assertSame(text.getValue(), otherText.getValue());
+
+        Map<String, Object> model = new HashMap<String, Object>();
+        model.put("x", "y");
+        model.put("items", Arrays.asList(Collections.singletonMap("name", "z")));
+        assertEquals("<p>y</p><li>z</li>", other.renderToString(model));
+        try {
+            text.setValue("changed");
+            fail("Should have refused to modify a shared node");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // loaded precompiled, or with its texts stored in an arena
+        Template reloaded = TemplateSerializer.deserialize(java.nio.ByteBuffer.wrap(TemplateSerializer.serialize(first, "a", config)), config, false);
+        Template stored = first.stored(new TextArena(4096, 3));
+        for (int i = 0; i < first.getRootNodes().size(); i++) {
+            assertSame(first.getRootNodes().get(i), reloaded.getRootNodes().get(i));
+        }
+        assertTrue(stored.getRootNodes().get(0) instanceof TextArena.StoredText);
+        assertSame(first.getRootNodes().get(1), stored.getRootNodes().get(1));
+        assertNotNull(stored.getRootNodes().get(3).internKey);
+    }
+
+    @Test
+    public void testFileRegions() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("caf\u00e9 \u20ac\ud83d\ude00 ");
+        }
+        File dir = tmp.newFolder("regions");
+        File file = new File(dir, "page.html");
+        Writer source = new OutputStreamWriter(new FileOutputStream(file), "utf-8");
+        source.write("\u00e9{{x}}" + text + "{% if x %}<b>" + text + "</b>{% end %}");
+        source.close();
+        Config config = new Config().templateLoader(new DirectoryTemplateLoader(dir)).fileRegionThreshold(100);
+        Template template = Liquidrods.parse("page.html", config);
+        assertTrue(template.getRootNodes().get(2) instanceof FileRegions.RegionText);
+
+        Map<String, Object> model = Collections.<String, Object>singletonMap("x", "<y>");
+        String expected = "\u00e9&lt;y&gt;" + text + "<b>" + text + "</b>";
+        assertEquals(expected, template.renderToString(model));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        template.render(model, bytes);
+        assertEquals(expected, bytes.toString("utf-8"));
+        File output = tmp.newFile("output.html");
+        FileOutputStream out = new FileOutputStream(output);
+        template.render(model, out.getChannel());
+        out.close();
+        assertEquals(expected, new String(java.nio.file.Files.readAllBytes(output.toPath()), "utf-8"));
+        assertEquals(expected, Liquidrods.parse("page.html", new Config(config).compactTemplates(true)).renderToString(model));
+        // the templates stored from a same file share its channel
+        assertSame(((FileRegions.RegionText) template.getRootNodes().get(2)).channel(),
+                ((FileRegions.RegionText) Liquidrods.parse("page.html", config).getRootNodes().get(2)).channel());
+
+        FileOutputStream append = new FileOutputStream(file, true);
+        append.write('!');
+        append.close();
+        try {
+            template.renderToString(model);
+            fail("Should have failed on the changed file");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // a malformed byte decodes to a 1 char replacement, the offsets of the file wouldn't match the text's
+        FileOutputStream malformed = new FileOutputStream(new File(dir, "malformed.html"));
+        malformed.write(new byte[]{(byte) 0xe2, (byte) 0x82, '{', '{', 'x', '}', '}'});
+        malformed.write(text.toString().getBytes("utf-8"));
+        malformed.close();
+        template = Liquidrods.parse("malformed.html", config);
+        assertFalse(template.getRootNodes().get(2) instanceof FileRegions.RegionText);
+        assertEquals("\ufffd&lt;y&gt;" + text, template.renderToString(model));
+    }
+
+    @Test
+    public void testOutputSizeEstimator() {
+        OutputSizeEstimator estimator = new OutputSizeEstimator();
+        estimator.record(100);
+        estimator.record(50);
+        assertEquals(100, estimator.estimate());
+
+        estimator = new OutputSizeEstimator();
+        for (int i = 0; i < OutputSizeEstimator.WINDOW; i++) {
+            estimator.record(i < 28 ? 1000 : 5000);
+        }
+        assertEquals(5000, estimator.estimate());
+        for (int i = 0; i < OutputSizeEstimator.WINDOW; i++) {
+            estimator.record(i < 30 ? 1000 : 5000);
+        }
+        assertEquals(1000, estimator.estimate());
+    }
 }